@@ -1,15 +1,16 @@
 package meugeninua.screenrecording;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
+import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Rect;
 import android.media.projection.MediaProjectionManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.Log;
 import android.widget.EditText;
 
@@ -18,34 +19,39 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.window.layout.WindowMetricsCalculator;
 
 import java.util.Map;
 
 import meugeninua.screenrecording.databinding.ActivityMainBinding;
 import meugeninua.screenrecording.recorder.IScreenRecorderInterface;
+import meugeninua.screenrecording.recorder.IScreenRecorderListener;
 import meugeninua.screenrecording.recorder.ScreenRecorderParams;
 import meugeninua.screenrecording.recorder.ScreenRecorderService;
 import meugeninua.screenrecording.recorder.ScreenRecorderState;
+import meugeninua.screenrecording.recorder.ScreenRecorderUpdate;
 import meugeninua.screenrecording.utils.StoreToGalleryUtil;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String EXTRA_SECONDS = "seconds";
 
-    private final BroadcastReceiver resultReceiver = new BroadcastReceiver() {
+    private final IScreenRecorderListener listener = new IScreenRecorderListener.Stub() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            ScreenRecorderService.Result result = new ScreenRecorderService.Result(intent);
-            onGotRecordedPath(result.getVideoPath(), result.getAudioPath());
+        public void onUpdate(ScreenRecorderUpdate update) {
+            runOnUiThread(() -> onScreenRecorderUpdate(update));
         }
     };
     private final ServiceConnection connection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             screenRecorderInterface = IScreenRecorderInterface.Stub.asInterface(service);
-            reloadState();
+            try {
+                // pushes the current state right away
+                screenRecorderInterface.registerListener(listener);
+            } catch (RemoteException e) {
+                Log.e(getClass().getSimpleName(), e.getMessage(), e);
+            }
         }
 
         @Override
@@ -68,10 +74,6 @@ public class MainActivity extends AppCompatActivity {
         setContentView(binding.getRoot());
         startService(ScreenRecorderService.buildIntent(this));
 
-        LocalBroadcastManager.getInstance(this).registerReceiver(
-            resultReceiver, ScreenRecorderService.Result.buildIntentFilter()
-        );
-
         if (savedInstanceState != null) {
             seconds = savedInstanceState.getInt(EXTRA_SECONDS);
         }
@@ -106,21 +108,25 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onStop() {
         super.onStop();
+        if (screenRecorderInterface != null) {
+            try {
+                screenRecorderInterface.unregisterListener(listener);
+            } catch (RemoteException e) {
+                Log.e(getClass().getSimpleName(), e.getMessage(), e);
+            }
+            screenRecorderInterface = null;
+        }
         unbindService(connection);
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(resultReceiver);
-    }
-
-    private void reloadState() {
-        try {
-            ScreenRecorderState state = screenRecorderInterface.currentState();
-            setupButtonEnabled(state);
-        } catch (Throwable e) {
-            Log.e(getClass().getSimpleName(), e.getMessage(), e);
+    private void onScreenRecorderUpdate(ScreenRecorderUpdate update) {
+        setupButtonEnabled(update.getState());
+        if (update.getBufferedMs() > 0L) {
+            Log.d(getClass().getSimpleName(), "Buffered " + update.getBytesPerBufferedMinute() / 1024
+                + " KB per minute in " + update.getMemoryBytes() / 1024 + " KB, idle " + update.getIdleMs() + " ms");
+        }
+        for (int i = 0; i < update.getFlushCount(); i++) {
+            onGotRecordedPath(update.getVideoPath(i), update.getAudioPath(i));
         }
     }
 
@@ -130,14 +136,33 @@ public class MainActivity extends AppCompatActivity {
         binding.flushButton.setEnabled(state.isCanFlush());
     }
 
+    /**
+     * @param videoPath content URI of a published MediaStore entry, or a path of a file the
+     * gallery still needs a copy of
+     */
     private void onGotRecordedPath(String videoPath, String audioPath) {
-        reloadState();
-        StoreToGalleryUtil.INSTANCE.storeToGallery(this, videoPath, "video/mp4");
-        StoreToGalleryUtil.INSTANCE.storeToGallery(this, audioPath, "audio/x-wav");
-        binding.videoView.setVideoPath(videoPath);
+        if (isContentUri(videoPath)) {
+            binding.videoView.setVideoURI(Uri.parse(videoPath));
+        } else {
+            storeToGallery(videoPath, "video/mp4");
+            binding.videoView.setVideoPath(videoPath);
+        }
+        if (audioPath != null && !isContentUri(audioPath)) {
+            storeToGallery(audioPath, audioPath.endsWith(".flac") ? "audio/flac" : "audio/x-wav");
+        }
         binding.videoView.start();
     }
 
+    private void storeToGallery(String path, String mimeType) {
+        if (StoreToGalleryUtil.INSTANCE.storeToGallery(this, path, mimeType) == null) {
+            Log.w(getClass().getSimpleName(), "Too many copies pending, " + path + " stays private");
+        }
+    }
+
+    private static boolean isContentUri(String path) {
+        return path.startsWith(ContentResolver.SCHEME_CONTENT + ":");
+    }
+
     @Override
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -1,6 +1,7 @@
 package meugeninua.screenrecording.app;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
@@ -49,6 +50,23 @@ public class ContextSingleton extends ContextWrapper {
             .build();
     }
 
+    /**
+     * @return memory of the device available to the kernel, in bytes
+     */
+    public static long getTotalMemory() {
+        ActivityManager manager = (ActivityManager) INSTANCE.getSystemService(ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        manager.getMemoryInfo(info);
+        return info.totalMem;
+    }
+
+    /**
+     * @return a file with a fixed name in the app specific external files directory
+     */
+    public static File getFilesFile(String name) {
+        return new File(INSTANCE.getExternalFilesDir(null), name);
+    }
+
     public static String getOutputFileName(String type) {
         return getOutputFileName(type, "");
     }
@@ -0,0 +1,137 @@
+package meugeninua.screenrecording.recorder;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import meugeninua.screenrecording.utils.ThroughputProbe;
+
+/**
+ * Runs an encoder on synthetic frames drawn into its input surface, see {@link ThroughputProbe}.
+ * Frames are offered at twice the frame rate, so an encoder that keeps up shows its headroom, and
+ * one that does not holds the drawing back by not freeing its surface buffers.
+ * <p>
+ * The frames are blocks of random colours moving over a changing background, which costs an
+ * encoder about as much as scrolling through a busy screen.
+ */
+class EncoderProbeRunner {
+
+    private static final long DRAIN_TIMEOUT_US = 10_000L;
+    private static final int BLOCK_COUNT = 24;
+
+    private final int frameRate;
+    private final long durationNs;
+    private final Paint paint = new Paint();
+
+    EncoderProbeRunner(int frameRate, long durationMs) {
+        this.frameRate = frameRate;
+        this.durationNs = TimeUnit.MILLISECONDS.toNanos(durationMs);
+        paint.setTextSize(48f);
+    }
+
+    /**
+     * Runs on the calling thread for the probe duration and the time the encoder takes to put out
+     * the frames still in flight.
+     *
+     * @return null when the encoder failed to run
+     */
+    ThroughputProbe.Result run(String codecName, MediaFormat format) {
+        MediaCodec codec = null;
+        Surface surface = null;
+        try {
+            codec = MediaCodec.createByCodecName(codecName);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = codec.createInputSurface();
+            codec.start();
+
+            int width = format.getInteger(MediaFormat.KEY_WIDTH);
+            int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            Random random = new Random(width * 31L + height);
+            ThroughputProbe.Meter meter = new ThroughputProbe.Meter();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / (frameRate * 2);
+            long startNs = System.nanoTime();
+            long endNs = startNs + durationNs;
+            long nextFrameNs = startNs;
+            for (int frame = 0; System.nanoTime() < endNs; ) {
+                long nowNs = System.nanoTime();
+                if (nowNs >= nextFrameNs) {
+                    drawFrame(surface, frame++, width, height, random);
+                    nextFrameNs += frameIntervalNs;
+                }
+                // waits for output until the next frame is due rather than spinning, a software
+                // encoder needs the CPU
+                long untilNextFrameUs = TimeUnit.NANOSECONDS.toMicros(nextFrameNs - nowNs);
+                drain(codec, info, meter, Math.max(0L, untilNextFrameUs));
+            }
+            codec.signalEndOfInputStream();
+            // frames still in flight count towards throughput and latency
+            long drainEndNs = System.nanoTime() + durationNs;
+            while (System.nanoTime() < drainEndNs && !drain(codec, info, meter, DRAIN_TIMEOUT_US)) {
+                // until end of stream
+            }
+            return meter.result(TimeUnit.NANOSECONDS.toMicros(endNs - startNs));
+        } catch (IOException | RuntimeException e) {
+            Log.w(ScreenRecorder.TAG, "Probe of " + codecName + " failed", e);
+            return null;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // never started
+                }
+                codec.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+
+    private void drawFrame(Surface surface, int frame, int width, int height, Random random) {
+        Canvas canvas = surface.lockHardwareCanvas();
+        try {
+            canvas.drawColor(Color.rgb(frame * 3 & 0xFF, 255 - frame * 5 & 0xFF, frame * 7 & 0xFF));
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                paint.setColor(0xFF000000 | random.nextInt());
+                float left = random.nextInt(width);
+                float top = (random.nextInt(height) + frame * 16) % height;
+                canvas.drawRect(left, top, left + width / 6f, top + height / 12f, paint);
+            }
+            paint.setColor(Color.BLACK);
+            canvas.drawText("Frame " + frame, width / 10f, height / 2f, paint);
+        } finally {
+            surface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    /**
+     * Releases the available output, without blocking for longer than {@code timeoutUs}.
+     *
+     * @return true on end of stream
+     */
+    private static boolean drain(
+        MediaCodec codec, MediaCodec.BufferInfo info, ThroughputProbe.Meter meter, long timeoutUs
+    ) {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) return false;
+            if (index < 0) continue;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                long nowUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+                meter.onOutput(info.size, info.presentationTimeUs, nowUs);
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return true;
+        }
+    }
+}
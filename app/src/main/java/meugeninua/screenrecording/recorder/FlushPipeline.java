@@ -0,0 +1,259 @@
+package meugeninua.screenrecording.recorder;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import meugeninua.screenrecording.utils.ExportFile;
+import meugeninua.screenrecording.utils.export.StallDetectingChannel;
+import meugeninua.screenrecording.utils.replay.ReplayLog;
+
+/**
+ * Writes snapshots out on its own I/O threads, away from the codec callback thread. The video
+ * mux and the audio write of one flush run in parallel, and at most {@link #MAX_PENDING_FLUSHES}
+ * flushes may be queued or running at once. FLAC frames are encoded on a separate pool, so the
+ * I/O threads never wait on tasks queued behind themselves.
+ */
+class FlushPipeline {
+
+    private static final int MAX_PENDING_FLUSHES = 2;
+    /** A stream write blocked for this long means the reader is gone, the flush fails then. */
+    private static final long STREAM_STALL_TIMEOUT_MS = 10_000L;
+    private static final int ENCODER_THREADS =
+        Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, FlushPipeline.class.getSimpleName());
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    /** Never shut down, a flush still running on the I/O threads may need it: idle threads expire. */
+    private final ThreadPoolExecutor encoder = new ThreadPoolExecutor(
+        ENCODER_THREADS, ENCODER_THREADS, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        runnable -> {
+            Thread thread = new Thread(runnable, FlushPipeline.class.getSimpleName() + "-flac");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    );
+    /** Watches stream writes, never shut down either: a queued stream flush may need it. */
+    private final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, FlushPipeline.class.getSimpleName() + "-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Semaphore pending = new Semaphore(MAX_PENDING_FLUSHES);
+
+    FlushPipeline() {
+        encoder.allowCoreThreadTimeOut(true);
+        watchdog.setKeepAliveTime(10L, TimeUnit.SECONDS);
+        watchdog.allowCoreThreadTimeOut(true);
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Muxes the video and writes the audio as FLAC or WAV, by the extension of the audio file,
+     * in parallel.
+     *
+     * @return false when too many flushes are pending, the snapshot and files are closed then
+     */
+    boolean submit(
+        ScreenRecorder.Snapshot snapshot, ExportFile videoFile, ExportFile audioFile, Callback callback
+    ) {
+        return submit(
+            snapshot::close, videoFile, audioFile, callback,
+            () -> snapshot.writeVideo(videoFile),
+            () -> snapshot.writeAudio(audioFile, encoder)
+        );
+    }
+
+    /**
+     * Writes video and audio into one fragmented MP4 file.
+     *
+     * @return false when too many flushes are pending, the snapshot and file are closed then
+     */
+    boolean submitMovie(ScreenRecorder.Snapshot snapshot, ExportFile movieFile, Callback callback) {
+        return submit(
+            snapshot::close, movieFile, null, callback,
+            () -> snapshot.writeMovie(movieFile.channel())
+        );
+    }
+
+    /**
+     * Streams video and audio as one fragmented MP4 into the write end of a pipe, which is closed
+     * once the clip is written, with an error if it couldn't be. The reader gets the first bytes
+     * while the rest is still being written. A reader that stops reading for
+     * {@link #STREAM_STALL_TIMEOUT_MS} fails the flush, which frees the snapshot and its slot.
+     *
+     * @return false when too many flushes are pending, the snapshot and pipe are closed then
+     */
+    boolean submitStream(ScreenRecorder.Snapshot snapshot, ParcelFileDescriptor sink, Callback callback) {
+        return submit(
+            () -> {
+                snapshot.close();
+                closeQuietly(sink);
+            },
+            null, null, callback,
+            () -> writeStream(snapshot, sink)
+        );
+    }
+
+    private long writeStream(ScreenRecorder.Snapshot snapshot, ParcelFileDescriptor sink)
+        throws IOException {
+        try {
+            long bytesWritten;
+            // closing the channel leaves the descriptor open, it belongs to the ParcelFileDescriptor
+            try (StallDetectingChannel channel = new StallDetectingChannel(
+                new FileOutputStream(sink.getFileDescriptor()).getChannel(),
+                STREAM_STALL_TIMEOUT_MS, watchdog
+            )) {
+                bytesWritten = snapshot.writeMovie(channel);
+            }
+            sink.close();
+            return bytesWritten;
+        } catch (IOException | RuntimeException e) {
+            // a reliable pipe hands the error over to the reader
+            sink.closeWithError(String.valueOf(e.getMessage()));
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor descriptor) {
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the window a dead process left in its replay log into one fragmented MP4 file,
+     * then deletes the log.
+     *
+     * @return false when too many flushes are pending, the log is deleted and the file closed then
+     */
+    boolean submitRecovery(File logDirectory, ExportFile movieFile, Callback callback) {
+        return submit(
+            () -> deleteReplayLog(logDirectory), movieFile, null, callback,
+            () -> writeRecovery(logDirectory, movieFile)
+        );
+    }
+
+    private static long writeRecovery(File logDirectory, ExportFile movieFile) throws IOException {
+        ReplayLog.Recovery recovery = ReplayLog.recover(logDirectory);
+        if (recovery == null) {
+            throw new IOException("Nothing to recover in " + logDirectory);
+        }
+        return recovery.writeTo(recovery.seconds(), movieFile.channel());
+    }
+
+    private static void deleteReplayLog(File logDirectory) {
+        try {
+            ReplayLog.delete(logDirectory);
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The files are published once every write succeeded, and closed, so deleted, otherwise.
+     *
+     * @param release called once every write is done, or right away when nothing was submitted
+     * @param videoFile null when the flush goes to a stream
+     * @param audioFile null when the audio goes into the video file
+     */
+    private boolean submit(
+        Runnable release, ExportFile videoFile, ExportFile audioFile, Callback callback,
+        Write... writes
+    ) {
+        if (!pending.tryAcquire()) {
+            release.run();
+            closeAll(videoFile, audioFile);
+            return false;
+        }
+        long startTimeNs = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(writes.length);
+        AtomicLong bytesWritten = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Runnable complete = () -> {
+            if (remaining.decrementAndGet() > 0) return;
+            release.run();
+            if (failure.get() == null) {
+                try {
+                    if (videoFile != null) videoFile.publish();
+                    if (audioFile != null) audioFile.publish();
+                } catch (IOException e) {
+                    Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+                    failure.set(e);
+                }
+            }
+            closeAll(videoFile, audioFile);
+            pending.release();
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNs);
+            if (failure.get() != null) {
+                callback.onFlushFailed(failure.get());
+            } else {
+                callback.onFlushed(new ScreenRecorderService.Result(
+                    videoFile != null ? videoFile.location() : null,
+                    audioFile != null ? audioFile.location() : null,
+                    durationMs, bytesWritten.get()
+                ));
+            }
+        };
+        for (Write write : writes) {
+            executor.execute(() -> {
+                try {
+                    bytesWritten.addAndGet(write.write());
+                } catch (Exception e) {
+                    Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+                    failure.compareAndSet(null, e);
+                } finally {
+                    complete.run();
+                }
+            });
+        }
+        return true;
+    }
+
+    private static void closeAll(ExportFile videoFile, ExportFile audioFile) {
+        if (videoFile != null) videoFile.close();
+        if (audioFile != null) audioFile.close();
+    }
+
+    /**
+     * Lets queued flushes finish, then stops the I/O threads. The encoder threads are left to
+     * expire once idle, the audio of a flush still queued needs them.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private interface Write {
+
+        /**
+         * @return number of bytes written
+         */
+        long write() throws Exception;
+    }
+
+    interface Callback {
+
+        void onFlushed(ScreenRecorderService.Result result);
+
+        void onFlushFailed(Exception e);
+    }
+}
@@ -0,0 +1,47 @@
+package meugeninua.screenrecording.recorder;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+import meugeninua.screenrecording.utils.CyclicVideoBuffer;
+import meugeninua.screenrecording.utils.SampleFlags;
+import meugeninua.screenrecording.utils.mp4.AnnexB;
+
+/**
+ * Feeds buffered samples into a {@link MediaMuxer} track, reusing a single
+ * {@link MediaCodec.BufferInfo}. Sample flags share the values of the codec buffer flags.
+ * Length-prefixed samples from the disk tier are turned back into Annex B in a reused buffer.
+ */
+class MediaMuxerSink implements CyclicVideoBuffer.SampleSink {
+
+    private final MediaMuxer muxer;
+    private final int trackIndex;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private ByteBuffer staging;
+
+    MediaMuxerSink(MediaMuxer muxer, int trackIndex) {
+        this.muxer = muxer;
+        this.trackIndex = trackIndex;
+    }
+
+    @Override
+    public void writeSample(
+        ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs
+    ) {
+        if ((flags & SampleFlags.LENGTH_PREFIXED) != 0) {
+            if (staging == null || staging.capacity() < size) {
+                staging = ByteBuffer.allocateDirect(Math.max(size, 1024 * 1024));
+            }
+            staging.clear();
+            AnnexB.toStartCodes(buffer, offset, offset + size, staging);
+            staging.flip();
+            buffer = staging;
+            offset = 0;
+            flags &= ~SampleFlags.LENGTH_PREFIXED;
+        }
+        info.set(offset, size, presentationTimeUs, flags);
+        muxer.writeSampleData(trackIndex, buffer, info);
+    }
+}
@@ -8,6 +8,7 @@ import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioPlaybackCaptureConfiguration;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
@@ -15,49 +16,214 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.Process;
 import android.util.Log;
 import android.view.Surface;
 
 import androidx.activity.result.ActivityResult;
 import androidx.annotation.NonNull;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import meugeninua.screenrecording.app.ContextSingleton;
 import meugeninua.screenrecording.recorder.audio.AudioRecordConfig;
 import meugeninua.screenrecording.recorder.audio.Source;
+import meugeninua.screenrecording.utils.BitrateController;
+import meugeninua.screenrecording.utils.CodecCache;
 import meugeninua.screenrecording.utils.CyclicAudioBuffer;
-import meugeninua.screenrecording.utils.CyclicVideoBuffer;
+import meugeninua.screenrecording.utils.EncoderCostModel;
+import meugeninua.screenrecording.utils.ExportFile;
+import meugeninua.screenrecording.utils.SceneChangeDetector;
+import meugeninua.screenrecording.utils.ThroughputProbe;
+import meugeninua.screenrecording.utils.TieredVideoBuffer;
+import meugeninua.screenrecording.utils.mp4.FragmentedMp4Writer;
+import meugeninua.screenrecording.utils.replay.ReplayLog;
 
 public class ScreenRecorder {
 
     public static final ScreenRecorder INSTANCE = new ScreenRecorder();
     public static final String TAG = ScreenRecorder.class.getSimpleName();
-    private static final String MIME_TYPE = "video/avc";
+    /** Cache key of the encoder selection, which considers every codec the buffer can hold. */
+    private static final String ANY_VIDEO_MIME_TYPE = "video/*";
+    /** Android 14, the first release MediaMuxer writes AV1 in MP4 on. */
+    private static final int AV1_MUXER_SDK = 34;
     private static final int SAMPLING_RATE_IN_HZ = 44100;
-
-    private static final Object SYNC = new Object();
-
-    private CyclicVideoBuffer videoBuffer;
+    /**
+     * Target bit rate of H.264 when memory allows, the controller never goes above it. Other
+     * codecs get the rate of the same quality, see {@link EncoderCostModel#bitRate}.
+     */
+    private static final int BIT_RATE = 6000000;
+    private static final int MIN_BIT_RATE = 1000000;
+    /** Share of the device memory the in-memory tier of the buffer may take, as its reciprocal. */
+    private static final int MEMORY_BUDGET_SHARE = 16;
+    private static final long MAX_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private static final int FRAME_RATE = 30;
+    /** Longer windows keep only this many newest seconds in memory, the rest goes to disk. */
+    private static final int MEMORY_SECONDS = 30;
+    /**
+     * Sync frame interval of the long group of pictures mode, which saves the sync frames of a
+     * mostly static screen and asks for one where a clip is likely to start instead.
+     */
+    private static final int LONG_GOP_SECONDS = 10;
+    /** Variable frame rate mode repeats the last frame this long after the screen went idle. */
+    private static final long IDLE_REPEAT_US = 1_000_000L;
+    /** A gap this long between frames counts as idle time. */
+    private static final long IDLE_GAP_US = 3_000_000L / FRAME_RATE;
+    /** Throughput probe of an encoder candidate, see {@link EncoderProbeRunner}. */
+    private static final long PROBE_DURATION_MS = 500L;
+    /** Candidates probed at most before the fastest one is taken, about two seconds. */
+    private static final int MAX_PROBE_RUNS = 4;
+    /** Halvings of the capture size each encoder is also offered at, should it not keep up. */
+    private static final int DOWNSCALE_STEPS = 1;
+    private static final String SEGMENT_DIRECTORY_NAME = "segments";
+    private static final String CODEC_CACHE_FILE_NAME = "codecs.cache";
+    /** Crash-safe log of the capture, deleted on a clean stop. */
+    public static final String REPLAY_DIRECTORY_NAME = "replay";
+
+    private static boolean segmentsCleared;
+    /** Audio written to a file with this extension is encoded as FLAC, see {@link Snapshot#writeAudio}. */
+    public static final String FLAC_EXTENSION = ".flac";
+    private static final AudioRecordConfig AUDIO_RECORD_CONFIG = new AudioRecordConfig(
+        AudioFormat.CHANNEL_IN_MONO,
+        SAMPLING_RATE_IN_HZ,
+        AudioFormat.ENCODING_PCM_16BIT
+    );
+
+    /** Swapped by start and stop, read by {@link #stats()} between them. */
+    private volatile TieredVideoBuffer videoBuffer;
     private CyclicAudioBuffer audioBuffer;
+    /** Allocates the memory of video buffers ahead of capture, off the codec callback thread. */
+    private final ThreadPoolExecutor slabAllocator = newSlabAllocator();
     private MediaFormat videoFormat;
+    private ReplayLog replayLog;
+    private int seconds;
+    private int syncFrameIntervalSeconds = 1;
+    private boolean variableFrameRate;
+    private boolean replayLogEnabled;
+    /** Initial target of the encoder, the buffer is sized for it. */
+    private int bitRate = BIT_RATE;
+    /** Span the in-memory tier is sized for, a group of pictures beyond its share of the window. */
+    private int memoryWindowSeconds;
 
     private MediaProjectionManager manager;
-    private MediaProjection projection;
+    private volatile MediaProjection projection;
     private VirtualDisplay virtualDisplay;
     private Surface surface;
     private MediaCodec mediaCodec;
+    private volatile MediaCodecCallback mediaCodecCallback;
+    private Handler codecHandler;
 
     private Thread audioThread;
     private Source audioSource;
 
-    public void setSeconds(int seconds) {
-        this.videoBuffer = new CyclicVideoBuffer(seconds);
-        this.audioBuffer = new CyclicAudioBuffer(seconds);
+    /**
+     * The video buffer is sized once the encoder is selected, for the bit rate of its codec.
+     *
+     * @param longGop encode a sync frame every {@link #LONG_GOP_SECONDS} instead of every second,
+     * plus one at each snapshot and at scene changes
+     */
+    public void setSeconds(int seconds, boolean longGop) {
+        this.seconds = seconds;
+        this.syncFrameIntervalSeconds = longGop ? LONG_GOP_SECONDS : 1;
+        this.memoryWindowSeconds = Math.min(seconds, MEMORY_SECONDS) + syncFrameIntervalSeconds - 1;
+        this.audioBuffer = AUDIO_RECORD_CONFIG.newBuffer(seconds);
+    }
+
+    /**
+     * Sizes the video buffer for the codec of the selected encoder, better compression takes
+     * less memory for the same window.
+     */
+    private void createVideoBuffer(String mimeType) throws IOException {
+        this.bitRate = BitrateController.fittingBitRate(
+            memoryBudget(), memoryWindowSeconds, EncoderCostModel.bitRate(mimeType, BIT_RATE)
+        );
+        Log.d(TAG, "Initial bit rate " + bitRate + " for " + mimeType);
+        if (videoBuffer != null) {
+            videoBuffer.close();
+        }
+        if (seconds > MEMORY_SECONDS) {
+            this.videoBuffer = new TieredVideoBuffer(
+                seconds, MEMORY_SECONDS, bitRate, FRAME_RATE, syncFrameIntervalSeconds,
+                createSegmentFile()
+            );
+        } else {
+            this.videoBuffer = new TieredVideoBuffer(seconds, bitRate, FRAME_RATE, syncFrameIntervalSeconds);
+        }
+        videoBuffer.setSlabAllocator(slabAllocator);
+    }
+
+    /**
+     * Never shut down, buffers of later recordings use it too: the idle thread expires.
+     */
+    private static ThreadPoolExecutor newSlabAllocator() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 10L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, ScreenRecorder.class.getSimpleName() + "-slabs");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Each buffer gets a file of its own, a snapshot of the last recording may still be writing out
+     * of the previous one. Files left behind by a process that died are cleared on first use.
+     */
+    private static synchronized File createSegmentFile() throws IOException {
+        File directory = ContextSingleton.getFilesFile(SEGMENT_DIRECTORY_NAME);
+        if (!segmentsCleared) {
+            File[] stale = directory.listFiles();
+            if (stale != null) {
+                for (File file : stale) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "Can't delete stale segment file " + file);
+                    }
+                }
+            }
+            segmentsCleared = true;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        return File.createTempFile("replay", ".segments", directory);
+    }
+
+    /**
+     * @param variableFrameRate let the encoder put out frames only when the screen changes, and
+     * the last one again after {@link #IDLE_REPEAT_US} of idle, instead of a steady frame rate
+     */
+    public void setVariableFrameRate(boolean variableFrameRate) {
+        this.variableFrameRate = variableFrameRate;
+    }
+
+    /**
+     * @param replayLogEnabled log the window to disk as well, see {@link ReplayLog}
+     */
+    public void setReplayLog(boolean replayLogEnabled) {
+        this.replayLogEnabled = replayLogEnabled;
+    }
+
+    private static long memoryBudget() {
+        return Math.min(MAX_MEMORY_BUDGET, ContextSingleton.getTotalMemory() / MEMORY_BUDGET_SHARE);
     }
 
     public void setManager(MediaProjectionManager manager) {
@@ -70,18 +236,53 @@ public class ScreenRecorder {
         this.projection = manager.getMediaProjection(
             result.getResultCode(), result.getData()
         );
-        List<CodecInfo> codecInfos = findCodecInfo(rect);
-        Log.d(TAG, "Found codec infos: " + codecInfos);
-        CodecInfo selectedCodecInfo = selectCodec(codecInfos);
+        CodecCache codecCache = new CodecCache(
+            ContextSingleton.getFilesFile(CODEC_CACHE_FILE_NAME), Build.FINGERPRINT
+        );
+        CodecInfo selectedCodecInfo = cachedCodecInfo(codecCache, rect);
+        if (selectedCodecInfo == null) {
+            List<CodecInfo> codecInfos = findCodecInfo(rect);
+            Log.d(TAG, "Found codec infos: " + codecInfos);
+            selectedCodecInfo = selectCodec(codecInfos, rect);
+            if (selectedCodecInfo == null) {
+                throw new IOException("No usable encoder for " + rect.width() + "x" + rect.height());
+            }
+            storeCodecInfo(codecCache, rect, selectedCodecInfo);
+        }
         Log.d(TAG, "Selected codec info: " + selectedCodecInfo);
-        videoFormat = buildMediaFormat(selectedCodecInfo.width, selectedCodecInfo.height);
+        createVideoBuffer(selectedCodecInfo.mimeType);
+        videoFormat = buildMediaFormat(selectedCodecInfo.mimeType, selectedCodecInfo.width, selectedCodecInfo.height);
         Log.d(TAG, "Original video format: " + videoFormat);
 
-        mediaCodec = MediaCodec.createByCodecName(selectedCodecInfo.name);
-        mediaCodec.setCallback(new MediaCodecCallback(mediaCodec, videoBuffer), handler);
-        mediaCodec.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        surface = mediaCodec.createInputSurface();
-        mediaCodec.start();
+        if (replayLogEnabled) {
+            replayLog = new ReplayLog(
+                ContextSingleton.getFilesFile(REPLAY_DIRECTORY_NAME), seconds,
+                selectedCodecInfo.width, selectedCodecInfo.height, bitRate,
+                AUDIO_RECORD_CONFIG.frequency(), AUDIO_RECORD_CONFIG.channelCount(), Process.myPid()
+            );
+            audioBuffer.setCaptureListener(new ReplayAudioListener(replayLog));
+        }
+
+        mediaCodecCallback = new MediaCodecCallback(
+            videoBuffer, replayLog,
+            // holds the output to what the buffer was sized for, so both tiers keep their share of the window
+            new BitrateController(
+                (long) bitRate / 8 * memoryWindowSeconds * 3 / 2, memoryWindowSeconds, bitRate, MIN_BIT_RATE
+            ),
+            buildSceneChangeDetector()
+        );
+        codecHandler = handler;
+        try {
+            mediaCodec = MediaCodec.createByCodecName(selectedCodecInfo.name);
+            mediaCodec.setCallback(mediaCodecCallback, handler);
+            mediaCodec.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = mediaCodec.createInputSurface();
+            mediaCodec.start();
+        } catch (IOException | RuntimeException e) {
+            // a cached encoder that went away or no longer takes the format, the next start looks for another
+            codecCache.remove(ANY_VIDEO_MIME_TYPE, rect.width(), rect.height());
+            throw e;
+        }
 
         virtualDisplay = projection.createVirtualDisplay(
             "Record", selectedCodecInfo.width, selectedCodecInfo.height,
@@ -93,61 +294,150 @@ public class ScreenRecorder {
             new AudioPlaybackCaptureConfiguration.Builder(projection)
             .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
             .build();
-        AudioRecordConfig audioRecordConfig = new AudioRecordConfig(
-            AudioFormat.CHANNEL_IN_MONO,
-            SAMPLING_RATE_IN_HZ,
-            AudioFormat.ENCODING_PCM_16BIT
-        );
-        this.audioSource = new Source(audioRecordConfig, captureConfiguration);
+        this.audioSource = new Source(AUDIO_RECORD_CONFIG, captureConfiguration);
 
         this.audioThread = new Thread(new AudioRunnable(audioSource, audioBuffer));
         this.audioThread.start();
     }
 
-    private CodecInfo selectCodec(List<CodecInfo> codecs) {
+    /**
+     * @return the encoder picked for this capture size on an earlier start, null when there was
+     * none on this build
+     */
+    private static CodecInfo cachedCodecInfo(CodecCache cache, Rect rect) {
+        CodecCache.Entry entry = cache.get(ANY_VIDEO_MIME_TYPE, rect.width(), rect.height());
+        if (entry == null) return null;
+        // hardware acceleration only matters for the choice, which is already made
+        CodecInfo info = new CodecInfo(
+            entry.mimeType, entry.name, entry.canonicalName, false, true, entry.width,
+            entry.height, entry.sliceHeight, entry.profile, entry.level
+        );
+        info.probe = entry.probe;
+        return info;
+    }
+
+    private static void storeCodecInfo(CodecCache cache, Rect rect, CodecInfo info) {
+        if (info == null) return;
+        try {
+            cache.put(ANY_VIDEO_MIME_TYPE, rect.width(), rect.height(), new CodecCache.Entry(
+                info.mimeType, info.name, info.canonicalName, info.width, info.height,
+                info.sliceHeight, info.profile, info.level, info.probe
+            ));
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Probes the candidates in order of {@link EncoderCostModel#cost}, hardware ones and better
+     * compression first, and takes the first that keeps up with the frame rate. Runs once per
+     * build and capture size, the choice and its probe are cached.
+     *
+     * @return the encoder and size to record with
+     */
+    private CodecInfo selectCodec(List<CodecInfo> codecs, Rect rect) {
         if (codecs == null || codecs.isEmpty()) return null;
-        String preferredCodec = "OMX.google.h264.encoder";
+        Map<CodecInfo, Double> costs = new HashMap<>();
         for (CodecInfo codecInfo : codecs) {
-            if (codecInfo.name.equals(preferredCodec)) return codecInfo;
+            costs.put(codecInfo, EncoderCostModel.cost(
+                codecInfo.mimeType, codecInfo.hardware,
+                rect.width(), rect.height(), codecInfo.width, codecInfo.height
+            ));
         }
-        return codecs.get(0);
+        List<CodecInfo> candidates = new ArrayList<>(codecs);
+        Collections.sort(
+            candidates, (first, second) -> Double.compare(costs.get(first), costs.get(second))
+        );
+        EncoderProbeRunner runner = new EncoderProbeRunner(FRAME_RATE, PROBE_DURATION_MS);
+        return ThroughputProbe.select(candidates, candidate -> {
+            MediaFormat format = buildMediaFormat(candidate.mimeType, candidate.width, candidate.height);
+            // the rate the codec would record at, the buffer is not sized yet
+            format.setInteger(
+                MediaFormat.KEY_BIT_RATE, EncoderCostModel.bitRate(candidate.mimeType, BIT_RATE)
+            );
+            candidate.probe = runner.run(candidate.name, format);
+            Log.d(TAG, "Probe of " + candidate + " at cost " + costs.get(candidate));
+            return candidate.probe;
+        }, FRAME_RATE, MAX_PROBE_RUNS);
+    }
+
+    /**
+     * @return mime types of the codecs the buffer and both writers can hold on this device
+     */
+    private static List<String> supportedMimeTypes() {
+        List<String> mimeTypes = new ArrayList<>();
+        mimeTypes.add(EncoderCostModel.AVC);
+        mimeTypes.add(EncoderCostModel.HEVC);
+        if (Build.VERSION.SDK_INT >= AV1_MUXER_SDK) {
+            mimeTypes.add(EncoderCostModel.AV1);
+        }
+        return mimeTypes;
     }
 
     private List<CodecInfo> findCodecInfo(Rect rect) {
         Log.d(TAG, String.format("Original size = %dx%d", rect.width(), rect.height()));
 
         MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-//        String defName = codecList.findEncoderForFormat(buildMediaFormat(width, height));
+        List<String> mimeTypes = supportedMimeTypes();
         List<CodecInfo> result = new ArrayList<>();
         for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
-            if (!codecInfo.isEncoder()) continue;
-            MediaCodecInfo.CodecCapabilities capabilities;
-            try {
-                capabilities = codecInfo.getCapabilitiesForType(MIME_TYPE);
-                MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities
-                    .getVideoCapabilities();
-                if (videoCapabilities == null) continue;
-                int newWidth = rect.width();
-                int newHeight = rect.height();
-                int sliceHeight = 1;
-                while (!videoCapabilities.getSupportedHeights().contains(newHeight) || !videoCapabilities.getSupportedWidths().contains(newWidth)) {
-                    sliceHeight *= 2;
-                    newWidth /= 2;
-                    newHeight /= 2;
+            // an alias is the same encoder under another name
+            if (!codecInfo.isEncoder() || codecInfo.isAlias()) continue;
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (!mimeTypes.contains(type)) continue;
+                for (CodecInfo info : findCodecInfo(codecInfo, type, rect)) {
+                    if (info.formatSupported) {
+                        result.add(info);
+                    }
                 }
-                newWidth = makeEvenValue(newWidth);
-                newHeight = makeEvenValue(newHeight);
-                CodecInfo info = new CodecInfo(
-                    codecInfo.getName(), codecInfo.getCanonicalName(),
-                    capabilities.isFormatSupported(buildMediaFormat(newWidth, newHeight)),
-                    newWidth, newHeight, sliceHeight
-                );
-                if (info.formatSupported) {
-                    result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the encoder with the capture scaled down until it supports the size, and at up to
+     * {@link #DOWNSCALE_STEPS} halvings of that, none when it fails to tell its capabilities
+     */
+    private List<CodecInfo> findCodecInfo(MediaCodecInfo codecInfo, String mimeType, Rect rect) {
+        List<CodecInfo> result = new ArrayList<>();
+        MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = codecInfo.getCapabilitiesForType(mimeType);
+            MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities
+                .getVideoCapabilities();
+            if (videoCapabilities == null) return result;
+            int newWidth = rect.width();
+            int newHeight = rect.height();
+            int sliceHeight = 1;
+            while (!videoCapabilities.getSupportedHeights().contains(newHeight) || !videoCapabilities.getSupportedWidths().contains(newWidth)) {
+                sliceHeight *= 2;
+                newWidth /= 2;
+                newHeight /= 2;
+            }
+            MediaCodecInfo.CodecProfileLevel profileLevel = new MediaCodecInfo.CodecProfileLevel();
+            for (MediaCodecInfo.CodecProfileLevel item : capabilities.profileLevels) {
+                if (item.profile > profileLevel.profile
+                    || item.profile == profileLevel.profile && item.level > profileLevel.level) {
+                    profileLevel = item;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage(), e);
             }
+            for (int step = 0; step <= DOWNSCALE_STEPS; step++) {
+                int width = makeEvenValue(newWidth);
+                int height = makeEvenValue(newHeight);
+                if (step > 0 && !videoCapabilities.isSizeSupported(width, height)) break;
+                result.add(new CodecInfo(
+                    mimeType, codecInfo.getName(), codecInfo.getCanonicalName(),
+                    codecInfo.isHardwareAccelerated(),
+                    capabilities.isFormatSupported(buildMediaFormat(mimeType, width, height)),
+                    width, height, sliceHeight, profileLevel.profile, profileLevel.level
+                ));
+                sliceHeight *= 2;
+                newWidth /= 2;
+                newHeight /= 2;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
         }
         return result;
     }
@@ -156,14 +446,30 @@ public class ScreenRecorder {
         return value % 2 == 0 ? value : value - 1;
     }
 
-    private MediaFormat buildMediaFormat(int width, int height) {
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, 6000000);
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+    /**
+     * @return null when the encoder puts out a sync frame every second on its own
+     */
+    private SceneChangeDetector buildSceneChangeDetector() {
+        if (!variableFrameRate) {
+            return syncFrameIntervalSeconds > 1 ? new SceneChangeDetector(bitRate, FRAME_RATE) : null;
+        }
+        // the encoder counts its interval in frames, which are sparse on an idle screen
+        return new SceneChangeDetector(
+            bitRate, FRAME_RATE, TimeUnit.SECONDS.toMicros(syncFrameIntervalSeconds)
+        );
+    }
+
+    private MediaFormat buildMediaFormat(String mimeType, int width, int height) {
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mimeType, width, height);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         //mediaFormat.setInteger(MediaFormat.KEY_CAPTURE_RATE, 30);
-        //mediaFormat.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000 / 30);
+        if (variableFrameRate) {
+            mediaFormat.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, IDLE_REPEAT_US);
+            mediaFormat.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, FRAME_RATE);
+        }
         //mediaFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, syncFrameIntervalSeconds);
         //mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_RANGE, MediaFormat.COLOR_RANGE_LIMITED);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_STANDARD, MediaFormat.COLOR_STANDARD_BT709);
@@ -171,84 +477,337 @@ public class ScreenRecorder {
         return mediaFormat;
     }
 
+    /**
+     * @return true from the start of capture until {@link #stopRecording()}
+     */
+    public boolean isRecording() {
+        return projection != null;
+    }
+
+    /**
+     * Stops capture without taking any lock the encoder output path could wait on. The callback
+     * is told to stop first, and the codec is torn down on its own callback thread, so teardown
+     * runs strictly after the last output callback instead of racing with it.
+     */
     public void stopRecording() {
-        synchronized (SYNC) {
-            if (projection != null) {
-                projection.stop();
-            }
-            projection = null;
-            if (audioThread != null) {
-                audioThread.interrupt();
-            }
-            audioThread = null;
-            if (virtualDisplay != null) {
-                virtualDisplay.release();
-            }
-            virtualDisplay = null;
-            if (mediaCodec != null) {
-                mediaCodec.stop();
-                mediaCodec.release();
-            }
-            mediaCodec = null;
-            if (surface != null) {
-                surface.release();
-            }
-            surface = null;
+        if (mediaCodecCallback != null) {
+            mediaCodecCallback.stop();
+        }
+        mediaCodecCallback = null;
+        if (projection != null) {
+            projection.stop();
+        }
+        projection = null;
+        if (audioThread != null) {
+            audioThread.interrupt();
+        }
+        audioThread = null;
+        if (virtualDisplay != null) {
+            virtualDisplay.release();
+        }
+        virtualDisplay = null;
+
+        MediaCodec codec = mediaCodec;
+        Surface codecSurface = surface;
+        ReplayLog log = replayLog;
+        mediaCodec = null;
+        surface = null;
+        replayLog = null;
+        if (codec != null) {
+            codecHandler.post(() -> {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // a start that failed before the codec ran
+                }
+                codec.release();
+                if (codecSurface != null) {
+                    codecSurface.release();
+                }
+                deleteReplayLog(log);
+            });
+        } else {
+            deleteReplayLog(log);
+        }
+    }
+
+    /**
+     * A clean stop leaves nothing to recover, only a log left by a dead process is.
+     */
+    private static void deleteReplayLog(ReplayLog log) {
+        if (log == null) return;
+        try {
+            log.close();
+            ReplayLog.delete(ContextSingleton.getFilesFile(REPLAY_DIRECTORY_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Asks the encoder for a sync frame as soon as it can, so that a clip may start right after
+     * now instead of up to a whole long group of pictures earlier. Does nothing when every second
+     * has a sync frame anyway. Any thread.
+     */
+    public void requestSyncFrame() {
+        MediaCodec codec = mediaCodec;
+        if (codec == null || syncFrameIntervalSeconds == 1) return;
+        requestSyncFrame(codec);
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        setParameters(codec, params);
+    }
+
+    private static void setParameters(MediaCodec codec, Bundle params) {
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            // stopped meanwhile, there is nothing left to adjust
+            Log.w(TAG, e.getMessage(), e);
         }
     }
 
-    public void flashTo(String videoPath, String audioPath) throws IOException {
-        CyclicVideoBuffer.State videoState = videoBuffer.cloneState();
+    /**
+     * Reads the stats of the window in constant time from counters the codec callback publishes,
+     * without a snapshot: pinning the window would make capture drop frames.
+     */
+    Stats stats() {
+        TieredVideoBuffer buffer = videoBuffer;
+        MediaCodecCallback callback = mediaCodecCallback;
+        long encodedFrames = callback == null ? 0L : callback.encodedFrames;
+        long idleMs = callback == null ? 0L : TimeUnit.MICROSECONDS.toMillis(callback.idleUs);
+        if (buffer == null) {
+            return new Stats(0L, 0L, 0L, encodedFrames, 0L, idleMs);
+        }
+        return new Stats(
+            TimeUnit.MICROSECONDS.toMillis(buffer.windowDurationUs()),
+            buffer.windowByteCount(), buffer.memoryBytes(), encodedFrames, buffer.droppedSamples(), idleMs
+        );
+    }
+
+    /**
+     * Takes consistent snapshots of both buffers in constant time, the audio one clipped to the
+     * time span of the video one. Capture keeps running while the snapshot is written out, with a
+     * sync frame requested right away, so the clip of the next snapshot may start where this one
+     * ends.
+     */
+    public Snapshot takeSnapshot() {
+        TieredVideoBuffer.State videoState = videoBuffer.cloneState();
+        CyclicAudioBuffer.State audioState = audioBuffer.cloneState();
+        requestSyncFrame();
+        if (videoState.sampleCount() > 0) {
+            audioState.clip(videoState.startTimeUs(), videoState.endTimeUs());
+        }
+        return new Snapshot(videoState, audioState, videoFormat, audioSource);
+    }
+
+    /**
+     * Takes a snapshot of {@code durationMs} of the window from {@code startOffsetMs} after its
+     * oldest frame, started on the sync frame before. Costs the same whatever the window length,
+     * only the clip is written out.
+     */
+    public Snapshot takeSnapshot(long startOffsetMs, long durationMs) {
+        TieredVideoBuffer.State videoState = videoBuffer.cloneState();
         CyclicAudioBuffer.State audioState = audioBuffer.cloneState();
+        requestSyncFrame();
+        if (videoState.sampleCount() > 0) {
+            long startTimeUs = videoState.startTimeUs() + TimeUnit.MILLISECONDS.toMicros(startOffsetMs);
+            videoState.clip(startTimeUs, startTimeUs + TimeUnit.MILLISECONDS.toMicros(durationMs));
+            audioState.clip(videoState.startTimeUs(), videoState.endTimeUs());
+        }
+        return new Snapshot(videoState, audioState, videoFormat, audioSource);
+    }
 
-        MediaMuxer muxer = new MediaMuxer(videoPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        int videoIndex = muxer.addTrack(videoFormat);
-        muxer.start();
-        videoState.writeTo(muxer, videoIndex);
-        muxer.stop();
-        muxer.release();
+    public static class Snapshot implements Closeable {
 
-        audioState.writeToWav(audioSource, audioPath);
+        private final TieredVideoBuffer.State videoState;
+        private final CyclicAudioBuffer.State audioState;
+        private final MediaFormat videoFormat;
+        private final Source audioSource;
+
+        private Snapshot(
+            TieredVideoBuffer.State videoState, CyclicAudioBuffer.State audioState,
+            MediaFormat videoFormat, Source audioSource
+        ) {
+            this.videoState = videoState;
+            this.audioState = audioState;
+            this.videoFormat = videoFormat;
+            this.audioSource = audioSource;
+        }
+
+        /**
+         * Muxes the video snapshot and unpins it.
+         *
+         * @return number of bytes written
+         */
+        public long writeVideo(ExportFile videoFile) throws IOException {
+            try {
+                MediaMuxer muxer = new MediaMuxer(
+                    videoFile.fileDescriptor(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4
+                );
+                int videoIndex = muxer.addTrack(videoFormat);
+                muxer.start();
+                Log.d(TAG, "samples = " + videoState.sampleCount());
+                videoState.writeTo(new MediaMuxerSink(muxer, videoIndex));
+                muxer.stop();
+                muxer.release();
+            } finally {
+                videoState.close();
+            }
+            return videoFile.channel().size();
+        }
+
+        /**
+         * Writes video and audio into one fragmented MP4 file, written front to back so the
+         * channel may be a pipe, and unpins both.
+         *
+         * @return number of bytes written
+         */
+        public long writeMovie(WritableByteChannel channel) throws IOException {
+            try {
+                AudioRecordConfig config = audioSource.config();
+                FragmentedMp4Writer writer = new FragmentedMp4Writer(
+                    channel,
+                    videoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    videoFormat.getInteger(MediaFormat.KEY_HEIGHT)
+                ).withAudio(
+                    config.frequency(), config.channelCount(), audioState.frameCount(),
+                    audioState::writeTo
+                );
+                videoState.writeTo(writer);
+                return writer.finish();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Writes the audio snapshot as FLAC when the file name ends with {@code .flac}, as WAV
+         * otherwise, and unpins it.
+         *
+         * @param encoder encodes runs of FLAC frames in parallel, null to encode on this thread
+         * @return number of bytes written
+         */
+        public long writeAudio(ExportFile audioFile, ExecutorService encoder) throws IOException {
+            try {
+                int channelCount = audioSource.config().channelCount();
+                if (audioFile.name().endsWith(FLAC_EXTENSION)) {
+                    return audioState.writeToFlac(audioFile.channel(), channelCount, encoder);
+                }
+                return audioState.writeToWav(audioFile.channel(), channelCount);
+            } finally {
+                audioState.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            videoState.close();
+            audioState.close();
+        }
     }
 
     private static class CodecInfo {
+        final String mimeType;
         final String name;
         final String canonicalName;
+        final boolean hardware;
         final boolean formatSupported;
         final int width;
         final int height;
         final int sliceHeight;
+        final int profile;
+        final int level;
+        /** What the encoder achieved at this size, null until it is probed. */
+        ThroughputProbe.Result probe;
 
-        public CodecInfo(String name, String canonicalName, boolean formatSupported, int width, int height, int sliceHeight) {
+        public CodecInfo(String mimeType, String name, String canonicalName, boolean hardware, boolean formatSupported, int width, int height, int sliceHeight, int profile, int level) {
+            this.mimeType = mimeType;
             this.name = name;
             this.canonicalName = canonicalName;
+            this.hardware = hardware;
             this.formatSupported = formatSupported;
             this.width = width;
             this.height = height;
             this.sliceHeight = sliceHeight;
+            this.profile = profile;
+            this.level = level;
         }
 
         @Override
         public String toString() {
             return "CodecInfo{" +
-                "name='" + name + '\'' +
+                "mimeType='" + mimeType + '\'' +
+                ", name='" + name + '\'' +
                 ", canonicalName='" + canonicalName + '\'' +
+                ", hardware=" + hardware +
                 ", formatSupported=" + formatSupported +
                 ", width=" + width +
                 ", height=" + height +
                 ", sliceHeight=" + sliceHeight +
+                ", profile=" + profile +
+                ", level=" + level +
+                ", probe=" + probe +
                 '}';
         }
     }
 
-    private static class MediaCodecCallback extends MediaCodec.Callback {
+    static class Stats {
+        final long bufferedMs;
+        final long bufferedBytes;
+        /** Memory taken by the buffer, which grows with the bytes stored up to its capacity. */
+        final long memoryBytes;
+        /** Frames put out by the encoder of the current recording. */
+        final long encodedFrames;
+        final long droppedFrames;
+        /** Time the screen did not change during the current recording. */
+        final long idleMs;
+
+        Stats(
+            long bufferedMs, long bufferedBytes, long memoryBytes, long encodedFrames,
+            long droppedFrames, long idleMs
+        ) {
+            this.bufferedMs = bufferedMs;
+            this.bufferedBytes = bufferedBytes;
+            this.memoryBytes = memoryBytes;
+            this.encodedFrames = encodedFrames;
+            this.droppedFrames = droppedFrames;
+            this.idleMs = idleMs;
+        }
+    }
 
-        private final MediaCodec mediaCodec;
-        private final CyclicVideoBuffer buffer;
+    private static class MediaCodecCallback extends MediaCodec.Callback {
 
-        public MediaCodecCallback(MediaCodec mediaCodec, CyclicVideoBuffer buffer) {
-            this.mediaCodec = mediaCodec;
+        private final TieredVideoBuffer buffer;
+        private final BitrateController bitrateController;
+        /** Null when sync frames come often enough on their own. */
+        private final SceneChangeDetector sceneChangeDetector;
+        private ReplayLog replayLog;
+        private volatile boolean stopped;
+        /** Written by the callback thread only. */
+        volatile long encodedFrames;
+        /** Sum of the gaps between frames of at least {@link #IDLE_GAP_US}, callback thread only. */
+        volatile long idleUs;
+        private long lastFrameTimeUs = -1L;
+
+        public MediaCodecCallback(
+            TieredVideoBuffer buffer, ReplayLog replayLog, BitrateController bitrateController,
+            SceneChangeDetector sceneChangeDetector
+        ) {
             this.buffer = buffer;
+            this.replayLog = replayLog;
+            this.bitrateController = bitrateController;
+            this.sceneChangeDetector = sceneChangeDetector;
+        }
+
+        /**
+         * Makes later callbacks skip the buffer, their output buffers go away with the codec.
+         */
+        public void stop() {
+            stopped = true;
         }
 
         @Override
@@ -258,19 +817,62 @@ public class ScreenRecorder {
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-            synchronized (SYNC) {
-                Log.d(TAG, "Output buffer available, index = " + index + ", info = " + info);
-
-                try {
-                    ByteBuffer encodedData = mediaCodec.getOutputBuffer(index);
-                    encodedData.position(info.offset);
-                    encodedData.limit(info.offset + info.size);
-
-                    buffer.add(encodedData, info);
-                    mediaCodec.releaseOutputBuffer(index, false);
-                } catch (Exception e) {
-                    Log.e(TAG, e.getMessage(), e);
+            if (stopped) return;
+            try {
+                ByteBuffer encodedData = codec.getOutputBuffer(index);
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
+
+                // the buffer is the single-producer handoff itself: snapshots read it without
+                // locking, so stop and flush never hold this thread up, and a queue in between
+                // would only add a copy. Codec buffer flags share their values with SampleFlags
+                buffer.add(encodedData, info.flags, info.presentationTimeUs);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    encodedFrames++;
+                    trackIdle(info.presentationTimeUs);
+                    if (sceneChangeDetector != null && sceneChangeDetector.onFrame(
+                        info.size, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0,
+                        info.presentationTimeUs
+                    )) {
+                        requestSyncFrame(codec);
+                    }
+                    adjustBitRate(codec, info);
                 }
+                encodedData.position(info.offset);
+                appendToReplayLog(encodedData, info);
+                codec.releaseOutputBuffer(index, false);
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+
+        private void trackIdle(long presentationTimeUs) {
+            long gapUs = presentationTimeUs - lastFrameTimeUs;
+            if (lastFrameTimeUs >= 0L && gapUs >= IDLE_GAP_US) {
+                idleUs += gapUs;
+            }
+            lastFrameTimeUs = presentationTimeUs;
+        }
+
+        private void adjustBitRate(MediaCodec codec, MediaCodec.BufferInfo info) {
+            int bitRate = bitrateController.onFrame(info.size, info.presentationTimeUs);
+            if (bitRate == 0) return;
+            Log.d(TAG, "Bit rate changed to " + bitRate);
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            setParameters(codec, params);
+        }
+
+        /**
+         * A failing log only costs crash safety, the buffer keeps recording without it.
+         */
+        private void appendToReplayLog(ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+            if (replayLog == null) return;
+            try {
+                replayLog.appendVideo(encodedData, info.flags, info.presentationTimeUs);
+            } catch (IOException e) {
+                Log.e(TAG, "Replay log stopped: " + e.getMessage(), e);
+                replayLog = null;
             }
         }
 
@@ -285,6 +887,27 @@ public class ScreenRecorder {
         }
     }
 
+    private static class ReplayAudioListener implements CyclicAudioBuffer.CaptureListener {
+
+        private ReplayLog replayLog;
+
+        ReplayAudioListener(ReplayLog replayLog) {
+            this.replayLog = replayLog;
+        }
+
+        @Override
+        public void onCaptured(byte[] buffer, int offset, int length, long presentationTimeUs) {
+            // nothing to place it by until capture reports its first timestamp
+            if (replayLog == null || presentationTimeUs < 0) return;
+            try {
+                replayLog.appendAudio(buffer, offset, length, presentationTimeUs);
+            } catch (IOException e) {
+                Log.e(TAG, "Replay audio log stopped: " + e.getMessage(), e);
+                replayLog = null;
+            }
+        }
+    }
+
     private static class AudioRunnable implements Runnable {
 
         private final Source audioSource;
@@ -301,16 +924,18 @@ public class ScreenRecorder {
             audioRecord.startRecording();
 
             try {
-                audioBuffer.start();
-                byte[] bytes = new byte[audioSource.bufferSizeInBytes()];
+                AudioTimestamp timestamp = new AudioTimestamp();
+                CyclicAudioBuffer.PcmSource pcmSource = audioRecord::read;
                 while (!Thread.interrupted()) {
-                    int count = audioRecord.read(bytes, 0, audioSource.bufferSizeInBytes());
-                    Log.d(TAG, String.format("Read %d bytes", count));
-                    // Log.d(TAG, Arrays.toString(bytes));
+                    int count = audioBuffer.read(pcmSource, audioSource.bufferSizeInBytes());
                     if (count < 0) {
+                        Log.w(TAG, "Audio capture stopped with code " + count);
                         break;
                     }
-                    audioBuffer.addBuffer(bytes, count);
+                    // same monotonic clock as the presentation times of the surface encoder
+                    if (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+                        audioBuffer.setTimestamp(timestamp.framePosition, timestamp.nanoTime / 1000L);
+                    }
                 }
             } finally {
                 audioRecord.stop();
@@ -24,7 +24,11 @@ public class ScreenRecorderParams implements Parcelable {
             return new ScreenRecorderParams(
                 source.readInt(),
                 source.readParcelable(loader),
-                source.readParcelable(loader)
+                source.readParcelable(loader),
+                source.readInt() != 0,
+                source.readInt() != 0,
+                source.readInt() != 0,
+                source.readInt() != 0
             );
         }
     };
@@ -32,11 +36,61 @@ public class ScreenRecorderParams implements Parcelable {
     private final int seconds;
     private final ActivityResult activityResult;
     private final Rect rect;
+    private final boolean fragmentedMp4;
+    private final boolean longGop;
+    private final boolean variableFrameRate;
+    private final boolean replayLog;
 
     public ScreenRecorderParams(int seconds, ActivityResult activityResult, Rect rect) {
+        this(seconds, activityResult, rect, false);
+    }
+
+    /**
+     * @param fragmentedMp4 flush video and audio into one fragmented MP4 file instead of an MP4
+     * muxed by {@code MediaMuxer} plus a WAV file
+     */
+    public ScreenRecorderParams(
+        int seconds, ActivityResult activityResult, Rect rect, boolean fragmentedMp4
+    ) {
+        this(seconds, activityResult, rect, fragmentedMp4, false);
+    }
+
+    /**
+     * @param longGop encode a sync frame every ten seconds instead of every second, and one on
+     * each flush and scene change, a static screen then takes a fraction of the buffer
+     */
+    public ScreenRecorderParams(
+        int seconds, ActivityResult activityResult, Rect rect, boolean fragmentedMp4, boolean longGop
+    ) {
+        this(seconds, activityResult, rect, fragmentedMp4, longGop, false);
+    }
+
+    /**
+     * @param variableFrameRate encode frames only when the screen changes, an idle screen then
+     * takes next to nothing of the buffer and of the encoder
+     */
+    public ScreenRecorderParams(
+        int seconds, ActivityResult activityResult, Rect rect, boolean fragmentedMp4,
+        boolean longGop, boolean variableFrameRate
+    ) {
+        this(seconds, activityResult, rect, fragmentedMp4, longGop, variableFrameRate, false);
+    }
+
+    /**
+     * @param replayLog keep a copy of the window on disk while recording, so a process that dies
+     * leaves it to be recovered on the next start, at the cost of writing every frame twice
+     */
+    public ScreenRecorderParams(
+        int seconds, ActivityResult activityResult, Rect rect, boolean fragmentedMp4,
+        boolean longGop, boolean variableFrameRate, boolean replayLog
+    ) {
         this.seconds = seconds;
         this.activityResult = activityResult;
         this.rect = rect;
+        this.fragmentedMp4 = fragmentedMp4;
+        this.longGop = longGop;
+        this.variableFrameRate = variableFrameRate;
+        this.replayLog = replayLog;
         if (seconds <= 0) {
             throw new IllegalArgumentException("Not valid value for seconds: " + seconds);
         }
@@ -54,6 +108,22 @@ public class ScreenRecorderParams implements Parcelable {
         return rect;
     }
 
+    public boolean isFragmentedMp4() {
+        return fragmentedMp4;
+    }
+
+    public boolean isLongGop() {
+        return longGop;
+    }
+
+    public boolean isVariableFrameRate() {
+        return variableFrameRate;
+    }
+
+    public boolean isReplayLog() {
+        return replayLog;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -64,5 +134,9 @@ public class ScreenRecorderParams implements Parcelable {
         dest.writeInt(seconds);
         dest.writeParcelable(activityResult, flags);
         dest.writeParcelable(rect, flags);
+        dest.writeInt(fragmentedMp4 ? 1 : 0);
+        dest.writeInt(longGop ? 1 : 0);
+        dest.writeInt(variableFrameRate ? 1 : 0);
+        dest.writeInt(replayLog ? 1 : 0);
     }
 }
@@ -5,7 +5,6 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
 import android.content.res.Configuration;
 import android.media.projection.MediaProjectionManager;
@@ -13,6 +12,9 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -21,13 +23,18 @@ import androidx.core.app.NotificationChannelCompat;
 import androidx.core.app.NotificationChannelGroupCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import meugeninua.screenrecording.MainActivity;
 import meugeninua.screenrecording.R;
 import meugeninua.screenrecording.app.ContextSingleton;
+import meugeninua.screenrecording.utils.ExportFile;
+import meugeninua.screenrecording.utils.replay.ReplayLog;
 
 public class ScreenRecorderService extends Service {
 
@@ -36,6 +43,10 @@ public class ScreenRecorderService extends Service {
 
     private static final int SERVICE_ID = 1;
 
+    private static final String VIDEO_MIME_TYPE = "video/mp4";
+    private static final String FLAC_MIME_TYPE = "audio/flac";
+    private static final long STATS_INTERVAL_MS = 1000L;
+
     public static Intent buildIntent(Context context) {
         return new Intent(context, ScreenRecorderService.class);
     }
@@ -43,10 +54,23 @@ public class ScreenRecorderService extends Service {
     private ScreenRecorder screenRecorder;
     private HandlerThread handlerThread;
     private Handler handler;
+    private FlushPipeline flushPipeline;
 
     private volatile boolean canStart;
     private volatile boolean canStop;
     private volatile boolean canFlush;
+    private volatile boolean fragmentedMp4;
+    /** Moves on with every stop, a start posted before it sees that and gives up. */
+    private final AtomicInteger recordingGeneration = new AtomicInteger();
+
+    private final RemoteCallbackList<IScreenRecorderListener> listeners = new RemoteCallbackList<>();
+    /** Flushes finished since the last update, guarded by {@link #listeners}. */
+    private final List<Result> flushResults = new ArrayList<>();
+    private int failedFlushes;
+    private boolean updateScheduled;
+    /** Read and written on the handler thread only. */
+    private long lastEncodedFrames;
+    private long lastStatsTimeNs;
 
     @Override
     public void onCreate() {
@@ -56,6 +80,46 @@ public class ScreenRecorderService extends Service {
         handlerThread = new HandlerThread(getClass().getSimpleName());
         handlerThread.start();
         handler = new Handler(handlerThread.getLooper());
+        flushPipeline = new FlushPipeline();
+        recoverReplayLog();
+    }
+
+    /**
+     * A replay log outlives only a process that died while recording. Its window is written out
+     * like a flush, from a directory of its own, so a new recording can start right away. The
+     * service may be created again while the recorder of this process still runs, its log is
+     * left alone then.
+     */
+    private void recoverReplayLog() {
+        if (screenRecorder.isRecording()) return;
+        File logDirectory = ContextSingleton.getFilesFile(ScreenRecorder.REPLAY_DIRECTORY_NAME);
+        try {
+            if (!ReplayLog.isAbandoned(logDirectory, Process.myPid())) return;
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            return;
+        }
+        File recoveredDirectory = ContextSingleton.getFilesFile(
+            ScreenRecorder.REPLAY_DIRECTORY_NAME + ".recovered"
+        );
+        try {
+            ReplayLog.delete(recoveredDirectory);
+            if (!logDirectory.renameTo(recoveredDirectory)) {
+                throw new IOException("Can't move replay log " + logDirectory);
+            }
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            return;
+        }
+        ExportFile videoFile;
+        try {
+            videoFile = ExportFile.create(this, Environment.DIRECTORY_MOVIES, ".mp4", VIDEO_MIME_TYPE);
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            return;
+        }
+        Log.d(ScreenRecorder.TAG, "Recovering replay log into " + videoFile.location());
+        flushPipeline.submitRecovery(recoveredDirectory, videoFile, flushCallback);
     }
 
     @Override
@@ -67,6 +131,82 @@ public class ScreenRecorderService extends Service {
         this.canStart = canStart;
         this.canStop = canStop;
         this.canFlush = canFlush;
+        scheduleUpdate();
+    }
+
+    /**
+     * Posts one update to the listeners, unless one is posted already: everything that happens
+     * before it is delivered goes out with it.
+     */
+    private void scheduleUpdate() {
+        Handler handler = this.handler;
+        if (handler == null) return;
+        synchronized (listeners) {
+            if (updateScheduled) return;
+            updateScheduled = true;
+        }
+        handler.post(this::dispatchUpdate);
+    }
+
+    private void dispatchUpdate() {
+        String[] videoPaths;
+        String[] audioPaths;
+        int failed;
+        synchronized (listeners) {
+            updateScheduled = false;
+            videoPaths = new String[flushResults.size()];
+            audioPaths = new String[flushResults.size()];
+            for (int i = 0; i < videoPaths.length; i++) {
+                videoPaths[i] = flushResults.get(i).getVideoPath();
+                audioPaths[i] = flushResults.get(i).getAudioPath();
+            }
+            flushResults.clear();
+            failed = failedFlushes;
+            failedFlushes = 0;
+        }
+        ScreenRecorder.Stats stats = screenRecorder.stats();
+        long nowNs = System.nanoTime();
+        float framesPerSecond = 0f;
+        if (lastStatsTimeNs != 0L && stats.encodedFrames >= lastEncodedFrames && nowNs > lastStatsTimeNs) {
+            framesPerSecond = (stats.encodedFrames - lastEncodedFrames) * 1e9f / (nowNs - lastStatsTimeNs);
+        }
+        lastEncodedFrames = stats.encodedFrames;
+        lastStatsTimeNs = nowNs;
+
+        ScreenRecorderUpdate update = new ScreenRecorderUpdate(
+            buildCurrentState(), stats.bufferedMs, stats.bufferedBytes, stats.memoryBytes,
+            framesPerSecond, stats.droppedFrames, stats.idleMs, videoPaths, audioPaths, failed
+        );
+        int count = listeners.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    // oneway, returns as soon as the parcel is queued
+                    listeners.getBroadcastItem(i).onUpdate(update);
+                } catch (RemoteException e) {
+                    Log.w(ScreenRecorder.TAG, e.getMessage(), e);
+                }
+            }
+        } finally {
+            listeners.finishBroadcast();
+        }
+    }
+
+    /**
+     * Sends stats every {@link #STATS_INTERVAL_MS} while recording and anyone listens.
+     */
+    private final Runnable statsTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!canStop || listeners.getRegisteredCallbackCount() == 0) return;
+            scheduleUpdate();
+            handler.postDelayed(this, STATS_INTERVAL_MS);
+        }
+    };
+
+    private void startStatsTicks() {
+        handler.removeCallbacks(statsTick);
+        handler.postDelayed(statsTick, STATS_INTERVAL_MS);
     }
 
     private ScreenRecorderState buildCurrentState() {
@@ -109,54 +249,169 @@ public class ScreenRecorderService extends Service {
             throw new RemoteException("Can't process start recording");
         }
         startForeground();
+        fragmentedMp4 = params.isFragmentedMp4();
 
+        int generation = recordingGeneration.get();
         handler.postDelayed(
-            () -> startMediaProjection(params), 100L
+            () -> startMediaProjection(params, generation), 100L
         );
-        setupCurrentState(false, true, true);
+        // flushes wait for the buffers, they are made once the encoder is picked
+        setupCurrentState(false, true, false);
+        startStatsTicks();
     }
 
     private void stopRecording() throws RemoteException {
         if (!canStop) {
             throw new RemoteException("Can't process stop recording");
         }
-        screenRecorder.stopRecording();
+        recordingGeneration.incrementAndGet();
+        // on the handler thread, after a start that is already running there: one still queued
+        // finds the generation changed and never starts
+        handler.post(screenRecorder::stopRecording);
         stopForeground(true);
-        setupCurrentState(true, false, true);
+        // the buffers stay for flushes, if recording got as far as making them
+        setupCurrentState(true, false, canFlush);
     }
 
     private void flushRecording() throws RemoteException {
         if (!canFlush) {
             throw new RemoteException("Can't process flush recorded video");
         }
-        handler.post(this::flushRecordingAsync);
+        // the snapshot is taken right away, so the clip ends when flush was asked for
+        flushSnapshot(screenRecorder.takeSnapshot());
     }
 
-    private void flushRecordingAsync() {
-        String videoFile = ContextSingleton.getOutputFileName(Environment.DIRECTORY_MOVIES, ".mp4");
-        String audioFile = ContextSingleton.getOutputFileName(Environment.DIRECTORY_MUSIC, ".wav");
+    private void flushRecordingRange(long startOffsetMs, long durationMs) throws RemoteException {
+        if (!canFlush) {
+            throw new RemoteException("Can't process flush recorded video");
+        }
+        if (startOffsetMs < 0 || durationMs <= 0) {
+            throw new RemoteException("Not valid range: " + startOffsetMs + " + " + durationMs + " ms");
+        }
+        flushSnapshot(screenRecorder.takeSnapshot(startOffsetMs, durationMs));
+    }
 
+    /**
+     * @return read end of a pipe the clip is streamed into as one fragmented MP4
+     */
+    private ParcelFileDescriptor flushRecordingToStream() throws RemoteException {
+        if (!canFlush) {
+            throw new RemoteException("Can't process flush recorded video");
+        }
+        ScreenRecorder.Snapshot snapshot = screenRecorder.takeSnapshot();
+        ParcelFileDescriptor[] pipe;
         try {
-            screenRecorder.flashTo(videoFile, audioFile);
-            LocalBroadcastManager.getInstance(this)
-                .sendBroadcast(new Result(videoFile, audioFile).buildIntent());
-            Log.d(ScreenRecorder.TAG, "Recorded to video path: " + videoFile);
-            Log.d(ScreenRecorder.TAG, "Recorded to audio path: " + audioFile);
+            pipe = ParcelFileDescriptor.createReliablePipe();
         } catch (IOException e) {
             Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            snapshot.close();
+            throw new RemoteException("Can't create pipe");
+        }
+        if (!flushPipeline.submitStream(snapshot, pipe[1], streamCallback)) {
+            try {
+                pipe[0].close();
+            } catch (IOException e) {
+                Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            }
+            throw new RemoteException("Too many flushes are pending");
         }
+        // closed here once it is written to the reply
+        return pipe[0];
     }
 
-    private void startMediaProjection(ScreenRecorderParams params) {
-        screenRecorder.setSeconds(params.getSeconds());
+    private void flushSnapshot(ScreenRecorder.Snapshot snapshot) throws RemoteException {
+        ExportFile videoFile = null;
+        ExportFile audioFile = null;
+        try {
+            // written straight into pending MediaStore entries, so nothing is copied afterwards
+            videoFile = ExportFile.create(this, Environment.DIRECTORY_MOVIES, ".mp4", VIDEO_MIME_TYPE);
+            if (!fragmentedMp4) {
+                audioFile = ExportFile.create(
+                    this, Environment.DIRECTORY_MUSIC, ScreenRecorder.FLAC_EXTENSION, FLAC_MIME_TYPE
+                );
+            }
+        } catch (IOException e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            snapshot.close();
+            if (videoFile != null) videoFile.close();
+            throw new RemoteException("Can't create output files");
+        }
+        boolean submitted;
+        if (fragmentedMp4) {
+            submitted = flushPipeline.submitMovie(snapshot, videoFile, flushCallback);
+        } else {
+            submitted = flushPipeline.submit(snapshot, videoFile, audioFile, flushCallback);
+        }
+        if (!submitted) {
+            throw new RemoteException("Too many flushes are pending");
+        }
+    }
+
+    private final FlushPipeline.Callback flushCallback = new FlushPipeline.Callback() {
+        @Override
+        public void onFlushed(Result result) {
+            synchronized (listeners) {
+                flushResults.add(result);
+            }
+            scheduleUpdate();
+            Log.d(ScreenRecorder.TAG, "Recorded to video path: " + result.getVideoPath());
+            if (result.getAudioPath() != null) {
+                Log.d(ScreenRecorder.TAG, "Recorded to audio path: " + result.getAudioPath());
+            }
+            Log.d(ScreenRecorder.TAG, String.format(
+                "Flushed %d bytes in %d ms", result.getBytesWritten(), result.getDurationMs()
+            ));
+        }
+
+        @Override
+        public void onFlushFailed(Exception e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            synchronized (listeners) {
+                failedFlushes++;
+            }
+            scheduleUpdate();
+        }
+    };
+
+    /** The client has the clip already, there is nothing to broadcast. */
+    private final FlushPipeline.Callback streamCallback = new FlushPipeline.Callback() {
+        @Override
+        public void onFlushed(Result result) {
+            Log.d(ScreenRecorder.TAG, String.format(
+                "Streamed %d bytes in %d ms", result.getBytesWritten(), result.getDurationMs()
+            ));
+        }
+
+        @Override
+        public void onFlushFailed(Exception e) {
+            Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+        }
+    };
+
+    private void startMediaProjection(ScreenRecorderParams params, int generation) {
+        if (recordingGeneration.get() != generation) return;
         screenRecorder.setManager((MediaProjectionManager) getSystemService(MEDIA_PROJECTION_SERVICE));
         try {
+            screenRecorder.setSeconds(params.getSeconds(), params.isLongGop());
+            screenRecorder.setVariableFrameRate(params.isVariableFrameRate());
+            screenRecorder.setReplayLog(params.isReplayLog());
             Configuration configuration = getResources().getConfiguration();
             screenRecorder.continueRecording(
                 params.getActivityResult(), params.getRect(), configuration, handler
             );
-        } catch (IOException e) {
+            if (recordingGeneration.get() == generation) {
+                setupCurrentState(false, true, true);
+            }
+        } catch (IOException | RuntimeException e) {
+            // no usable encoder, or one that refused the format: codec errors are runtime ones
             Log.e(ScreenRecorder.TAG, e.getMessage(), e);
+            // releases whatever the start got as far as, projection, codec and audio
+            screenRecorder.stopRecording();
+            // a stop that came meanwhile has reset the state already
+            if (recordingGeneration.compareAndSet(generation, generation + 1)) {
+                stopForeground(true);
+                setupCurrentState(true, false, false);
+            }
             stopSelf();
         }
     }
@@ -170,33 +425,28 @@ public class ScreenRecorderService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        flushPipeline.shutdown();
+        flushPipeline = null;
+        listeners.kill();
+        handler.removeCallbacks(statsTick);
         handlerThread.quitSafely();
         handlerThread = null;
     }
 
     public static class Result {
 
-        private static final String ACTION = ScreenRecorderService.class.getName();
-        private static final String EXTRA_VIDEO_PATH = "video_path";
-        private static final String EXTRA_AUDIO_PATH = "audio_path";
-
-        public static IntentFilter buildIntentFilter() {
-            return new IntentFilter(ACTION);
-        }
-
+        /** Content URI of the MediaStore entry, or path of the app specific file. */
         private final String videoPath;
+        /** Same as {@link #videoPath}, null when the audio is in the video file. */
         private final String audioPath;
+        private final long durationMs;
+        private final long bytesWritten;
 
-        public Result(String videoPath, String audioPath) {
+        public Result(String videoPath, String audioPath, long durationMs, long bytesWritten) {
             this.videoPath = videoPath;
             this.audioPath = audioPath;
-        }
-
-        public Result(Intent intent) {
-            this(
-                intent.getStringExtra(EXTRA_VIDEO_PATH),
-                intent.getStringExtra(EXTRA_AUDIO_PATH)
-            );
+            this.durationMs = durationMs;
+            this.bytesWritten = bytesWritten;
         }
 
         public String getAudioPath() {
@@ -207,11 +457,12 @@ public class ScreenRecorderService extends Service {
             return videoPath;
         }
 
-        public Intent buildIntent() {
-            Intent intent = new Intent(ACTION);
-            intent.putExtra(EXTRA_AUDIO_PATH, audioPath);
-            intent.putExtra(EXTRA_VIDEO_PATH, videoPath);
-            return intent;
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
         }
     }
 
@@ -239,5 +490,30 @@ public class ScreenRecorderService extends Service {
             flushRecording();
             return currentState();
         }
+
+        @Override
+        public ParcelFileDescriptor flushToStream() throws RemoteException {
+            return flushRecordingToStream();
+        }
+
+        @Override
+        public void registerListener(IScreenRecorderListener listener) {
+            if (!listeners.register(listener)) return;
+            scheduleUpdate();
+            if (canStop) {
+                handler.post(ScreenRecorderService.this::startStatsTicks);
+            }
+        }
+
+        @Override
+        public void unregisterListener(IScreenRecorderListener listener) {
+            listeners.unregister(listener);
+        }
+
+        @Override
+        public ScreenRecorderState flushRange(long startOffsetMs, long durationMs) throws RemoteException {
+            flushRecordingRange(startOffsetMs, durationMs);
+            return currentState();
+        }
     }
 }
@@ -0,0 +1,162 @@
+package meugeninua.screenrecording.recorder;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Everything a listener is told in one parcel: the current state, stats of the window, and the
+ * flushes finished since the previous update. Updates that pile up between two deliveries are
+ * merged into one.
+ */
+public class ScreenRecorderUpdate implements Parcelable {
+
+    public static final Creator<ScreenRecorderUpdate> CREATOR = new Creator<ScreenRecorderUpdate>() {
+        @Override
+        public ScreenRecorderUpdate createFromParcel(Parcel source) {
+            return new ScreenRecorderUpdate(
+                ScreenRecorderState.CREATOR.createFromParcel(source),
+                source.readLong(),
+                source.readLong(),
+                source.readLong(),
+                source.readFloat(),
+                source.readLong(),
+                source.readLong(),
+                source.createStringArray(),
+                source.createStringArray(),
+                source.readInt()
+            );
+        }
+
+        @Override
+        public ScreenRecorderUpdate[] newArray(int size) {
+            return new ScreenRecorderUpdate[size];
+        }
+    };
+
+    private final ScreenRecorderState state;
+    private final long bufferedMs;
+    private final long bufferedBytes;
+    private final long memoryBytes;
+    private final float framesPerSecond;
+    private final long droppedFrames;
+    private final long idleMs;
+    private final String[] videoPaths;
+    private final String[] audioPaths;
+    private final int failedFlushes;
+
+    /**
+     * @param videoPaths results of the flushes finished since the previous update, see
+     * {@link ScreenRecorderService.Result#getVideoPath()}
+     * @param audioPaths paired with {@code videoPaths}, null elements when the audio is in the video
+     */
+    public ScreenRecorderUpdate(
+        ScreenRecorderState state, long bufferedMs, long bufferedBytes, long memoryBytes,
+        float framesPerSecond, long droppedFrames, long idleMs,
+        String[] videoPaths, String[] audioPaths, int failedFlushes
+    ) {
+        this.state = state;
+        this.bufferedMs = bufferedMs;
+        this.bufferedBytes = bufferedBytes;
+        this.memoryBytes = memoryBytes;
+        this.framesPerSecond = framesPerSecond;
+        this.droppedFrames = droppedFrames;
+        this.idleMs = idleMs;
+        this.videoPaths = videoPaths;
+        this.audioPaths = audioPaths;
+        this.failedFlushes = failedFlushes;
+    }
+
+    public ScreenRecorderState getState() {
+        return state;
+    }
+
+    /**
+     * @return span of the buffered video
+     */
+    public long getBufferedMs() {
+        return bufferedMs;
+    }
+
+    /**
+     * @return encoded video held by the buffer, in memory and on disk
+     */
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    /**
+     * @return memory the buffer takes, it grows with the video stored up to the capacity the
+     * window was sized for
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return encoded video the buffer holds per minute of the window, what the sync frame
+     * interval is weighed by
+     */
+    public long getBytesPerBufferedMinute() {
+        return bufferedMs <= 0L ? 0L : bufferedBytes * 60000L / bufferedMs;
+    }
+
+    /**
+     * @return frames the encoder put out per second since the previous stats
+     */
+    public float getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * @return frames dropped by the buffer since recording started
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return time the screen did not change since recording started, gaps between frames of
+     * a variable frame rate stream
+     */
+    public long getIdleMs() {
+        return idleMs;
+    }
+
+    public int getFlushCount() {
+        return videoPaths.length;
+    }
+
+    public String getVideoPath(int flush) {
+        return videoPaths[flush];
+    }
+
+    public String getAudioPath(int flush) {
+        return audioPaths[flush];
+    }
+
+    /**
+     * @return flushes failed since the previous update
+     */
+    public int getFailedFlushes() {
+        return failedFlushes;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        state.writeToParcel(dest, flags);
+        dest.writeLong(bufferedMs);
+        dest.writeLong(bufferedBytes);
+        dest.writeLong(memoryBytes);
+        dest.writeFloat(framesPerSecond);
+        dest.writeLong(droppedFrames);
+        dest.writeLong(idleMs);
+        dest.writeStringArray(videoPaths);
+        dest.writeStringArray(audioPaths);
+        dest.writeInt(failedFlushes);
+    }
+}
@@ -20,21 +20,40 @@ import static android.media.AudioFormat.ENCODING_PCM_16BIT;
 import static android.media.AudioFormat.ENCODING_PCM_8BIT;
 import static android.media.AudioFormat.ENCODING_PCM_FLOAT;
 
+import android.media.AudioFormat;
+
 import androidx.annotation.IntDef;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
+import meugeninua.screenrecording.utils.CyclicAudioBuffer;
+
 public class AudioRecordConfig {
 
     private final int channelPositionMask;
     private final int frequency;
     private final int audioEncoding;
+    private final boolean adpcmBuffer;
 
     public AudioRecordConfig(int channelPositionMask, int frequency, @Encoding int audioEncoding) {
+        this(channelPositionMask, frequency, audioEncoding, false);
+    }
+
+    /**
+     * @param adpcmBuffer keep the captured 16-bit PCM compressed as IMA ADPCM in the buffer,
+     * about a quarter of the memory at some loss of quality
+     */
+    public AudioRecordConfig(
+        int channelPositionMask, int frequency, @Encoding int audioEncoding, boolean adpcmBuffer
+    ) {
         this.channelPositionMask = channelPositionMask;
         this.frequency = frequency;
         this.audioEncoding = audioEncoding;
+        this.adpcmBuffer = adpcmBuffer;
+        if (adpcmBuffer && bytesPerSample() != 2) {
+            throw new IllegalArgumentException("ADPCM buffer needs 16-bit PCM, got " + audioEncoding);
+        }
     }
 
     public int channelPositionMask() {
@@ -53,6 +72,28 @@ public class AudioRecordConfig {
         return audioEncoding;
     }
 
+    public boolean isAdpcmBuffer() {
+        return adpcmBuffer;
+    }
+
+    /**
+     * @return a buffer for {@code seconds} of this audio, compressed when so configured
+     */
+    public CyclicAudioBuffer newBuffer(int seconds) {
+        return new CyclicAudioBuffer(
+            seconds, frequency, frameSizeInBytes(),
+            adpcmBuffer ? ImaAdpcm.forChannels(channelCount()) : null
+        );
+    }
+
+    public int channelCount() {
+        return channelPositionMask == AudioFormat.CHANNEL_IN_MONO ? 1 : 2;
+    }
+
+    public int frameSizeInBytes() {
+        return bytesPerSample() * channelCount();
+    }
+
     public int bitsPerSample() {
         return bytesPerSample() * 8;
     }
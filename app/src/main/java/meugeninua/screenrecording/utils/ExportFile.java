@@ -0,0 +1,154 @@
+package meugeninua.screenrecording.utils;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import meugeninua.screenrecording.app.ContextSingleton;
+
+/**
+ * File a flush writes into. Normally a pending MediaStore entry, written once through its file
+ * descriptor and made visible by {@link #publish()}, so nothing is copied afterwards. When no
+ * entry can be made it is a file in the app specific directory, which the gallery then gets a
+ * copy of, see {@link StoreToGalleryUtil}.
+ */
+public class ExportFile implements Closeable {
+
+    private static final String TAG = ExportFile.class.getSimpleName();
+
+    private final ContentResolver resolver;
+    /** MediaStore entry, null for an app specific file. */
+    private final Uri uri;
+    private final File file;
+    private final String name;
+    private final ParcelFileDescriptor descriptor;
+    private final FileChannel channel;
+    private boolean published;
+
+    private ExportFile(
+        ContentResolver resolver, Uri uri, File file, String name, ParcelFileDescriptor descriptor
+    ) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.file = file;
+        this.name = name;
+        this.descriptor = descriptor;
+        // the stream doesn't own the descriptor, it is closed with the ParcelFileDescriptor
+        this.channel = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+    }
+
+    /**
+     * @param type standard directory, {@link android.os.Environment#DIRECTORY_MOVIES} or
+     * {@link android.os.Environment#DIRECTORY_MUSIC}
+     */
+    public static ExportFile create(Context context, String type, String ext, String mimeType)
+        throws IOException {
+        ContentResolver resolver = context.getApplicationContext().getContentResolver();
+        Uri collection = mimeType.startsWith("audio/")
+            ? MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY)
+            : MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        String name = "Screen_" + System.currentTimeMillis() + ext;
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, type);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = null;
+        try {
+            uri = resolver.insert(collection, values);
+            if (uri != null) {
+                // MediaMuxer needs to read back what it wrote
+                ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "rw");
+                if (descriptor != null) {
+                    return new ExportFile(resolver, uri, null, name, descriptor);
+                }
+            }
+        } catch (RuntimeException | IOException e) {
+            Log.w(TAG, "Can't create pending entry " + name, e);
+        }
+        if (uri != null) {
+            resolver.delete(uri, null, null);
+        }
+
+        File file = new File(ContextSingleton.getOutputFileName(type, ext));
+        ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(
+            file,
+            ParcelFileDescriptor.MODE_READ_WRITE
+                | ParcelFileDescriptor.MODE_CREATE
+                | ParcelFileDescriptor.MODE_TRUNCATE
+        );
+        return new ExportFile(resolver, null, file, file.getName(), descriptor);
+    }
+
+    /**
+     * @return true when the file is a MediaStore entry and needs no copy to show up in the gallery
+     */
+    public boolean isMediaStoreEntry() {
+        return uri != null;
+    }
+
+    /**
+     * @return content URI of the entry, or the path of the app specific file
+     */
+    public String location() {
+        return uri != null ? uri.toString() : file.getAbsolutePath();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public FileDescriptor fileDescriptor() {
+        return descriptor.getFileDescriptor();
+    }
+
+    /**
+     * @return channel over {@link #fileDescriptor()}, stays open until this file is closed
+     */
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Closes the file and makes the entry visible to other apps.
+     */
+    public void publish() throws IOException {
+        descriptor.close();
+        if (uri != null) {
+            ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+        }
+        published = true;
+    }
+
+    /**
+     * Closes the file, and deletes it unless it was published.
+     */
+    @Override
+    public void close() {
+        if (published) return;
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.w(TAG, e.getMessage(), e);
+        }
+        if (uri != null) {
+            resolver.delete(uri, null, null);
+        } else if (!file.delete()) {
+            Log.w(TAG, "Can't delete " + file);
+        }
+    }
+}
@@ -3,34 +3,67 @@ package meugeninua.screenrecording.utils;
 import android.content.ContentValues;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
-import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
+import meugeninua.screenrecording.utils.export.ExportScheduler;
+
+/**
+ * Copies files that couldn't go straight into MediaStore, see {@link ExportFile}. Copies run on
+ * two threads, so a small audio file doesn't wait for a large video, and a path that is still
+ * being copied isn't copied again.
+ */
 public class StoreToGalleryUtil {
 
     public static final StoreToGalleryUtil INSTANCE = new StoreToGalleryUtil();
-    private final Executor executor = Executors.newSingleThreadExecutor();
 
-    public void storeToGallery(Context context, String path, String mimeType) {
-        executor.execute(
-            () -> storeToGalleryAsync(context.getApplicationContext(), path, mimeType)
+    /** Audio files are small, they go before the videos queued with them. */
+    public static final int PRIORITY_AUDIO = 1;
+    public static final int PRIORITY_VIDEO = 0;
+
+    private static final int PARALLELISM = 2;
+    private static final int MAX_PENDING_COPIES = 8;
+
+    private final ExportScheduler scheduler = new ExportScheduler(
+        StoreToGalleryUtil.class.getSimpleName(), PARALLELISM, MAX_PENDING_COPIES
+    );
+
+    public ExportScheduler.Handle storeToGallery(Context context, String path, String mimeType) {
+        int priority = mimeType.startsWith("audio/") ? PRIORITY_AUDIO : PRIORITY_VIDEO;
+        return storeToGallery(context, path, mimeType, priority, null);
+    }
+
+    /**
+     * @param listener called on the copying thread, null for none
+     * @return handle to cancel the copy with, null when too many copies are pending already
+     */
+    public ExportScheduler.Handle storeToGallery(
+        Context context, String path, String mimeType, int priority,
+        ExportScheduler.Listener listener
+    ) {
+        Context applicationContext = context.getApplicationContext();
+        return scheduler.submit(
+            path, priority,
+            progress -> storeToGalleryAsync(applicationContext, path, mimeType, progress),
+            listener
         );
     }
 
-    private void storeToGalleryAsync(Context context, String path, String mimeType) {
+    private void storeToGalleryAsync(
+        Context context, String path, String mimeType, ExportScheduler.Progress progress
+    ) throws IOException {
         String fileName = new File(path).getName();
 
         ContentValues values = new ContentValues();
         values.put(MediaStore.MediaColumns.TITLE, fileName);
         values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
         Uri storeUri;
         if (mimeType.startsWith("audio/")) {
             storeUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
@@ -38,21 +71,37 @@ public class StoreToGalleryUtil {
             storeUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
         }
         Uri uri = context.getContentResolver().insert(storeUri, values);
+        if (uri == null) {
+            throw new IOException("Can't insert " + fileName + " into " + storeUri);
+        }
 
+        // copied channel to channel, so the kernel moves the bytes without a trip through the
+        // Java heap
         try (
-            OutputStream outputStream = context.getContentResolver().openOutputStream(uri);
-            InputStream inputStream = new FileInputStream(path)
+            FileChannel target = new ParcelFileDescriptor.AutoCloseOutputStream(
+                openForWriting(context, uri)
+            ).getChannel();
+            FileChannel source = FileChannel.open(Paths.get(path), StandardOpenOption.READ)
         ) {
-            byte[] buf = new byte[1024];
-            while (true) {
-                int count = inputStream.read(buf);
-                if (count < 0) {
-                    break;
-                }
-                outputStream.write(buf, 0, count);
-            }
-        } catch (IOException e) {
-            Log.d(getClass().getSimpleName(), e.getMessage(), e);
+            ExportScheduler.transfer(source, target, progress);
+        } catch (IOException | RuntimeException e) {
+            // failed or cancelled, no half copy is left behind
+            context.getContentResolver().delete(uri, null, null);
+            throw e;
+        }
+        values.clear();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        context.getContentResolver().update(uri, values, null, null);
+    }
+
+    /**
+     * @throws IOException when the provider gives no descriptor, which it may for a crashed one
+     */
+    private static ParcelFileDescriptor openForWriting(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "w");
+        if (descriptor == null) {
+            throw new IOException("Can't open " + uri + " for writing");
         }
+        return descriptor;
     }
 }
@@ -0,0 +1,137 @@
+package meugeninua.screenrecording.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Random;
+
+/**
+ * Synthetic capture at the rates the recorder runs with: 6 Mbps H.264 at 30 fps with a sync
+ * frame every second, 44.1 kHz mono 16-bit PCM.
+ */
+final class BenchmarkStreams {
+
+    static final int BIT_RATE = 6000000;
+    static final int FRAME_RATE = 30;
+    static final int SAMPLE_RATE = 44100;
+    static final int FRAME_SIZE_IN_BYTES = 2;
+    static final int AUDIO_CHUNK_IN_BYTES = 2048;
+    static final long FRAME_DURATION_US = 1_000_000L / FRAME_RATE;
+
+    private BenchmarkStreams() {
+    }
+
+    /**
+     * @return an Annex B sample with random payload, sync frames four times the average size
+     */
+    static ByteBuffer videoSample(boolean keyFrame, Random random) {
+        int average = BIT_RATE / 8 / FRAME_RATE;
+        int size = keyFrame ? average * 4 : average * (FRAME_RATE - 4) / (FRAME_RATE - 1);
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        bytes[0] = 0;
+        bytes[1] = 0;
+        bytes[2] = 0;
+        bytes[3] = 1;
+        bytes[4] = (byte) (keyFrame ? 0x65 : 0x41);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    /**
+     * @return a chunk of two tones with a little noise, random bytes would defeat FLAC
+     */
+    static byte[] audioChunk(Random random) {
+        byte[] chunk = new byte[AUDIO_CHUNK_IN_BYTES];
+        for (int i = 0; i < chunk.length / 2; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            int sample = (int) (8000 * Math.sin(2 * Math.PI * 441 * t) + 2000 * Math.sin(2 * Math.PI * 1323 * t))
+                + random.nextInt(32) - 16;
+            chunk[2 * i] = (byte) sample;
+            chunk[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return chunk;
+    }
+
+    static ByteBuffer codecConfig() {
+        byte[] bytes = {
+            0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9,
+            0, 0, 0, 1, 0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB
+        };
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    static int flagsOf(long frame) {
+        return frame % FRAME_RATE == 0 ? SampleFlags.KEY_FRAME : 0;
+    }
+
+    /**
+     * Fills {@code seconds} of video, starting the frame count at {@code firstFrame}.
+     *
+     * @return the frame count after the last added frame
+     */
+    static long fillVideo(
+        CyclicVideoBuffer buffer, ByteBuffer keyFrame, ByteBuffer frame, long firstFrame, int seconds
+    ) {
+        long end = firstFrame + (long) seconds * FRAME_RATE;
+        for (long i = firstFrame; i < end; i++) {
+            addFrame(buffer, keyFrame, frame, i);
+        }
+        return end;
+    }
+
+    static void addFrame(CyclicVideoBuffer buffer, ByteBuffer keyFrame, ByteBuffer frame, long index) {
+        int flags = flagsOf(index);
+        ByteBuffer sample = flags != 0 ? keyFrame : frame;
+        sample.clear();
+        buffer.add(sample, flags, index * FRAME_DURATION_US);
+    }
+
+    static void fillAudio(CyclicAudioBuffer buffer, byte[] chunk, int seconds) {
+        long bytes = (long) seconds * SAMPLE_RATE * FRAME_SIZE_IN_BYTES;
+        for (long written = 0; written < bytes; written += chunk.length) {
+            buffer.addBuffer(chunk, chunk.length);
+        }
+    }
+
+    /**
+     * Consumes everything, so flush benchmarks measure the writers rather than storage.
+     */
+    static final class DiscardingChannel implements GatheringByteChannel {
+
+        long bytesWritten;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            bytesWritten += count;
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long count = 0L;
+            for (int i = offset; i < offset + length; i++) {
+                count += write(sources[i]);
+            }
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
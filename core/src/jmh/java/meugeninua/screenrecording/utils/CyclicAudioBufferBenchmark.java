@@ -0,0 +1,54 @@
+package meugeninua.screenrecording.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import meugeninua.screenrecording.recorder.audio.ImaAdpcm;
+
+/**
+ * Cost of storing one capture chunk once the window is full, copied in or read in place, as PCM
+ * or compressed to IMA ADPCM.
+ */
+@State(Scope.Thread)
+public class CyclicAudioBufferBenchmark {
+
+    @Param({"10", "30"})
+    public int seconds;
+
+    @Param({"false", "true"})
+    public boolean adpcm;
+
+    private CyclicAudioBuffer buffer;
+    private byte[] chunk;
+    private CyclicAudioBuffer.PcmSource source;
+
+    @Setup
+    public void setUp() {
+        chunk = new byte[BenchmarkStreams.AUDIO_CHUNK_IN_BYTES];
+        new Random(42).nextBytes(chunk);
+        source = (bytes, offset, length) -> {
+            System.arraycopy(chunk, 0, bytes, offset, Math.min(length, chunk.length));
+            return Math.min(length, chunk.length);
+        };
+        buffer = new CyclicAudioBuffer(
+            seconds, BenchmarkStreams.SAMPLE_RATE, BenchmarkStreams.FRAME_SIZE_IN_BYTES,
+            adpcm ? ImaAdpcm.forChannels(BenchmarkStreams.FRAME_SIZE_IN_BYTES / 2) : null
+        );
+        BenchmarkStreams.fillAudio(buffer, chunk, seconds * 2);
+    }
+
+    @Benchmark
+    public void addBuffer() {
+        buffer.addBuffer(chunk, chunk.length);
+    }
+
+    @Benchmark
+    public int read() {
+        return buffer.read(source, chunk.length);
+    }
+}
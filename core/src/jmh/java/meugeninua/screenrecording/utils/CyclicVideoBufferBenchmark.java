@@ -0,0 +1,42 @@
+package meugeninua.screenrecording.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Cost of storing one encoded frame once the window is full and every add evicts.
+ */
+@State(Scope.Thread)
+public class CyclicVideoBufferBenchmark {
+
+    @Param({"10", "30"})
+    public int seconds;
+
+    private CyclicVideoBuffer buffer;
+    private ByteBuffer keyFrame;
+    private ByteBuffer frame;
+    private long frameIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        keyFrame = BenchmarkStreams.videoSample(true, random);
+        frame = BenchmarkStreams.videoSample(false, random);
+        buffer = new CyclicVideoBuffer(
+            seconds, BenchmarkStreams.BIT_RATE, BenchmarkStreams.FRAME_RATE
+        );
+        buffer.add(BenchmarkStreams.codecConfig(), SampleFlags.CODEC_CONFIG, 0L);
+        frameIndex = BenchmarkStreams.fillVideo(buffer, keyFrame, frame, 0L, seconds * 2);
+    }
+
+    @Benchmark
+    public void add() {
+        BenchmarkStreams.addFrame(buffer, keyFrame, frame, frameIndex++);
+    }
+}
@@ -0,0 +1,123 @@
+package meugeninua.screenrecording.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import meugeninua.screenrecording.utils.mp4.FragmentedMp4Writer;
+
+/**
+ * Full flush of a window into a channel that discards the bytes: the WAV file, the FLAC file on
+ * one and on two threads, the video samples as the muxer sees them, a clip of them, and the
+ * single fragmented MP4 with both tracks. Every audio flush reads {@code seconds * 88.2} KB of
+ * PCM, so its MB/s is that divided by the time per operation.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FlushBenchmark {
+
+    @Param({"10", "30"})
+    public int seconds;
+
+    private CyclicVideoBuffer videoBuffer;
+    private CyclicAudioBuffer audioBuffer;
+    private BenchmarkStreams.DiscardingChannel channel;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ByteBuffer keyFrame = BenchmarkStreams.videoSample(true, random);
+        ByteBuffer frame = BenchmarkStreams.videoSample(false, random);
+        videoBuffer = new CyclicVideoBuffer(
+            seconds, BenchmarkStreams.BIT_RATE, BenchmarkStreams.FRAME_RATE
+        );
+        videoBuffer.add(BenchmarkStreams.codecConfig(), SampleFlags.CODEC_CONFIG, 0L);
+        BenchmarkStreams.fillVideo(videoBuffer, keyFrame, frame, 0L, seconds * 2);
+
+        byte[] chunk = BenchmarkStreams.audioChunk(random);
+        audioBuffer = new CyclicAudioBuffer(
+            seconds, BenchmarkStreams.SAMPLE_RATE, BenchmarkStreams.FRAME_SIZE_IN_BYTES
+        );
+        BenchmarkStreams.fillAudio(audioBuffer, chunk, seconds * 2);
+
+        channel = new BenchmarkStreams.DiscardingChannel();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public long wav() throws IOException {
+        try (CyclicAudioBuffer.State state = audioBuffer.cloneState()) {
+            return state.writeToWav(channel, 1);
+        }
+    }
+
+    @Benchmark
+    public long flac() throws IOException {
+        try (CyclicAudioBuffer.State state = audioBuffer.cloneState()) {
+            return state.writeToFlac(channel, 1, null);
+        }
+    }
+
+    @Benchmark
+    public long flacParallel() throws IOException {
+        try (CyclicAudioBuffer.State state = audioBuffer.cloneState()) {
+            return state.writeToFlac(channel, 1, executor);
+        }
+    }
+
+    @Benchmark
+    public long videoSamples() throws IOException {
+        long[] bytes = new long[1];
+        try (CyclicVideoBuffer.State state = videoBuffer.cloneState()) {
+            state.writeTo((buffer, offset, size, flags, presentationTimeUs) -> {
+                bytes[0] += size;
+            });
+        }
+        return bytes[0];
+    }
+
+    /**
+     * Five seconds from the middle of the window, should take the same time for any window.
+     */
+    @Benchmark
+    public long videoClip() throws IOException {
+        long[] bytes = new long[1];
+        try (CyclicVideoBuffer.State state = videoBuffer.cloneState()) {
+            long startTimeUs = (state.startTimeUs() + state.endTimeUs()) / 2;
+            state.clip(startTimeUs, startTimeUs + 5_000_000L);
+            state.writeTo((buffer, offset, size, flags, presentationTimeUs) -> {
+                bytes[0] += size;
+            });
+        }
+        return bytes[0];
+    }
+
+    @Benchmark
+    public long fragmentedMp4() throws IOException {
+        try (CyclicVideoBuffer.State videoState = videoBuffer.cloneState();
+             CyclicAudioBuffer.State audioState = audioBuffer.cloneState()) {
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 1280, 720).withAudio(
+                BenchmarkStreams.SAMPLE_RATE, 1, audioState.frameCount(), audioState::writeTo
+            );
+            videoState.writeTo(writer);
+            return writer.finish();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package meugeninua.screenrecording.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Cost of taking and releasing a snapshot of a full window, it should not depend on its length.
+ */
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+
+    @Param({"10", "30"})
+    public int seconds;
+
+    private CyclicVideoBuffer videoBuffer;
+    private CyclicAudioBuffer audioBuffer;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ByteBuffer keyFrame = BenchmarkStreams.videoSample(true, random);
+        ByteBuffer frame = BenchmarkStreams.videoSample(false, random);
+        videoBuffer = new CyclicVideoBuffer(
+            seconds, BenchmarkStreams.BIT_RATE, BenchmarkStreams.FRAME_RATE
+        );
+        videoBuffer.add(BenchmarkStreams.codecConfig(), SampleFlags.CODEC_CONFIG, 0L);
+        BenchmarkStreams.fillVideo(videoBuffer, keyFrame, frame, 0L, seconds * 2);
+
+        byte[] chunk = new byte[BenchmarkStreams.AUDIO_CHUNK_IN_BYTES];
+        audioBuffer = new CyclicAudioBuffer(
+            seconds, BenchmarkStreams.SAMPLE_RATE, BenchmarkStreams.FRAME_SIZE_IN_BYTES
+        );
+        BenchmarkStreams.fillAudio(audioBuffer, chunk, seconds * 2);
+    }
+
+    @Benchmark
+    public int cloneVideoState() {
+        try (CyclicVideoBuffer.State state = videoBuffer.cloneState()) {
+            return state.sampleCount();
+        }
+    }
+
+    @Benchmark
+    public long cloneAudioState() {
+        try (CyclicAudioBuffer.State state = audioBuffer.cloneState()) {
+            return state.frameCount();
+        }
+    }
+}
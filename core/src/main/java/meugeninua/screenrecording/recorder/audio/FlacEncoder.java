@@ -0,0 +1,702 @@
+package meugeninua.screenrecording.recorder.audio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lossless FLAC encoder for 16-bit PCM. Every block of {@link #BLOCK_SIZE} frames is coded with
+ * the cheapest of a constant, verbatim, fixed or LPC subframe, the residual with partitioned Rice
+ * codes, and stereo with the cheapest of the four channel decorrelations.
+ * <p>
+ * FLAC frames do not depend on each other, so runs of them are encoded as tasks on an optional
+ * executor and written out in order as they complete. The output is written strictly in order,
+ * the total frame count has to be known up front for the stream header. The MD5 signature of the
+ * stream header is left unset, as the format allows.
+ */
+public class FlacEncoder {
+
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int BLOCKS_PER_TASK = 16;
+    private static final int MAX_PENDING_TASKS = 8;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 14;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int CHANNELS_INDEPENDENT = 0;
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final ExecutorService executor;
+
+    /**
+     * @param executor runs the encoding tasks, null to encode on the calling thread
+     */
+    public FlacEncoder(int sampleRate, int channelCount, ExecutorService executor) {
+        if (channelCount < 1 || channelCount > 8) {
+            throw new IllegalArgumentException("Not valid value for channel count: " + channelCount);
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.executor = executor;
+    }
+
+    /**
+     * Encodes {@code frameCount} frames of {@code source} into a FLAC stream.
+     *
+     * @return number of bytes written
+     */
+    public long encode(Source source, long frameCount, WritableByteChannel channel) throws IOException {
+        long written = writeFully(channel, streamHeader(frameCount));
+        long blockCount = (frameCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (executor == null) {
+            FrameEncoder encoder = new FrameEncoder();
+            for (long block = 0; block < blockCount; block += BLOCKS_PER_TASK) {
+                int count = (int) Math.min(BLOCKS_PER_TASK, blockCount - block);
+                written += writeFully(channel, encoder.encode(source, block, count, frameCount));
+            }
+            return written;
+        }
+
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            long nextBlock = 0L;
+            while (nextBlock < blockCount || !pending.isEmpty()) {
+                while (nextBlock < blockCount && pending.size() < MAX_PENDING_TASKS) {
+                    long firstBlock = nextBlock;
+                    int count = (int) Math.min(BLOCKS_PER_TASK, blockCount - firstBlock);
+                    pending.add(executor.submit(
+                        () -> new FrameEncoder().encode(source, firstBlock, count, frameCount)
+                    ));
+                    nextBlock += count;
+                }
+                written += writeFully(channel, await(pending.poll()));
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return written;
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static long writeFully(WritableByteChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return bytes.length;
+    }
+
+    /**
+     * The {@code fLaC} marker and the only metadata block, STREAMINFO.
+     */
+    private byte[] streamHeader(long frameCount) {
+        BitWriter writer = new BitWriter(42);
+        writer.write(32, 0x664C6143);
+        writer.write(1, 1);
+        writer.write(7, 0);
+        writer.write(24, 34);
+        int blockSize = (int) Math.max(16, Math.min(BLOCK_SIZE, frameCount));
+        writer.write(16, blockSize);
+        writer.write(16, blockSize);
+        // frame sizes and MD5 signature unknown
+        writer.write(24, 0);
+        writer.write(24, 0);
+        writer.write(20, sampleRate);
+        writer.write(3, channelCount - 1);
+        writer.write(5, BITS_PER_SAMPLE - 1);
+        writer.write(4, frameCount >>> 32);
+        writer.write(32, frameCount);
+        for (int i = 0; i < 4; i++) {
+            writer.write(32, 0);
+        }
+        return writer.toByteArray();
+    }
+
+    public interface Source {
+
+        /**
+         * Reads {@code frameCount} interleaved 16-bit little-endian frames starting at
+         * {@code firstFrame} into {@code target}. Called from the encoding threads.
+         */
+        void read(long firstFrame, int frameCount, byte[] target) throws IOException;
+    }
+
+    /**
+     * Encodes runs of blocks, its buffers are reused between blocks but it belongs to one task.
+     */
+    private final class FrameEncoder {
+
+        private final byte[] pcm = new byte[BLOCK_SIZE * channelCount * 2];
+        private final int[][] samples = new int[channelCount][BLOCK_SIZE];
+        private final int[] mid = new int[BLOCK_SIZE];
+        private final int[] side = new int[BLOCK_SIZE];
+        private int[] residual = new int[BLOCK_SIZE];
+        private int[] bestResidual = new int[BLOCK_SIZE];
+        private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+        private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final int[] bestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final double[] windowed = new double[BLOCK_SIZE];
+        private final double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+        private final double[] lpcErrors = new double[MAX_LPC_ORDER];
+        private final double[][] lpc = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+        private final int[] coefficients = new int[MAX_LPC_ORDER];
+        private final int[] bestCoefficients = new int[MAX_LPC_ORDER];
+        private final BitWriter writer = new BitWriter(BLOCK_SIZE * channelCount * 2 * BLOCKS_PER_TASK / 2);
+
+        private int partitionOrder;
+        private int bestPartitionOrder;
+
+        byte[] encode(Source source, long firstBlock, int blockCount, long frameCount) throws IOException {
+            writer.reset();
+            for (long block = firstBlock; block < firstBlock + blockCount; block++) {
+                long firstFrame = block * BLOCK_SIZE;
+                int size = (int) Math.min(BLOCK_SIZE, frameCount - firstFrame);
+                source.read(firstFrame, size, pcm);
+                for (int i = 0; i < size; i++) {
+                    for (int channel = 0; channel < channelCount; channel++) {
+                        int offset = (i * channelCount + channel) * 2;
+                        samples[channel][i] = (short) ((pcm[offset] & 0xFF) | pcm[offset + 1] << 8);
+                    }
+                }
+                writeFrame(block, size);
+            }
+            return writer.toByteArray();
+        }
+
+        private void writeFrame(long frameNumber, int size) {
+            int assignment = CHANNELS_INDEPENDENT;
+            if (channelCount == 2) {
+                int[] left = samples[0];
+                int[] right = samples[1];
+                for (int i = 0; i < size; i++) {
+                    mid[i] = (left[i] + right[i]) >> 1;
+                    side[i] = left[i] - right[i];
+                }
+                assignment = chooseStereo(size);
+            }
+
+            int start = writer.length();
+            writer.write(16, 0xFFF8);
+            int blockSizeCode = size == BLOCK_SIZE ? 12 : size <= 256 ? 6 : 7;
+            // sample rate comes from the stream header
+            writer.write(4, blockSizeCode);
+            writer.write(4, 0);
+            writer.write(4, assignment == CHANNELS_INDEPENDENT ? channelCount - 1 : assignment);
+            writer.write(3, 4);
+            writer.write(1, 0);
+            writer.writeUtf8(frameNumber);
+            if (blockSizeCode == 6) {
+                writer.write(8, size - 1);
+            } else if (blockSizeCode == 7) {
+                writer.write(16, size - 1);
+            }
+            writer.write(8, writer.crc8(start));
+
+            switch (assignment) {
+                case CHANNELS_LEFT_SIDE:
+                    writeSubframe(samples[0], size, BITS_PER_SAMPLE);
+                    writeSubframe(side, size, BITS_PER_SAMPLE + 1);
+                    break;
+                case CHANNELS_RIGHT_SIDE:
+                    writeSubframe(side, size, BITS_PER_SAMPLE + 1);
+                    writeSubframe(samples[1], size, BITS_PER_SAMPLE);
+                    break;
+                case CHANNELS_MID_SIDE:
+                    writeSubframe(mid, size, BITS_PER_SAMPLE);
+                    writeSubframe(side, size, BITS_PER_SAMPLE + 1);
+                    break;
+                default:
+                    for (int channel = 0; channel < channelCount; channel++) {
+                        writeSubframe(samples[channel], size, BITS_PER_SAMPLE);
+                    }
+            }
+            writer.alignToByte();
+            writer.write(16, writer.crc16(start));
+        }
+
+        /**
+         * Picks the decorrelation with the smallest second order residual, a close estimate of
+         * what the subframes will cost.
+         */
+        private int chooseStereo(int size) {
+            long left = fixedCost(samples[0], size);
+            long right = fixedCost(samples[1], size);
+            long midCost = fixedCost(mid, size);
+            long sideCost = fixedCost(side, size);
+            long best = left + right;
+            int assignment = CHANNELS_INDEPENDENT;
+            if (left + sideCost < best) {
+                best = left + sideCost;
+                assignment = CHANNELS_LEFT_SIDE;
+            }
+            if (right + sideCost < best) {
+                best = right + sideCost;
+                assignment = CHANNELS_RIGHT_SIDE;
+            }
+            if (midCost + sideCost < best) {
+                assignment = CHANNELS_MID_SIDE;
+            }
+            return assignment;
+        }
+
+        private long fixedCost(int[] x, int size) {
+            long sum = 0L;
+            for (int i = 2; i < size; i++) {
+                sum += Math.abs(x[i] - 2 * x[i - 1] + x[i - 2]);
+            }
+            return sum;
+        }
+
+        private void writeSubframe(int[] x, int size, int bitsPerSample) {
+            boolean constant = true;
+            for (int i = 1; i < size && constant; i++) {
+                constant = x[i] == x[0];
+            }
+            if (constant) {
+                writer.write(8, 0);
+                writer.write(bitsPerSample, x[0]);
+                return;
+            }
+
+            long bestBits = (long) size * bitsPerSample;
+            int bestType = -1;
+            int bestOrder = 0;
+            int bestShift = 0;
+            // only the most promising order of each kind is coded in full
+            int fixedOrder = estimateFixedOrder(x, size);
+            fixedResidual(x, size, fixedOrder);
+            long fixedBits = (long) fixedOrder * bitsPerSample + chooseRice(size, fixedOrder);
+            if (fixedBits < bestBits) {
+                bestBits = fixedBits;
+                bestType = 0;
+                bestOrder = fixedOrder;
+                keepResidual();
+            }
+            int maxOrder = computeLpc(x, size);
+            int order = estimateLpcOrder(maxOrder, size, bitsPerSample);
+            int shift = order > 0 ? quantize(lpc[order - 1], order) : -1;
+            if (shift >= 0 && lpcResidual(x, size, order, shift)) {
+                long bits = (long) order * bitsPerSample + 4 + 5 + (long) order * LPC_PRECISION
+                    + chooseRice(size, order);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestType = 1;
+                    bestOrder = order;
+                    bestShift = shift;
+                    System.arraycopy(coefficients, 0, bestCoefficients, 0, order);
+                    keepResidual();
+                }
+            }
+
+            if (bestType < 0) {
+                writer.write(8, 0x01 << 1);
+                for (int i = 0; i < size; i++) {
+                    writer.write(bitsPerSample, x[i]);
+                }
+                return;
+            }
+            if (bestType == 0) {
+                writer.write(8, (0x08 | bestOrder) << 1);
+            } else {
+                writer.write(8, (0x20 | bestOrder - 1) << 1);
+            }
+            for (int i = 0; i < bestOrder; i++) {
+                writer.write(bitsPerSample, x[i]);
+            }
+            if (bestType == 1) {
+                writer.write(4, LPC_PRECISION - 1);
+                writer.write(5, bestShift);
+                for (int i = 0; i < bestOrder; i++) {
+                    writer.write(LPC_PRECISION, bestCoefficients[i]);
+                }
+            }
+            writeResidual(size, bestOrder);
+        }
+
+        private void keepResidual() {
+            int[] swap = bestResidual;
+            bestResidual = residual;
+            residual = swap;
+            bestPartitionOrder = partitionOrder;
+            System.arraycopy(riceParameters, 0, bestRiceParameters, 0, 1 << partitionOrder);
+        }
+
+        /**
+         * @return the fixed order with the smallest sum of absolute residuals, in one pass
+         */
+        private int estimateFixedOrder(int[] x, int size) {
+            int maxOrder = Math.min(MAX_FIXED_ORDER, size - 1);
+            if (size <= MAX_FIXED_ORDER) return maxOrder;
+            long sum0 = 0L;
+            long sum1 = 0L;
+            long sum2 = 0L;
+            long sum3 = 0L;
+            long sum4 = 0L;
+            int last0 = x[3];
+            int last1 = x[3] - x[2];
+            int last2 = last1 - (x[2] - x[1]);
+            int last3 = last2 - (x[2] - x[1] - (x[1] - x[0]));
+            for (int i = MAX_FIXED_ORDER; i < size; i++) {
+                int e0 = x[i];
+                int e1 = e0 - last0;
+                int e2 = e1 - last1;
+                int e3 = e2 - last2;
+                int e4 = e3 - last3;
+                sum0 += Math.abs(e0);
+                sum1 += Math.abs(e1);
+                sum2 += Math.abs(e2);
+                sum3 += Math.abs(e3);
+                sum4 += Math.abs(e4);
+                last0 = e0;
+                last1 = e1;
+                last2 = e2;
+                last3 = e3;
+            }
+            long[] sums = { sum0, sum1, sum2, sum3, sum4 };
+            int best = 0;
+            for (int order = 1; order <= maxOrder; order++) {
+                if (sums[order] < sums[best]) best = order;
+            }
+            return best;
+        }
+
+        /**
+         * Picks the LPC order from the prediction errors Levinson-Durbin leaves behind: the
+         * residual costs about half the log of the error per sample, the coefficients a fixed
+         * number of bits each.
+         *
+         * @return the order to code, 0 when there is none
+         */
+        private int estimateLpcOrder(int maxOrder, int size, int bitsPerSample) {
+            int best = 0;
+            double bestBits = Double.MAX_VALUE;
+            for (int order = 1; order <= maxOrder; order++) {
+                double error = Math.max(lpcErrors[order - 1], Double.MIN_NORMAL);
+                double bits = 0.5 * Math.log(error) / Math.log(2) * (size - order)
+                    + (double) order * (LPC_PRECISION + bitsPerSample);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    best = order;
+                }
+            }
+            return best;
+        }
+
+        private void fixedResidual(int[] x, int size, int order) {
+            switch (order) {
+                case 0:
+                    System.arraycopy(x, 0, residual, 0, size);
+                    break;
+                case 1:
+                    for (int i = 1; i < size; i++) {
+                        residual[i] = x[i] - x[i - 1];
+                    }
+                    break;
+                case 2:
+                    for (int i = 2; i < size; i++) {
+                        residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                    }
+                    break;
+                case 3:
+                    for (int i = 3; i < size; i++) {
+                        residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                    }
+                    break;
+                default:
+                    for (int i = 4; i < size; i++) {
+                        residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                    }
+            }
+        }
+
+        /**
+         * Runs Levinson-Durbin over the autocorrelation of the Welch-windowed block.
+         *
+         * @return highest order with usable coefficients in {@link #lpc}
+         */
+        private int computeLpc(int[] x, int size) {
+            int maxOrder = Math.min(MAX_LPC_ORDER, size / 4);
+            if (maxOrder < 1) return 0;
+            double half = (size - 1) / 2.0;
+            for (int i = 0; i < size; i++) {
+                double position = (i - half) / half;
+                windowed[i] = x[i] * (1.0 - position * position);
+            }
+            for (int lag = 0; lag <= maxOrder; lag++) {
+                double sum = 0.0;
+                for (int i = lag; i < size; i++) {
+                    sum += windowed[i] * windowed[i - lag];
+                }
+                autocorrelation[lag] = sum;
+            }
+            if (autocorrelation[0] == 0.0) return 0;
+
+            double error = autocorrelation[0];
+            double[] previous = null;
+            for (int order = 1; order <= maxOrder; order++) {
+                double reflection = -autocorrelation[order];
+                for (int j = 0; j < order - 1; j++) {
+                    reflection -= previous[j] * autocorrelation[order - 1 - j];
+                }
+                reflection /= error;
+                double[] current = lpc[order - 1];
+                for (int j = 0; j < order - 1; j++) {
+                    current[j] = previous[j] + reflection * previous[order - 2 - j];
+                }
+                current[order - 1] = reflection;
+                error *= 1.0 - reflection * reflection;
+                lpcErrors[order - 1] = error;
+                previous = current;
+                if (error <= 0.0) return order;
+            }
+            return maxOrder;
+        }
+
+        /**
+         * Quantizes the predictor of {@code order}, with the sign flipped to predict rather than
+         * whiten, carrying the rounding error from one coefficient into the next.
+         *
+         * @return the shift of the coefficients, or -1 when they can't be represented
+         */
+        private int quantize(double[] lpcCoefficients, int order) {
+            double max = 0.0;
+            for (int i = 0; i < order; i++) {
+                max = Math.max(max, Math.abs(lpcCoefficients[i]));
+            }
+            if (max <= 0.0 || Double.isNaN(max)) return -1;
+            int shift = Math.min(15, LPC_PRECISION - 2 - Math.getExponent(max));
+            if (shift < 0) return -1;
+            int limit = (1 << (LPC_PRECISION - 1)) - 1;
+            double error = 0.0;
+            for (int i = 0; i < order; i++) {
+                error -= lpcCoefficients[i] * (1 << shift);
+                long value = Math.round(error);
+                value = Math.max(-limit - 1, Math.min(limit, value));
+                coefficients[i] = (int) value;
+                error -= value;
+            }
+            return shift;
+        }
+
+        /**
+         * @return false when a residual gets too large for decoders that predict in 32 bits
+         */
+        private boolean lpcResidual(int[] x, int size, int order, int shift) {
+            for (int i = order; i < size; i++) {
+                long sum = 0L;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - j - 1];
+                }
+                long value = x[i] - (sum >> shift);
+                if (value != (int) value || (sum >> shift) != (int) (sum >> shift)) return false;
+                residual[i] = (int) value;
+            }
+            return true;
+        }
+
+        /**
+         * Picks the partition order and Rice parameters for {@link #residual} from
+         * {@code order} on.
+         *
+         * @return estimated size of the coded residual in bits
+         */
+        private long chooseRice(int size, int order) {
+            int maxOrder = 0;
+            while (maxOrder < MAX_PARTITION_ORDER && size % (2 << maxOrder) == 0
+                && (size >> (maxOrder + 1)) > order) {
+                maxOrder++;
+            }
+            int partitions = 1 << maxOrder;
+            int partitionSize = size >> maxOrder;
+            for (int p = 0; p < partitions; p++) {
+                long sum = 0L;
+                for (int i = Math.max(order, p * partitionSize), end = (p + 1) * partitionSize; i < end; i++) {
+                    long value = residual[i];
+                    sum += (value << 1) ^ (value >> 63);
+                }
+                partitionSums[p] = sum;
+            }
+
+            long bestBits = Long.MAX_VALUE;
+            for (int level = maxOrder; level >= 0; level--) {
+                int count = 1 << level;
+                int levelSize = size >> level;
+                long bits = 6;
+                for (int p = 0; p < count; p++) {
+                    int samples = p == 0 ? levelSize - order : levelSize;
+                    int parameter = riceParameter(partitionSums[p], samples);
+                    bits += 4 + (long) samples * (parameter + 1) + (partitionSums[p] >>> parameter);
+                }
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    partitionOrder = level;
+                    for (int p = 0; p < count; p++) {
+                        int samples = p == 0 ? levelSize - order : levelSize;
+                        riceParameters[p] = riceParameter(partitionSums[p], samples);
+                    }
+                }
+                for (int p = 0; p < count / 2; p++) {
+                    partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+                }
+            }
+            return bestBits;
+        }
+
+        private int riceParameter(long sum, int samples) {
+            if (samples <= 0 || sum <= samples) return 0;
+            int parameter = 63 - Long.numberOfLeadingZeros(sum / samples);
+            return Math.min(MAX_RICE_PARAMETER, parameter);
+        }
+
+        private void writeResidual(int size, int order) {
+            writer.write(2, 0);
+            writer.write(4, bestPartitionOrder);
+            int count = 1 << bestPartitionOrder;
+            int partitionSize = size >> bestPartitionOrder;
+            for (int p = 0; p < count; p++) {
+                int parameter = bestRiceParameters[p];
+                writer.write(4, parameter);
+                for (int i = Math.max(order, p * partitionSize), end = (p + 1) * partitionSize; i < end; i++) {
+                    long value = bestResidual[i];
+                    long folded = (value << 1) ^ (value >> 63);
+                    writer.writeUnary(folded >>> parameter);
+                    if (parameter > 0) {
+                        writer.write(parameter, folded);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Big-endian bit writer over a growable byte array.
+     */
+    static final class BitWriter {
+
+        private byte[] bytes;
+        private int length;
+        private long bits;
+        private int bitCount;
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void reset() {
+            length = 0;
+            bitCount = 0;
+        }
+
+        /**
+         * Writes the low {@code count} bits of {@code value}, at most 32.
+         */
+        void write(int count, long value) {
+            bits = (bits << count) | (value & ((1L << count) - 1));
+            bitCount += count;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                bytes[length++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        void writeUnary(long zeros) {
+            for (; zeros >= 32; zeros -= 32) {
+                write(32, 0);
+            }
+            write((int) zeros + 1, 1);
+        }
+
+        void writeUtf8(long value) {
+            if (value < 0x80) {
+                write(8, value);
+                return;
+            }
+            int continuation = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3
+                : value < 0x4000000 ? 4 : 5;
+            int leading = (0xFF00 >> (continuation + 1)) & 0xFF;
+            write(8, leading | (value >>> (6 * continuation)));
+            for (int i = continuation - 1; i >= 0; i--) {
+                write(8, 0x80 | ((value >>> (6 * i)) & 0x3F));
+            }
+        }
+
+        void alignToByte() {
+            if (bitCount > 0) {
+                write(8 - bitCount, 0);
+            }
+        }
+
+        int length() {
+            return length;
+        }
+
+        int crc8(int from) {
+            int crc = 0;
+            for (int i = from; i < length; i++) {
+                crc = CRC8_TABLE[crc ^ (bytes[i] & 0xFF)];
+            }
+            return crc;
+        }
+
+        int crc16(int from) {
+            int crc = 0;
+            for (int i = from; i < length; i++) {
+                crc = ((crc << 8) ^ CRC16_TABLE[(crc >> 8) ^ (bytes[i] & 0xFF)]) & 0xFFFF;
+            }
+            return crc;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
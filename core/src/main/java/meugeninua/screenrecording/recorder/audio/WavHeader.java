@@ -0,0 +1,129 @@
+package meugeninua.screenrecording.recorder.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Canonical 44-byte header of a PCM WAV file, or the 60-byte one of an IMA ADPCM file. Computed
+ * up front from the size of the audio data, so the file can be written in a single pass.
+ */
+public class WavHeader {
+
+    public static final int SIZE = 44;
+    public static final int IMA_ADPCM_SIZE = 60;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int bitsPerSample;
+    private final long dataLength;
+    /** ADPCM block layout, null for PCM. */
+    private final ImaAdpcm adpcm;
+    private final long frameCount;
+
+    public WavHeader(int sampleRate, int channels, int bitsPerSample, long dataLength) {
+        this(sampleRate, channels, bitsPerSample, dataLength, null, 0L);
+    }
+
+    /**
+     * Header of {@code frameCount} frames stored as {@code dataLength} bytes of whole ADPCM blocks.
+     */
+    public WavHeader(int sampleRate, ImaAdpcm adpcm, long frameCount, long dataLength) {
+        this(sampleRate, adpcm.channelCount(), ImaAdpcm.BITS_PER_SAMPLE, dataLength, adpcm, frameCount);
+    }
+
+    private WavHeader(
+        int sampleRate, int channels, int bitsPerSample, long dataLength, ImaAdpcm adpcm, long frameCount
+    ) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.dataLength = dataLength;
+        this.adpcm = adpcm;
+        this.frameCount = frameCount;
+    }
+
+    public int size() {
+        return adpcm == null ? SIZE : IMA_ADPCM_SIZE;
+    }
+
+    /** Returns the {@code WavHeader} in bytes. */
+    public byte[] toBytes() {
+        if (adpcm != null) return imaAdpcmHeader();
+        return wavFileHeader(dataLength, dataLength + 36, sampleRate,
+            channels, (long) bitsPerSample * sampleRate * channels / 8, bitsPerSample);
+    }
+
+    private byte[] imaAdpcmHeader() {
+        ByteBuffer header = ByteBuffer.allocate(IMA_ADPCM_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' })
+            .putInt((int) (dataLength + IMA_ADPCM_SIZE - 8))
+            .put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' })
+            .putInt(20)
+            .putShort((short) ImaAdpcm.FORMAT_TAG)
+            .putShort((short) channels)
+            .putInt(sampleRate)
+            .putInt((int) ((long) sampleRate * adpcm.blockAlign() / adpcm.framesPerBlock()))
+            .putShort((short) adpcm.blockAlign())
+            .putShort((short) bitsPerSample)
+            // extra format bytes: frames per block
+            .putShort((short) 2)
+            .putShort((short) adpcm.framesPerBlock())
+            .put(new byte[] { 'f', 'a', 'c', 't' })
+            .putInt(4)
+            .putInt((int) frameCount)
+            .put(new byte[] { 'd', 'a', 't', 'a' })
+            .putInt((int) dataLength);
+        return header.array();
+    }
+
+    private byte[] wavFileHeader(long totalAudioLen, long totalDataLen, long longSampleRate,
+                                 int channels, long byteRate, int bitsPerSample) {
+        byte[] header = new byte[SIZE];
+        header[0] = 'R'; // RIFF/WAVE header
+        header[1] = 'I';
+        header[2] = 'F';
+        header[3] = 'F';
+        header[4] = (byte) (totalDataLen & 0xff);
+        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
+        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
+        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
+        header[8] = 'W';
+        header[9] = 'A';
+        header[10] = 'V';
+        header[11] = 'E';
+        header[12] = 'f'; // 'fmt ' chunk
+        header[13] = 'm';
+        header[14] = 't';
+        header[15] = ' ';
+        header[16] = 16; // 4 bytes: size of 'fmt ' chunk
+        header[17] = 0;
+        header[18] = 0;
+        header[19] = 0;
+        header[20] = 1; // format = 1
+        header[21] = 0;
+        header[22] = (byte) channels;
+        header[23] = 0;
+        header[24] = (byte) (longSampleRate & 0xff);
+        header[25] = (byte) ((longSampleRate >> 8) & 0xff);
+        header[26] = (byte) ((longSampleRate >> 16) & 0xff);
+        header[27] = (byte) ((longSampleRate >> 24) & 0xff);
+        header[28] = (byte) (byteRate & 0xff);
+        header[29] = (byte) ((byteRate >> 8) & 0xff);
+        header[30] = (byte) ((byteRate >> 16) & 0xff);
+        header[31] = (byte) ((byteRate >> 24) & 0xff);
+        header[32] = (byte) (channels * (bitsPerSample / 8)); //
+        // block align
+        header[33] = 0;
+        header[34] = (byte) bitsPerSample; // bits per sample
+        header[35] = 0;
+        header[36] = 'd';
+        header[37] = 'a';
+        header[38] = 't';
+        header[39] = 'a';
+        header[40] = (byte) (totalAudioLen & 0xff);
+        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
+        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
+        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
+        return header;
+    }
+}
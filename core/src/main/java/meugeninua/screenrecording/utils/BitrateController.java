@@ -0,0 +1,101 @@
+package meugeninua.screenrecording.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the encoded video of a window within a byte budget by adjusting the target bit rate of
+ * the encoder while it runs. Encoders miss their target both ways: a static screen takes a
+ * fraction of it, a busy one overshoots. So the controller measures what actually comes out, every
+ * second and as a running average, and scales the target by how far the output is from the rate
+ * the budget allows. It cuts at once and raises gradually, and never above the initial target.
+ * <p>
+ * Not thread safe, meant for the encoder output thread.
+ */
+public class BitrateController {
+
+    private static final long INTERVAL_US = TimeUnit.SECONDS.toMicros(1);
+    /** Share of the budget rate the output is held below, the rest absorbs bursts. */
+    private static final double TARGET_SHARE = 0.85;
+    /** Output below this share of the budget rate lets the target go up. */
+    private static final double RAISE_SHARE = 0.6;
+    /** Output below this share of the target means the encoder is not limited by it. */
+    private static final double SATURATION_SHARE = 0.5;
+    private static final double MAX_RAISE = 1.25;
+    private static final double MAX_CUT = 0.5;
+    /** Changes smaller than this are not worth reconfiguring the encoder. */
+    private static final double MIN_CHANGE = 0.05;
+    /** Weight of the newest interval in the running average, as its reciprocal. */
+    private static final int AVERAGE_INTERVALS = 4;
+
+    private final double budgetBytesPerSecond;
+    private final int minBitRate;
+    private final int maxBitRate;
+    private int bitRate;
+    private long intervalStartUs = -1L;
+    private long intervalBytes;
+    private double averageBytesPerSecond = -1.0;
+
+    /**
+     * @param budgetBytes bytes the buffer has for {@code windowSeconds} of video
+     * @param windowSeconds longest span the buffer holds, including a group of pictures beyond
+     * the requested window
+     * @param initialBitRate target the encoder is configured with, the highest one ever returned
+     * @param minBitRate lowest target ever returned, even when the budget is overrun
+     */
+    public BitrateController(long budgetBytes, int windowSeconds, int initialBitRate, int minBitRate) {
+        this.budgetBytesPerSecond = (double) budgetBytes / windowSeconds;
+        this.maxBitRate = initialBitRate;
+        this.minBitRate = Math.min(minBitRate, initialBitRate);
+        this.bitRate = initialBitRate;
+    }
+
+    /**
+     * @return the highest bit rate, up to {@code maxBitRate}, whose buffer fits {@code budgetBytes}
+     * when sized like {@link CyclicVideoBuffer}, with half as much again for overshoot
+     */
+    public static int fittingBitRate(long budgetBytes, int windowSeconds, int maxBitRate) {
+        return (int) Math.min(maxBitRate, budgetBytes * 8L * 2 / 3 / windowSeconds);
+    }
+
+    public int bitRate() {
+        return bitRate;
+    }
+
+    /**
+     * @param size bytes of an encoded frame, codec config included
+     * @return the new target bit rate to configure the encoder with, 0 to keep the current one
+     */
+    public int onFrame(int size, long presentationTimeUs) {
+        if (intervalStartUs < 0L) {
+            intervalStartUs = presentationTimeUs;
+        }
+        intervalBytes += size;
+        long elapsedUs = presentationTimeUs - intervalStartUs;
+        if (elapsedUs < INTERVAL_US) return 0;
+
+        double bytesPerSecond = intervalBytes * 1e6 / elapsedUs;
+        intervalStartUs = presentationTimeUs;
+        intervalBytes = 0L;
+        averageBytesPerSecond = averageBytesPerSecond < 0.0
+            ? bytesPerSecond
+            : averageBytesPerSecond + (bytesPerSecond - averageBytesPerSecond) / AVERAGE_INTERVALS;
+
+        double limit = budgetBytesPerSecond * TARGET_SHARE;
+        // a burst is acted on before the average catches up with it
+        double level = Math.max(bytesPerSecond, averageBytesPerSecond);
+        double factor = 1.0;
+        if (level > limit) {
+            factor = Math.max(MAX_CUT, limit / level);
+        } else if (averageBytesPerSecond < budgetBytesPerSecond * RAISE_SHARE
+            && averageBytesPerSecond >= bitRate / 8.0 * SATURATION_SHARE) {
+            factor = Math.min(MAX_RAISE, limit / averageBytesPerSecond);
+        }
+        int next = (int) Math.max(minBitRate, Math.min(maxBitRate, Math.round(bitRate * factor)));
+        if (Math.abs(next - bitRate) < bitRate * MIN_CHANGE) return 0;
+
+        // the output is expected to follow the target, so the next interval is not judged by the old one
+        averageBytesPerSecond *= (double) next / bitRate;
+        bitRate = next;
+        return next;
+    }
+}
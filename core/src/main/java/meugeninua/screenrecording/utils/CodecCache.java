@@ -0,0 +1,163 @@
+package meugeninua.screenrecording.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoders picked for a requested mime type and capture size, kept in a small file so a recording can start
+ * without enumerating the codecs and querying their capabilities again. The file belongs to one
+ * build fingerprint: after an OS update its entries are ignored and the next one stored replaces
+ * them all. Entries keep the throughput probe of the encoder, so it runs once per build and
+ * size. The file is written to a temporary one and renamed, so it is never read half written.
+ * <p>
+ * Not thread safe, meant for the thread recording is started on.
+ */
+public class CodecCache {
+
+    private static final int MAGIC = 0x434F4443;
+    private static final int VERSION = 3;
+
+    private final File file;
+    private final String fingerprint;
+    private Map<String, Entry> entries;
+
+    public CodecCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the encoder stored for the size, null when there is none for this build
+     */
+    public Entry get(String mimeType, int width, int height) {
+        return entries().get(key(mimeType, width, height));
+    }
+
+    public void put(String mimeType, int width, int height, Entry entry) throws IOException {
+        entries().put(key(mimeType, width, height), entry);
+        write();
+    }
+
+    /**
+     * Forgets an entry that turned out not to work.
+     */
+    public void remove(String mimeType, int width, int height) throws IOException {
+        if (entries().remove(key(mimeType, width, height)) != null) {
+            write();
+        }
+    }
+
+    private static String key(String mimeType, int width, int height) {
+        return mimeType + ' ' + width + 'x' + height;
+    }
+
+    private Map<String, Entry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            try {
+                read();
+            } catch (IOException e) {
+                // a missing or damaged file is an empty cache
+                entries.clear();
+            }
+        }
+        return entries;
+    }
+
+    private void read() throws IOException {
+        if (!file.isFile()) return;
+        try (DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file))
+        )) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) return;
+            if (!fingerprint.equals(input.readUTF())) return;
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = input.readUTF();
+                entries.put(key, new Entry(
+                    input.readUTF(), input.readUTF(), input.readUTF(),
+                    input.readInt(), input.readInt(), input.readInt(),
+                    input.readInt(), input.readInt(),
+                    input.readBoolean()
+                        ? new ThroughputProbe.Result(input.readDouble(), input.readLong(), input.readInt())
+                        : null
+                ));
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temporary))
+        )) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(fingerprint);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                Entry entry = item.getValue();
+                output.writeUTF(item.getKey());
+                output.writeUTF(entry.mimeType);
+                output.writeUTF(entry.name);
+                output.writeUTF(entry.canonicalName);
+                output.writeInt(entry.width);
+                output.writeInt(entry.height);
+                output.writeInt(entry.sliceHeight);
+                output.writeInt(entry.profile);
+                output.writeInt(entry.level);
+                output.writeBoolean(entry.probe != null);
+                if (entry.probe != null) {
+                    output.writeDouble(entry.probe.framesPerSecond);
+                    output.writeLong(entry.probe.latencyUs);
+                    output.writeInt(entry.probe.bitRate);
+                }
+            }
+        }
+        Files.move(
+            temporary.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+
+    public static class Entry {
+        /** Mime type the encoder was picked for, one of those the request matches. */
+        public final String mimeType;
+        public final String name;
+        public final String canonicalName;
+        /** Encoded size, the capture size scaled down until the encoder supports it. */
+        public final int width;
+        public final int height;
+        public final int sliceHeight;
+        /** Highest profile the encoder lists, with its highest level, 0 when unknown. */
+        public final int profile;
+        public final int level;
+        /** What the encoder achieved at this size, null when it was not probed. */
+        public final ThroughputProbe.Result probe;
+
+        public Entry(
+            String mimeType, String name, String canonicalName, int width, int height,
+            int sliceHeight, int profile, int level, ThroughputProbe.Result probe
+        ) {
+            this.mimeType = mimeType;
+            this.name = name;
+            this.canonicalName = canonicalName;
+            this.width = width;
+            this.height = height;
+            this.sliceHeight = sliceHeight;
+            this.profile = profile;
+            this.level = level;
+            this.probe = probe;
+        }
+    }
+}
@@ -0,0 +1,619 @@
+package meugeninua.screenrecording.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import meugeninua.screenrecording.recorder.audio.FlacEncoder;
+import meugeninua.screenrecording.recorder.audio.ImaAdpcm;
+import meugeninua.screenrecording.recorder.audio.WavHeader;
+
+/**
+ * Fixed-capacity circular buffer of interleaved PCM frames. The whole window is allocated up
+ * front, so memory is bounded and capture does not allocate.
+ * <p>
+ * A single thread captures, any number of threads may take snapshots. The ring holds some
+ * headroom past the window so capture can keep going while a snapshot is written out.
+ * <p>
+ * With IMA ADPCM the ring holds compressed blocks, about a quarter of the size. Captured PCM is
+ * collected until a block is full and encoded into the ring, so the window moves a block at a
+ * time and snapshots start and end on block boundaries. Snapshots decode back to PCM, or write
+ * the blocks as they are into an ADPCM WAV file.
+ * <p>
+ * Frames dropped because a snapshot pinned the ring leave a gap in time but none in frame
+ * positions. Each gap starts a new {@link Anchor}, so frames on either side keep their own
+ * presentation times; exports write the frames after a gap right after the ones before it.
+ */
+public class CyclicAudioBuffer {
+
+    private static final int MIN_HEADROOM_SECONDS = 5;
+
+    private final byte[] ring;
+    private final int sampleRate;
+    private final int frameSizeInBytes;
+    private final long framesLimit;
+    private final long capacityFrames;
+    /** Codec of the ring, null when it holds PCM. */
+    private final ImaAdpcm adpcm;
+    /** Frames and bytes of the unit the ring is written in, one frame for PCM. */
+    private final int blockFrames;
+    private final int blockBytes;
+    /** PCM frames collected for the next ADPCM block. */
+    private final byte[] pendingBlock;
+    private int pendingBytes;
+
+    private final Object snapshotLock = new Object();
+    private final List<State> snapshots = new ArrayList<>();
+
+    /** Published end of the captured stream, everything before it is fully written. */
+    private volatile long nextFramePosition = 0L;
+    /** Oldest frame that is still intact. */
+    private volatile long storedFramePosition = 0L;
+    /** Oldest frame some snapshot still reads, it must not be overwritten. */
+    private volatile long pinnedFramePosition = Long.MAX_VALUE;
+    /** Timing of the frames since the last gap, null until capture reports a timestamp. */
+    private volatile Anchor anchor;
+    private volatile long droppedFrames = 0L;
+    private byte[] discard;
+    private CaptureListener captureListener;
+
+    public CyclicAudioBuffer(int secondsLimit, int sampleRate, int frameSizeInBytes) {
+        this(secondsLimit, sampleRate, frameSizeInBytes, null);
+    }
+
+    /**
+     * @param adpcm codec to compress 16-bit PCM with, null to keep it as captured
+     */
+    public CyclicAudioBuffer(int secondsLimit, int sampleRate, int frameSizeInBytes, ImaAdpcm adpcm) {
+        if (adpcm != null && frameSizeInBytes != 2 * adpcm.channelCount()) {
+            throw new IllegalArgumentException("ADPCM needs 16-bit frames, got " + frameSizeInBytes);
+        }
+        this.sampleRate = sampleRate;
+        this.frameSizeInBytes = frameSizeInBytes;
+        this.adpcm = adpcm;
+        this.blockFrames = adpcm == null ? 1 : adpcm.framesPerBlock();
+        this.blockBytes = adpcm == null ? frameSizeInBytes : adpcm.blockAlign();
+        this.pendingBlock = adpcm == null ? null : new byte[blockFrames * frameSizeInBytes];
+        this.framesLimit = (long) secondsLimit * sampleRate;
+        long capacityBlocks = (framesLimit
+            + Math.max(framesLimit / 2, (long) MIN_HEADROOM_SECONDS * sampleRate)
+            + blockFrames - 1) / blockFrames;
+        this.capacityFrames = capacityBlocks * blockFrames;
+        this.ring = new byte[Math.toIntExact(capacityBlocks * blockBytes)];
+    }
+
+    /**
+     * Ties a frame position of the capture stream to its presentation time, as reported by
+     * {@code AudioRecord.getTimestamp}. Frame positions count from the start of capture.
+     */
+    public void setTimestamp(long framePosition, long presentationTimeUs) {
+        long frames = framePosition - droppedFrames;
+        long originTimeUs = presentationTimeUs - frames * 1_000_000L / sampleRate;
+        Anchor latest = anchor;
+        if (latest == null) {
+            anchor = new Anchor(0L, originTimeUs, null);
+        } else {
+            // only frames since the last gap move, the ones before keep the time they had
+            latest.originTimeUs = originTimeUs;
+        }
+    }
+
+    /**
+     * Counts dropped frames, they were captured right after the frame at
+     * {@link #nextFramePosition}. The frames stored from then on get an anchor of their own,
+     * later by the time of the gap. Allocates once per gap, not per dropped chunk.
+     */
+    private void onDropped(long frames) {
+        droppedFrames += frames;
+        Anchor latest = anchor;
+        if (latest == null) return;
+        long gapUs = frames * 1_000_000L / sampleRate;
+        long next = nextFramePosition;
+        if (latest.framePosition == next) {
+            // nothing stored since the last gap, it just grows
+            latest.originTimeUs += gapUs;
+            return;
+        }
+        // anchors of frames that are overwritten already are of no use, a snapshot never
+        // starts before storedFramePosition
+        long stored = storedFramePosition;
+        for (Anchor older = latest; older != null; older = older.previous) {
+            if (older.framePosition <= stored) {
+                older.previous = null;
+                break;
+            }
+        }
+        anchor = new Anchor(next, latest.originTimeUs + gapUs, latest);
+    }
+
+    /**
+     * Sets a listener that sees every captured chunk, dropped ones included, on the capture
+     * thread. Must be set before capture starts.
+     */
+    public void setCaptureListener(CaptureListener listener) {
+        this.captureListener = listener;
+    }
+
+    /**
+     * @return presentation time of the frame at {@code framePosition} of the buffered stream,
+     * or -1 until capture reports a timestamp
+     */
+    private long presentationTimeUs(long framePosition) {
+        Anchor latest = anchor;
+        return latest == null ? -1L : latest.originTimeUs + framePosition * 1_000_000L / sampleRate;
+    }
+
+    private void notifyCaptured(byte[] buffer, int offset, int length, long framePosition) {
+        CaptureListener listener = captureListener;
+        if (listener == null || length <= 0) return;
+        listener.onCaptured(buffer, offset, length - length % frameSizeInBytes, presentationTimeUs(framePosition));
+    }
+
+    /**
+     * Reads up to {@code maxBytes} from {@code source} straight into the ring, overwriting the
+     * oldest frames. A read never wraps, so it may return less than asked near the ring end.
+     * When a snapshot still reads the frames to overwrite, the chunk is read and dropped.
+     *
+     * @return number of bytes read or the negative error code of the source
+     */
+    public int read(PcmSource source, int maxBytes) {
+        if (adpcm != null) return readBlock(source, maxBytes);
+        long next = nextFramePosition;
+        int offset = offsetOf(next);
+        int length = Math.min(maxBytes, ring.length - offset);
+        length -= length % frameSizeInBytes;
+        if (!reserve(next + length / frameSizeInBytes)) {
+            if (discard == null || discard.length < length) {
+                discard = new byte[length];
+            }
+            int count = source.read(discard, 0, length);
+            notifyCaptured(discard, 0, count, next);
+            if (count > 0) {
+                onDropped(count / frameSizeInBytes);
+            }
+            return count;
+        }
+        int count = source.read(ring, offset, length);
+        notifyCaptured(ring, offset, count, next);
+        if (count > 0) {
+            // a trailing partial frame is overwritten by the next read
+            nextFramePosition = next + count / frameSizeInBytes;
+        }
+        return count;
+    }
+
+    /**
+     * Reads into the pending block and encodes it into the ring once it is full.
+     */
+    private int readBlock(PcmSource source, int maxBytes) {
+        int length = Math.min(maxBytes, pendingBlock.length - pendingBytes);
+        length -= length % frameSizeInBytes;
+        int count = source.read(pendingBlock, pendingBytes, length);
+        notifyCaptured(pendingBlock, pendingBytes, count, nextFramePosition + pendingBytes / frameSizeInBytes);
+        if (count > 0) {
+            pendingBytes += count - count % frameSizeInBytes;
+            if (pendingBytes == pendingBlock.length) {
+                commitBlock();
+            }
+        }
+        return count;
+    }
+
+    private void commitBlock() {
+        pendingBytes = 0;
+        long next = nextFramePosition;
+        if (!reserve(next + blockFrames)) {
+            onDropped(blockFrames);
+            return;
+        }
+        adpcm.encode(pendingBlock, 0, ring, offsetOf(next));
+        nextFramePosition = next + blockFrames;
+    }
+
+    public void addBuffer(byte[] bytes, int count) {
+        count -= count % frameSizeInBytes;
+        long next = nextFramePosition;
+        if (adpcm != null) {
+            notifyCaptured(bytes, 0, count, next + pendingBytes / frameSizeInBytes);
+            for (int offset = 0; offset < count; ) {
+                int length = Math.min(count - offset, pendingBlock.length - pendingBytes);
+                System.arraycopy(bytes, offset, pendingBlock, pendingBytes, length);
+                pendingBytes += length;
+                offset += length;
+                if (pendingBytes == pendingBlock.length) {
+                    commitBlock();
+                }
+            }
+            return;
+        }
+        notifyCaptured(bytes, 0, count, next);
+        // only the newest ring-full of a larger chunk survives
+        int skip = Math.max(0, count - ring.length);
+        next += skip / frameSizeInBytes;
+        count -= skip;
+        if (!reserve(next + count / frameSizeInBytes)) {
+            onDropped((skip + count) / frameSizeInBytes);
+            return;
+        }
+        int offset = offsetOf(next);
+        int head = Math.min(count, ring.length - offset);
+        System.arraycopy(bytes, skip, ring, offset, head);
+        System.arraycopy(bytes, skip + head, ring, 0, count - head);
+        nextFramePosition = next + count / frameSizeInBytes;
+    }
+
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Makes room for frames up to {@code endFramePosition}, unless a snapshot pins them. Uses the
+     * same publish-then-check handshake with {@link #cloneState()} as the video buffer.
+     */
+    private boolean reserve(long endFramePosition) {
+        long stored = storedFramePosition;
+        long needed = endFramePosition - capacityFrames;
+        if (needed <= stored) return true;
+        if (needed > pinnedFramePosition) return false;
+        storedFramePosition = needed;
+        if (needed > pinnedFramePosition) {
+            storedFramePosition = stored;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a snapshot of the current window in constant time. Until the snapshot is closed the
+     * frames it covers are kept intact, so it should be closed as soon as it is written out.
+     */
+    public State cloneState() {
+        synchronized (snapshotLock) {
+            long pinned = pinnedFramePosition;
+            long next;
+            long first;
+            do {
+                long stored = storedFramePosition;
+                next = nextFramePosition;
+                first = Math.max(stored, floorToBlock(next - framesLimit));
+                pinnedFramePosition = Math.min(first, pinned);
+            } while (storedFramePosition > first);
+
+            Anchor latest = anchor;
+            State state = new State(
+                this, first, next, latest, latest != null ? latest.originTimeUs : Long.MIN_VALUE
+            );
+            snapshots.add(state);
+            return state;
+        }
+    }
+
+    private void release(State state) {
+        synchronized (snapshotLock) {
+            if (!snapshots.remove(state)) return;
+            long pinned = Long.MAX_VALUE;
+            for (State snapshot : snapshots) {
+                pinned = Math.min(pinned, snapshot.pinnedFramePosition);
+            }
+            pinnedFramePosition = pinned;
+        }
+    }
+
+    /**
+     * @return offset of the frame in the ring, or of the block that holds it
+     */
+    private int offsetOf(long framePosition) {
+        return (int) (framePosition % capacityFrames / blockFrames * blockBytes);
+    }
+
+    private long floorToBlock(long framePosition) {
+        return Math.floorDiv(framePosition, blockFrames) * blockFrames;
+    }
+
+    private long ceilToBlock(long framePosition) {
+        return floorToBlock(framePosition + blockFrames - 1);
+    }
+
+    /**
+     * Presentation time of the frames from {@link #framePosition} up to the next anchor. Only the
+     * latest anchor still changes, with every timestamp capture reports.
+     */
+    private static final class Anchor {
+
+        final long framePosition;
+        volatile long originTimeUs;
+        /** Anchor of the frames before the gap, null when they are overwritten. */
+        volatile Anchor previous;
+
+        /**
+         * @param originTimeUs presentation time frame 0 would have, were there no gaps since
+         */
+        Anchor(long framePosition, long originTimeUs, Anchor previous) {
+            this.framePosition = framePosition;
+            this.originTimeUs = originTimeUs;
+            this.previous = previous;
+        }
+    }
+
+    public interface PcmSource {
+
+        /**
+         * Same contract as {@code AudioRecord.read(byte[], int, int)}.
+         */
+        int read(byte[] buffer, int offset, int length);
+    }
+
+    public interface CaptureListener {
+
+        /**
+         * @param presentationTimeUs presentation time of the first frame of the chunk, -1 when
+         * capture has not reported a timestamp yet
+         */
+        void onCaptured(byte[] buffer, int offset, int length, long presentationTimeUs);
+    }
+
+    public static class State implements Closeable {
+
+        private final CyclicAudioBuffer owner;
+        private final long pinnedFramePosition;
+        /** Latest anchor when the snapshot was taken, null without a timestamp. */
+        private final Anchor anchor;
+        /** Origin of {@link #anchor} as it was then, later timestamps leave the snapshot alone. */
+        private final long latestOriginTimeUs;
+        private long firstFramePosition;
+        private long nextFramePosition;
+
+        private State(
+            CyclicAudioBuffer owner, long firstFramePosition, long nextFramePosition,
+            Anchor anchor, long latestOriginTimeUs
+        ) {
+            this.owner = owner;
+            this.pinnedFramePosition = firstFramePosition;
+            this.firstFramePosition = firstFramePosition;
+            this.nextFramePosition = nextFramePosition;
+            this.anchor = anchor;
+            this.latestOriginTimeUs = latestOriginTimeUs;
+        }
+
+        private long originTimeUs(Anchor anchor) {
+            return anchor == this.anchor ? latestOriginTimeUs : anchor.originTimeUs;
+        }
+
+        public long frameCount() {
+            return nextFramePosition - firstFramePosition;
+        }
+
+        /**
+         * @return presentation time of the first frame, or -1 when capture reported no timestamp
+         */
+        public long startTimeUs() {
+            return presentationTimeUs(0L);
+        }
+
+        /**
+         * @param frame counted from the start of the snapshot
+         * @return presentation time of the frame, by the anchor of the gap before it, or -1 when
+         * capture reported no timestamp
+         */
+        public long presentationTimeUs(long frame) {
+            long framePosition = firstFramePosition + frame;
+            for (Anchor anchor = this.anchor; anchor != null; anchor = anchor.previous) {
+                if (anchor.framePosition <= framePosition || anchor.previous == null) {
+                    return originTimeUs(anchor) + framePosition * 1_000_000L / owner.sampleRate;
+                }
+            }
+            return -1L;
+        }
+
+        /**
+         * @return position of the frame presented at {@code timeUs}, or of the first frame after
+         * it when it falls into a gap
+         */
+        private long framePositionAt(long timeUs) {
+            long gapEnd = Long.MAX_VALUE;
+            for (Anchor anchor = this.anchor; anchor != null; anchor = anchor.previous) {
+                long framePosition = (timeUs - originTimeUs(anchor)) * owner.sampleRate / 1_000_000L;
+                if (framePosition >= anchor.framePosition || anchor.previous == null) {
+                    return Math.min(framePosition, gapEnd);
+                }
+                gapEnd = anchor.framePosition;
+            }
+            return firstFramePosition;
+        }
+
+        /**
+         * Narrows the snapshot to the frames presented between {@code startTimeUs} and
+         * {@code endTimeUs}, to line it up with a video snapshot. Does nothing without a timestamp.
+         * ADPCM snapshots keep the whole blocks that cover the span.
+         */
+        public void clip(long startTimeUs, long endTimeUs) {
+            if (anchor == null) return;
+            long from = owner.floorToBlock(framePositionAt(startTimeUs));
+            long to = owner.ceilToBlock(framePositionAt(endTimeUs));
+            firstFramePosition = Math.min(Math.max(firstFramePosition, from), nextFramePosition);
+            nextFramePosition = Math.max(firstFramePosition, Math.min(nextFramePosition, to));
+        }
+
+        /**
+         * Writes the raw interleaved PCM frames straight from the ring.
+         */
+        public void writeTo(OutputStream stream) throws IOException {
+            if (owner.adpcm != null) {
+                writeDecoded(Channels.newChannel(stream), firstFramePosition, frameCount());
+                return;
+            }
+            int length = (int) (frameCount() * owner.frameSizeInBytes);
+            int offset = owner.offsetOf(firstFramePosition);
+            int head = Math.min(length, owner.ring.length - offset);
+            stream.write(owner.ring, offset, head);
+            stream.write(owner.ring, 0, length - head);
+        }
+
+        /**
+         * Writes {@code frameCount} frames starting at {@code firstFrame}, counted from the start
+         * of the snapshot, straight from the ring or decoded from ADPCM.
+         */
+        public void writeTo(WritableByteChannel channel, long firstFrame, long frameCount)
+            throws IOException {
+            if (owner.adpcm != null) {
+                writeDecoded(channel, firstFramePosition + firstFrame, frameCount);
+                return;
+            }
+            int length = (int) (frameCount * owner.frameSizeInBytes);
+            int offset = owner.offsetOf(firstFramePosition + firstFrame);
+            int head = Math.min(length, owner.ring.length - offset);
+            writeFully(channel, ByteBuffer.wrap(owner.ring, offset, head));
+            writeFully(channel, ByteBuffer.wrap(owner.ring, 0, length - head));
+        }
+
+        /**
+         * Copies {@code frameCount} PCM frames starting at {@code firstFrame}, counted from the
+         * start of the snapshot, into {@code target}. Safe to call from several threads at once.
+         */
+        public void read(long firstFrame, int frameCount, byte[] target) {
+            int frameSize = owner.frameSizeInBytes;
+            long position = firstFramePosition + firstFrame;
+            if (owner.adpcm == null) {
+                int length = frameCount * frameSize;
+                int offset = owner.offsetOf(position);
+                int head = Math.min(length, owner.ring.length - offset);
+                System.arraycopy(owner.ring, offset, target, 0, head);
+                System.arraycopy(owner.ring, 0, target, head, length - head);
+                return;
+            }
+            byte[] pcm = new byte[owner.blockFrames * frameSize];
+            for (int done = 0; done < frameCount; ) {
+                long blockStart = owner.floorToBlock(position);
+                int skip = (int) (position - blockStart);
+                int count = Math.min(frameCount - done, owner.blockFrames - skip);
+                owner.adpcm.decode(owner.ring, owner.offsetOf(blockStart), pcm, 0);
+                System.arraycopy(pcm, skip * frameSize, target, done * frameSize, count * frameSize);
+                position += count;
+                done += count;
+            }
+        }
+
+        /**
+         * Writes a FLAC file of the snapshot, see {@link #writeToFlac(WritableByteChannel, int, ExecutorService)}.
+         *
+         * @return number of bytes written
+         */
+        public long writeToFlac(String fileName, int channelCount, ExecutorService executor)
+            throws IOException {
+            try (FileChannel channel = FileChannel.open(
+                Paths.get(fileName),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                return writeToFlac(channel, channelCount, executor);
+            }
+        }
+
+        /**
+         * Encodes the 16-bit frames of the snapshot as FLAC in a single pass, the blocks are read
+         * straight from the ring by the encoding tasks.
+         *
+         * @param executor encodes runs of FLAC frames in parallel, null to encode on this thread
+         * @return number of bytes written
+         */
+        public long writeToFlac(WritableByteChannel channel, int channelCount, ExecutorService executor)
+            throws IOException {
+            if (owner.frameSizeInBytes != 2 * channelCount) {
+                throw new IOException("FLAC export needs 16-bit PCM");
+            }
+            return new FlacEncoder(owner.sampleRate, channelCount, executor)
+                .encode(this::read, frameCount(), channel);
+        }
+
+        /**
+         * Writes a WAV file of the snapshot in a single pass.
+         *
+         * @return number of bytes written
+         */
+        public long writeToWav(String fileName, int channelCount) throws IOException {
+            try (FileChannel channel = FileChannel.open(
+                Paths.get(fileName),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                return writeToWav(channel, channelCount);
+            }
+        }
+
+        /**
+         * Writes the WAV header, computed from the snapshot size, followed by the PCM frames or
+         * ADPCM blocks straight from the ring with one gathering write.
+         *
+         * @return number of bytes written
+         */
+        public long writeToWav(GatheringByteChannel channel, int channelCount) throws IOException {
+            int length = (int) (frameCount() / owner.blockFrames * owner.blockBytes);
+            int offset = owner.offsetOf(firstFramePosition);
+            int head = Math.min(length, owner.ring.length - offset);
+            WavHeader header = owner.adpcm != null
+                ? new WavHeader(owner.sampleRate, owner.adpcm, frameCount(), length)
+                : new WavHeader(
+                    owner.sampleRate, channelCount,
+                    owner.frameSizeInBytes / channelCount * 8, length
+                );
+            ByteBuffer[] buffers = {
+                ByteBuffer.wrap(header.toBytes()),
+                ByteBuffer.wrap(owner.ring, offset, head),
+                ByteBuffer.wrap(owner.ring, 0, length - head)
+            };
+            long total = header.size() + length;
+            long written = 0L;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            return written;
+        }
+
+        /**
+         * Decodes the blocks that hold the frames from {@code framePosition} on, one at a time.
+         */
+        private void writeDecoded(WritableByteChannel channel, long framePosition, long frameCount)
+            throws IOException {
+            int frameSize = owner.frameSizeInBytes;
+            byte[] pcm = new byte[owner.blockFrames * frameSize];
+            ByteBuffer view = ByteBuffer.wrap(pcm);
+            while (frameCount > 0) {
+                long blockStart = owner.floorToBlock(framePosition);
+                int skip = (int) (framePosition - blockStart);
+                int count = (int) Math.min(frameCount, owner.blockFrames - skip);
+                owner.adpcm.decode(owner.ring, owner.offsetOf(blockStart), pcm, 0);
+                view.limit((skip + count) * frameSize).position(skip * frameSize);
+                writeFully(channel, view);
+                framePosition += count;
+                frameCount -= count;
+            }
+        }
+
+        private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Unpins the frames of this snapshot, capture may overwrite them from now on.
+         */
+        @Override
+        public void close() {
+            owner.release(this);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package meugeninua.screenrecording.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay buffer for encoded video. A single thread adds samples, any number of threads may take
+ * snapshots of the window and write them out while capture keeps running.
+ */
+public class CyclicVideoBuffer {
+
+    private static final int DEFAULT_BIT_RATE = 6000000;
+    private static final int DEFAULT_FRAME_RATE = 30;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final SlabArena arena;
+    private final long[] positions;
+    private final int[] sizes;
+    private final int[] flags;
+    private final long[] presentationTimesUs;
+    private final long[] keyFrameSeqs;
+    /** Latest sync frame at or before each sample, the time index {@link State#clip} seeks by. */
+    private final long[] syncSeqs;
+    private final long timeLimitUs;
+
+    private final Object snapshotLock = new Object();
+    private final List<State> snapshots = new ArrayList<>();
+
+    private volatile ByteBuffer codecConfig;
+    /** Oldest sample of the window, always a sync frame. */
+    private volatile long firstSeq = 0L;
+    /** Published end of the window, everything before it is fully written. */
+    private volatile long nextSeq = 0L;
+    /** Oldest sample whose bytes and metadata are still intact. */
+    private volatile long storedSeq = 0L;
+    /** Oldest sample some snapshot still reads, it must not be overwritten. */
+    private volatile long pinnedSeq = Long.MAX_VALUE;
+    private long firstKeyFrame = 0L;
+    private long nextKeyFrame = 0L;
+    private long writePosition = 0L;
+    private boolean awaitingKeyFrame = true;
+    private volatile long droppedSamples = 0L;
+    /**
+     * The window as of the last {@link #add}, published for readers that must not pin it the
+     * way a snapshot does.
+     */
+    private volatile int windowSamples;
+    private volatile long windowBytes;
+    private volatile long windowStartTimeUs;
+    private volatile long windowEndTimeUs;
+    private EvictionListener evictionListener;
+    private ByteBuffer[] evictionViews;
+
+    public CyclicVideoBuffer(int secondsLimit) {
+        this(secondsLimit, DEFAULT_BIT_RATE, DEFAULT_FRAME_RATE);
+    }
+
+    public CyclicVideoBuffer(int secondsLimit, int bitRate, int frameRate) {
+        this(secondsLimit, bitRate, frameRate, 1);
+    }
+
+    /**
+     * @param syncFrameIntervalSeconds longest expected run between sync frames, the window is
+     * evicted a group of pictures at a time, so it holds up to this much more than
+     * {@code secondsLimit}
+     */
+    public CyclicVideoBuffer(int secondsLimit, int bitRate, int frameRate, int syncFrameIntervalSeconds) {
+        this(
+            secondsLimit,
+            // half as much again as the nominal bitrate, encoders overshoot on busy screens
+            // and capture keeps going while a snapshot is written out
+            (long) bitRate / 8 * (secondsLimit + syncFrameIntervalSeconds - 1) * 3 / 2,
+            SLAB_SIZE,
+            (secondsLimit + syncFrameIntervalSeconds) * frameRate * 2
+        );
+    }
+
+    CyclicVideoBuffer(int secondsLimit, long arenaCapacity, int slabSize, int maxSamples) {
+        this(secondsLimit, new SlabArena(arenaCapacity, slabSize), maxSamples);
+    }
+
+    CyclicVideoBuffer(int secondsLimit, SlabArena arena, int maxSamples) {
+        this.timeLimitUs = TimeUnit.SECONDS.toMicros(secondsLimit);
+        this.arena = arena;
+        this.positions = new long[maxSamples];
+        this.sizes = new int[maxSamples];
+        this.flags = new int[maxSamples];
+        this.presentationTimesUs = new long[maxSamples];
+        this.keyFrameSeqs = new long[maxSamples];
+        this.syncSeqs = new long[maxSamples];
+    }
+
+    /**
+     * Copies the remaining bytes of {@code buffer} into the arena. {@code sampleFlags} are
+     * {@link SampleFlags}, encoder output flags can be passed as they are. Allocates nothing once the
+     * codec config sample has been stored and never waits for snapshots: when the space it needs
+     * is still being read the sample is dropped, together with the rest of its group of pictures.
+     * <p>
+     * Samples are evicted a whole group of pictures at a time, so the oldest stored sample is
+     * always a sync frame. The window is measured by presentation time, not by arrival time.
+     */
+    public void add(ByteBuffer buffer, int sampleFlags, long presentationTimeUs) {
+        store(buffer, sampleFlags, presentationTimeUs);
+        publishWindow();
+    }
+
+    private void store(ByteBuffer buffer, int sampleFlags, long presentationTimeUs) {
+        int size = buffer.remaining();
+        if (size == 0) return;
+        if ((sampleFlags & SampleFlags.CODEC_CONFIG) != 0) {
+            storeCodecConfig(buffer);
+            return;
+        }
+
+        boolean keyFrame = (sampleFlags & SampleFlags.KEY_FRAME) != 0;
+        // a clip has to start on a sync frame and predicted frames after a gap are useless
+        awaitingKeyFrame &= !keyFrame;
+        if (awaitingKeyFrame || size > arena.slabSize()) {
+            dropSample();
+            return;
+        }
+
+        long seq = nextSeq;
+        long position = arena.align(writePosition, size);
+        while (storedSeq < seq && (seq - storedSeq >= positions.length
+            || position + size - positions[slot(storedSeq)] > arena.capacity())) {
+            if (!reclaimOldest()) {
+                dropSample();
+                return;
+            }
+        }
+        if (firstSeq == seq && !keyFrame) {
+            // the group this frame belongs to did not fit and is gone
+            dropSample();
+            return;
+        }
+        arena.write(position, buffer);
+
+        int slot = slot(seq);
+        positions[slot] = position;
+        sizes[slot] = size;
+        flags[slot] = sampleFlags;
+        presentationTimesUs[slot] = presentationTimeUs;
+        writePosition = position + size;
+        if (keyFrame) {
+            keyFrameSeqs[slot(nextKeyFrame++)] = seq;
+        }
+        syncSeqs[slot] = keyFrameSeqs[slot(nextKeyFrame - 1)];
+        nextSeq = seq + 1;
+
+        // keep at least the requested window, dropping the first group only when the rest covers it
+        while (nextKeyFrame - firstKeyFrame > 1
+            && presentationTimeUs - presentationTimesUs[slot(keyFrameSeqs[slot(firstKeyFrame + 1)])] >= timeLimitUs) {
+            evictGroupOfPictures();
+        }
+    }
+
+    /**
+     * Drops and evictions move the window too, so it is published after every sample.
+     */
+    private void publishWindow() {
+        long first = firstSeq;
+        long next = nextSeq;
+        if (first == next) {
+            windowSamples = 0;
+            windowBytes = 0L;
+            return;
+        }
+        int firstSlot = slot(first);
+        int lastSlot = slot(next - 1);
+        windowStartTimeUs = presentationTimesUs[firstSlot];
+        windowEndTimeUs = presentationTimesUs[lastSlot];
+        windowBytes = positions[lastSlot] + sizes[lastSlot] - positions[firstSlot];
+        windowSamples = (int) (next - first);
+    }
+
+    /**
+     * Allocates the memory of the buffer ahead of the samples on {@code allocator}, so the first
+     * fill does not allocate on the capture thread. Without one a slab is allocated by the
+     * sample that needs it.
+     */
+    public void setSlabAllocator(Executor allocator) {
+        arena.setAllocator(allocator);
+    }
+
+    private void dropSample() {
+        awaitingKeyFrame = true;
+        droppedSamples++;
+    }
+
+    /**
+     * Receives every group of pictures as it leaves the window, on the capture thread.
+     */
+    void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    private void evictGroupOfPictures() {
+        if (evictionListener != null && firstKeyFrame < nextKeyFrame) {
+            // the group is still stored, storage is reclaimed only up to the window start
+            long end = firstKeyFrame + 1 < nextKeyFrame ? keyFrameSeqs[slot(firstKeyFrame + 1)] : nextSeq;
+            if (evictionViews == null) {
+                evictionViews = new ByteBuffer[arena.slabCount()];
+            }
+            for (long seq = firstSeq; seq < end; seq++) {
+                int slot = slot(seq);
+                ByteBuffer view = viewOf(evictionViews, positions[slot], sizes[slot]);
+                int offset = view.position();
+                evictionListener.onEvicted(
+                    view, offset, sizes[slot], flags[slot], presentationTimesUs[slot]
+                );
+            }
+        }
+        firstKeyFrame++;
+        firstSeq = firstKeyFrame < nextKeyFrame ? keyFrameSeqs[slot(firstKeyFrame)] : nextSeq;
+    }
+
+    /**
+     * Frees the storage of the oldest stored sample unless a snapshot pins it. The claim on
+     * {@code storedSeq} is published before {@code pinnedSeq} is read, while a snapshot publishes
+     * its pin before reading {@code storedSeq}, so one of the two always sees the other.
+     */
+    private boolean reclaimOldest() {
+        long seq = storedSeq;
+        if (seq >= pinnedSeq) return false;
+        if (seq == firstSeq) {
+            evictGroupOfPictures();
+        }
+        storedSeq = seq + 1;
+        if (seq >= pinnedSeq) {
+            storedSeq = seq;
+            return false;
+        }
+        return true;
+    }
+
+    public long droppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * @return samples in the window as of the last {@link #add}, read without pinning anything
+     */
+    public int windowSampleCount() {
+        return windowSamples;
+    }
+
+    /**
+     * @return bytes the window took in the arena as of the last {@link #add}, see
+     * {@link State#byteCount()}
+     */
+    public long windowByteCount() {
+        return windowSamples == 0 ? 0L : windowBytes;
+    }
+
+    /**
+     * @return presentation time of the oldest sample as of the last {@link #add}, 0 when empty
+     */
+    public long windowStartTimeUs() {
+        return windowSamples == 0 ? 0L : windowStartTimeUs;
+    }
+
+    /**
+     * @return presentation time of the newest sample as of the last {@link #add}, 0 when empty
+     */
+    public long windowEndTimeUs() {
+        return windowSamples == 0 ? 0L : windowEndTimeUs;
+    }
+
+    /**
+     * @return bytes the arena took so far, it grows with the bytes stored up to its capacity
+     */
+    public long allocatedBytes() {
+        return arena.allocatedBytes();
+    }
+
+    /**
+     * Takes a snapshot of the current window in constant time. Until the snapshot is closed the
+     * samples it covers are kept intact, so it should be closed as soon as it is written out.
+     */
+    public State cloneState() {
+        synchronized (snapshotLock) {
+            long pinned = pinnedSeq;
+            long first;
+            do {
+                first = firstSeq;
+                pinnedSeq = Math.min(first, pinned);
+            } while (storedSeq > first);
+            State state = new State(this, codecConfig, first, nextSeq);
+            snapshots.add(state);
+            return state;
+        }
+    }
+
+    private void release(State state) {
+        synchronized (snapshotLock) {
+            if (!snapshots.remove(state)) return;
+            long pinned = Long.MAX_VALUE;
+            for (State snapshot : snapshots) {
+                pinned = Math.min(pinned, snapshot.pinnedSeq);
+            }
+            pinnedSeq = pinned;
+        }
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % positions.length);
+    }
+
+    /**
+     * @return a view from {@code views}, created once per slab, positioned on the sample
+     */
+    private ByteBuffer viewOf(ByteBuffer[] views, long position, int size) {
+        int slabIndex = arena.slabIndex(position);
+        if (views[slabIndex] == null) {
+            views[slabIndex] = arena.view(slabIndex);
+        }
+        ByteBuffer view = views[slabIndex];
+        int offset = arena.offset(position);
+        view.limit(offset + size).position(offset);
+        return view;
+    }
+
+    private void storeCodecConfig(ByteBuffer buffer) {
+        ByteBuffer config = ByteBuffer.allocateDirect(buffer.remaining());
+        config.put(buffer).flip();
+        codecConfig = config.asReadOnlyBuffer();
+    }
+
+    public interface SampleSink {
+
+        /**
+         * {@code buffer} is positioned on the sample as well, but it is shared between samples and
+         * must not be kept after the call.
+         */
+        void writeSample(
+            ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs
+        ) throws IOException;
+    }
+
+    /**
+     * A sink that can also take samples as regions of the file a disk tier is mapped from, to
+     * copy them with {@link FileChannel#transferTo} instead of through memory.
+     */
+    public interface FileRegionSink extends SampleSink {
+
+        void writeSample(
+            FileChannel file, long filePosition, int size, int flags, long presentationTimeUs
+        ) throws IOException;
+    }
+
+    interface EvictionListener {
+
+        /**
+         * Same contract as {@link SampleSink#writeSample}, with the original presentation time.
+         */
+        void onEvicted(ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs);
+    }
+
+    public static class State implements Closeable {
+
+        private final CyclicVideoBuffer owner;
+        final ByteBuffer codecConfig;
+        private final long pinnedSeq;
+        private long nextSeq;
+        private long firstSeq;
+
+        private State(CyclicVideoBuffer owner, ByteBuffer codecConfig, long firstSeq, long nextSeq) {
+            this.owner = owner;
+            this.codecConfig = codecConfig;
+            this.pinnedSeq = firstSeq;
+            this.firstSeq = firstSeq;
+            this.nextSeq = nextSeq;
+        }
+
+        public int sampleCount() {
+            return (int) (nextSeq - firstSeq);
+        }
+
+        /**
+         * @return presentation time of the first sample in the encoder time base
+         */
+        public long startTimeUs() {
+            return nextSeq == firstSeq ? 0L : owner.presentationTimesUs[owner.slot(firstSeq)];
+        }
+
+        /**
+         * @return presentation time of the last sample in the encoder time base
+         */
+        public long endTimeUs() {
+            return nextSeq == firstSeq ? 0L : owner.presentationTimesUs[owner.slot(nextSeq - 1)];
+        }
+
+        /**
+         * @return bytes the samples take in the arena, padding at the end of slabs included
+         */
+        public long byteCount() {
+            if (nextSeq == firstSeq) return 0L;
+            int last = owner.slot(nextSeq - 1);
+            return owner.positions[last] + owner.sizes[last] - owner.positions[owner.slot(firstSeq)];
+        }
+
+        /**
+         * Writes the codec config followed by all samples, rebased so the clip starts at pts 0.
+         * Samples are handed out straight from the arena, nothing is copied.
+         */
+        public void writeTo(SampleSink sink) throws IOException {
+            if (codecConfig != null) {
+                ByteBuffer config = codecConfig.duplicate();
+                sink.writeSample(config, 0, config.remaining(), SampleFlags.CODEC_CONFIG, 0L);
+            }
+            writeSamples(sink, startTimeUs());
+        }
+
+        /**
+         * Writes the samples without the codec config, rebased to {@code baseTimeUs}. Samples of
+         * a disk tier go to a {@link FileRegionSink} as file regions.
+         */
+        void writeSamples(SampleSink sink, long baseTimeUs) throws IOException {
+            SlabArena arena = owner.arena;
+            FileChannel file = sink instanceof FileRegionSink ? arena.file() : null;
+            ByteBuffer[] views = new ByteBuffer[arena.slabCount()];
+            for (long seq = firstSeq; seq < nextSeq; seq++) {
+                int slot = owner.slot(seq);
+                long position = owner.positions[slot];
+                int size = owner.sizes[slot];
+                long presentationTimeUs = owner.presentationTimesUs[slot] - baseTimeUs;
+                if (file != null) {
+                    ((FileRegionSink) sink).writeSample(
+                        file, arena.filePosition(position), size, owner.flags[slot],
+                        presentationTimeUs
+                    );
+                } else {
+                    ByteBuffer view = owner.viewOf(views, position, size);
+                    sink.writeSample(
+                        view, view.position(), size, owner.flags[slot], presentationTimeUs
+                    );
+                }
+            }
+        }
+
+        /**
+         * Narrows the snapshot to the samples from the latest sync frame presented at or before
+         * {@code startTimeUs} through the last one presented at or before {@code endTimeUs}, times
+         * in the encoder time base. Takes logarithmic time: the bounds are found by binary search
+         * on the presentation times, which encoders without B-frames emit in order, and the sync
+         * frame is looked up by the sample.
+         */
+        public void clip(long startTimeUs, long endTimeUs) {
+            long start = lastAtOrBefore(startTimeUs);
+            if (start >= firstSeq) {
+                firstSeq = Math.max(firstSeq, owner.syncSeqs[owner.slot(start)]);
+            }
+            nextSeq = Math.max(firstSeq, lastAtOrBefore(endTimeUs) + 1);
+        }
+
+        /**
+         * @return the last sample presented at or before {@code timeUs}, {@code firstSeq - 1} when
+         * there is none
+         */
+        private long lastAtOrBefore(long timeUs) {
+            long low = firstSeq;
+            long high = nextSeq - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                if (owner.presentationTimesUs[owner.slot(middle)] <= timeUs) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * Drops the samples presented at or before {@code timeUs} from the start of the snapshot.
+         */
+        void skipThrough(long timeUs) {
+            while (firstSeq < nextSeq && owner.presentationTimesUs[owner.slot(firstSeq)] <= timeUs) {
+                firstSeq++;
+            }
+        }
+
+        /**
+         * Unpins the samples of this snapshot, capture may overwrite them from now on.
+         */
+        @Override
+        public void close() {
+            owner.release(this);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package meugeninua.screenrecording.utils;
+
+/**
+ * Ranks encoders by what a buffered second costs: the bytes it takes for the quality of H.264 at
+ * full capture size, plus the CPU time of encoding it. Figures are rough averages for screen
+ * content, meant to order the candidates rather than predict their output.
+ */
+public final class EncoderCostModel {
+
+    public static final String AVC = "video/avc";
+    public static final String HEVC = "video/hevc";
+    public static final String AV1 = "video/av01";
+
+    /** CPU time of a software H.264 encoder weighs as much as this share of its bytes. */
+    private static final double CPU_WEIGHT = 0.5;
+    /** Dedicated hardware hardly takes any CPU time whatever the codec. */
+    private static final double HARDWARE_CPU_COST = 0.05;
+
+    private EncoderCostModel() {
+    }
+
+    /**
+     * @return bytes the codec takes for the quality H.264 reaches with one byte
+     */
+    public static double relativeBytes(String mimeType) {
+        switch (mimeType) {
+            case HEVC:
+                return 0.6;
+            case AV1:
+                return 0.5;
+            default:
+                return 1.0;
+        }
+    }
+
+    /**
+     * @return CPU time of encoding a frame, relative to a software H.264 encoder
+     */
+    public static double cpuCost(String mimeType, boolean hardware) {
+        if (hardware) return HARDWARE_CPU_COST;
+        switch (mimeType) {
+            case HEVC:
+                return 2.5;
+            case AV1:
+                return 4.0;
+            default:
+                return 1.0;
+        }
+    }
+
+    /**
+     * Prices an encoder that takes the capture scaled down to {@code width} by {@code height}.
+     * The bit rate stays the same at a smaller size, so its bytes buy that much less of the
+     * capture, while a software encoder has that much less to do.
+     *
+     * @return cost of the encoder, lower is better
+     */
+    public static double cost(
+        String mimeType, boolean hardware, int captureWidth, int captureHeight, int width, int height
+    ) {
+        double scale = (double) width * height / ((double) captureWidth * captureHeight);
+        double cpuCost = cpuCost(mimeType, hardware) * (hardware ? 1.0 : scale);
+        return relativeBytes(mimeType) / scale + CPU_WEIGHT * cpuCost;
+    }
+
+    /**
+     * @return bit rate of the codec for the quality H.264 reaches with {@code avcBitRate}
+     */
+    public static int bitRate(String mimeType, int avcBitRate) {
+        return (int) (avcBitRate * relativeBytes(mimeType));
+    }
+}
@@ -0,0 +1,21 @@
+package meugeninua.screenrecording.utils;
+
+/**
+ * Flags of an encoded sample, stand-ins for the {@code MediaCodec.BUFFER_FLAG_*} constants with
+ * the same values, so encoder output flags can be passed through unchanged.
+ */
+public final class SampleFlags {
+
+    public static final int KEY_FRAME = 1;
+    public static final int CODEC_CONFIG = 2;
+    public static final int END_OF_STREAM = 4;
+    public static final int PARTIAL_FRAME = 8;
+    /**
+     * Not an encoder flag: the sample holds 4-byte length-prefixed NAL units instead of Annex B
+     * start codes, as samples from a disk tier do.
+     */
+    public static final int LENGTH_PREFIXED = 0x10000;
+
+    private SampleFlags() {
+    }
+}
@@ -0,0 +1,74 @@
+package meugeninua.screenrecording.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells from the sizes of encoded frames when the screen content changed, so that a long group of
+ * pictures can be cut short with a sync frame there. A predicted frame many times the size of the
+ * recent ones means most of the picture had to be coded anew: starting a group right after it
+ * lets a clip start at the change and lets the buffer evict the old content a group earlier.
+ * <p>
+ * Can also keep groups within a span of time. Encoders count their sync frame interval in frames
+ * at the configured frame rate, which stretches the groups of a variable frame rate stream when
+ * the screen is idle.
+ * <p>
+ * Works on sizes only, it costs nothing per frame beyond a few arithmetic operations. Not thread
+ * safe, meant for the encoder output thread.
+ */
+public class SceneChangeDetector {
+
+    /** A predicted frame this many times the running average is a scene change. */
+    static final int SIZE_FACTOR = 6;
+    /** Weight of the newest frame in the running average, as a shift. */
+    private static final int AVERAGE_SHIFT = 4;
+    private static final long MIN_SYNC_INTERVAL_US = TimeUnit.SECONDS.toMicros(1);
+
+    private final int minSceneChangeSize;
+    private final long maxSyncIntervalUs;
+    /** Running average of predicted frame sizes, scaled by {@code 1 << AVERAGE_SHIFT}. */
+    private long scaledAverage = -1L;
+    /** Last sync frame, or the last request for one, whichever came later. */
+    private long lastSyncTimeUs = Long.MIN_VALUE / 2;
+
+    /**
+     * @param bitRate nominal bit rate of the stream, frames smaller than an average one at this
+     * rate never count as a scene change, whatever came before them
+     */
+    public SceneChangeDetector(int bitRate, int frameRate) {
+        this(bitRate, frameRate, 0L);
+    }
+
+    /**
+     * @param maxSyncIntervalUs longest span between sync frames by presentation time, 0 to leave
+     * it to the encoder
+     */
+    public SceneChangeDetector(int bitRate, int frameRate, long maxSyncIntervalUs) {
+        this.minSceneChangeSize = bitRate / 8 / frameRate;
+        this.maxSyncIntervalUs = maxSyncIntervalUs;
+    }
+
+    /**
+     * @return true when a sync frame should be requested now
+     */
+    public boolean onFrame(int size, boolean keyFrame, long presentationTimeUs) {
+        if (keyFrame) {
+            lastSyncTimeUs = presentationTimeUs;
+            return false;
+        }
+        if (scaledAverage < 0L) {
+            scaledAverage = (long) size << AVERAGE_SHIFT;
+            return false;
+        }
+        long average = scaledAverage >> AVERAGE_SHIFT;
+        boolean sceneChange = size >= minSceneChangeSize && size > average * SIZE_FACTOR;
+        // a burst of large frames moves the average by one bounded step each
+        long counted = Math.min(size, Math.max(average, 1L) * SIZE_FACTOR);
+        scaledAverage += counted - average;
+        long sinceSyncUs = presentationTimeUs - lastSyncTimeUs;
+        boolean due = maxSyncIntervalUs > 0L && sinceSyncUs >= maxSyncIntervalUs;
+        if (!due && (!sceneChange || sinceSyncUs < MIN_SYNC_INTERVAL_US)) return false;
+        // at most one request a second, whether or not the encoder honours it
+        lastSyncTimeUs = presentationTimeUs;
+        return true;
+    }
+}
@@ -0,0 +1,169 @@
+package meugeninua.screenrecording.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fixed set of equally sized direct {@link ByteBuffer} slabs addressed as one ring of bytes.
+ * Positions are logical and only grow, a stored sample never spans two slabs.
+ * <p>
+ * Slabs are either allocated off-heap or mapped from consecutive regions of a file, in which
+ * case stored bytes can also be copied out of the file with {@link FileChannel#transferTo}.
+ * Off-heap slabs are taken on their first write, so a ring that is filled slowly, like the
+ * one of a mostly idle screen, takes memory only for the bytes it was given. With an allocator
+ * set, the next slab is allocated ahead on it and the writing thread only picks it up, at the
+ * cost of one slab that may never be written.
+ */
+class SlabArena {
+
+    private final ByteBuffer[] slabs;
+    private final int slabSize;
+    private final FileChannel file;
+    /** Written by the writing thread only. */
+    private volatile int allocatedSlabs;
+    private volatile Executor allocator;
+    /** Allocated ahead for the next slab to be written first, taken by the writing thread. */
+    final AtomicReference<ByteBuffer> nextSlab = new AtomicReference<>();
+    /** Made once, so requesting a slab allocates nothing on the writing thread. */
+    private final Runnable allocateNextSlab = this::allocateNextSlab;
+
+    SlabArena(long capacity, int slabSize) {
+        this(slabCount(capacity, slabSize), slabSize, null);
+    }
+
+    private SlabArena(int slabCount, int slabSize, FileChannel file) {
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabSize = slabSize;
+        this.file = file;
+    }
+
+    /**
+     * Maps the slabs from the start of {@code file}, growing it as needed. The arena does not
+     * own the channel, the mappings stay valid after it is closed.
+     */
+    static SlabArena mapped(FileChannel file, long capacity, int slabSize) throws IOException {
+        SlabArena arena = new SlabArena(slabCount(capacity, slabSize), slabSize, file);
+        for (int i = 0; i < arena.slabs.length; i++) {
+            arena.slabs[i] = file.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize);
+        }
+        arena.allocatedSlabs = arena.slabs.length;
+        return arena;
+    }
+
+    /**
+     * Allocates each slab before its first write on {@code allocator}, starting with the next one
+     * right away. Mapped arenas have all their slabs already.
+     */
+    void setAllocator(Executor allocator) {
+        this.allocator = allocator;
+        requestNextSlab();
+    }
+
+    private void requestNextSlab() {
+        Executor allocator = this.allocator;
+        if (allocator == null || allocatedSlabs >= slabs.length) return;
+        try {
+            allocator.execute(allocateNextSlab);
+        } catch (RejectedExecutionException e) {
+            // allocated by the write that needs it then
+        }
+    }
+
+    private void allocateNextSlab() {
+        if (nextSlab.get() == null && allocatedSlabs < slabs.length) {
+            nextSlab.compareAndSet(null, ByteBuffer.allocateDirect(slabSize));
+        }
+    }
+
+    private static int slabCount(long capacity, int slabSize) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException("Not valid value for slab size: " + slabSize);
+        }
+        return (int) Math.max(2L, (capacity + slabSize - 1) / slabSize);
+    }
+
+    /**
+     * @return the file the slabs are mapped from, or null for an arena in memory
+     */
+    FileChannel file() {
+        return file;
+    }
+
+    /**
+     * @return offset of {@code position} in the file the slabs are mapped from
+     */
+    long filePosition(long position) {
+        return (long) slabIndex(position) * slabSize + offset(position);
+    }
+
+    long capacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * @return bytes of the slabs allocated or mapped so far
+     */
+    long allocatedBytes() {
+        return (long) allocatedSlabs * slabSize;
+    }
+
+    int slabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return the first position at or after {@code position} where {@code size} bytes fit
+     * into a single slab
+     */
+    long align(long position, int size) {
+        long offset = position % slabSize;
+        return offset + size > slabSize ? position - offset + slabSize : position;
+    }
+
+    int slabCount() {
+        return slabs.length;
+    }
+
+    int slabIndex(long position) {
+        return (int) ((position / slabSize) % slabs.length);
+    }
+
+    ByteBuffer slab(long position) {
+        return slabs[slabIndex(position)];
+    }
+
+    /**
+     * @return a view of the slab with its own position and limit, for readers on other threads
+     */
+    ByteBuffer view(int slabIndex) {
+        return slabs[slabIndex].duplicate();
+    }
+
+    int offset(long position) {
+        return (int) (position % slabSize);
+    }
+
+    /**
+     * Copies the remaining bytes of {@code source} to {@code position}, which must be aligned.
+     */
+    void write(long position, ByteBuffer source) {
+        ByteBuffer slab = slab(position);
+        if (slab == null) {
+            slab = nextSlab.getAndSet(null);
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            }
+            // published to readers by the end of the window, which moves after the write
+            slabs[slabIndex(position)] = slab;
+            allocatedSlabs++;
+            requestNextSlab();
+        }
+        slab.clear();
+        slab.position(offset(position));
+        slab.put(source);
+    }
+}
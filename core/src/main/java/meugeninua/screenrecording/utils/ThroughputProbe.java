@@ -0,0 +1,126 @@
+package meugeninua.screenrecording.utils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells whether an encoder keeps up with the display at a given size, from a short run on
+ * synthetic frames, and picks the cheapest configuration that does. Candidates are probed in
+ * order of cost and probing stops at the first one that sustains real time, so a device with a
+ * capable hardware encoder pays for a single run.
+ * <p>
+ * The runs themselves need an encoder, see {@link Runner}; this class only measures and decides.
+ */
+public final class ThroughputProbe {
+
+    /** Share of the frame rate an encoder has to reach on synthetic frames to keep up. */
+    private static final double REAL_TIME_SHARE = 0.95;
+    /** Frames an encoder may hold on to before its output comes too late for a snapshot. */
+    private static final int MAX_LATENCY_FRAMES = 8;
+
+    private ThroughputProbe() {
+    }
+
+    /**
+     * @param candidates configurations in order of preference, cheapest first
+     * @param maxRuns runs to make at most, later candidates are not considered
+     * @return the first candidate that sustains real time, the fastest one probed when none
+     * does, the first one when no run succeeded
+     */
+    public static <T> T select(List<T> candidates, Runner<T> runner, int frameRate, int maxRuns) {
+        if (candidates.isEmpty()) return null;
+        T fastest = null;
+        double fastestFramesPerSecond = 0.0;
+        for (int i = 0; i < candidates.size() && i < maxRuns; i++) {
+            T candidate = candidates.get(i);
+            Result result = runner.run(candidate);
+            if (result == null) continue;
+            if (result.sustains(frameRate)) return candidate;
+            if (result.framesPerSecond > fastestFramesPerSecond) {
+                fastest = candidate;
+                fastestFramesPerSecond = result.framesPerSecond;
+            }
+        }
+        return fastest != null ? fastest : candidates.get(0);
+    }
+
+    public interface Runner<T> {
+
+        /**
+         * Feeds synthetic frames to the encoder of {@code candidate} for a short while.
+         *
+         * @return what the encoder achieved, null when it failed to run
+         */
+        Result run(T candidate);
+    }
+
+    /**
+     * Collects the output of a run. Latency is taken from presentation times, which surface input
+     * stamps with the monotonic clock the frame was queued at. Not thread safe, meant for the
+     * thread that drains the encoder.
+     */
+    public static class Meter {
+
+        private long firstOutputUs = -1L;
+        private long lastOutputUs;
+        private int frames;
+        private long bytes;
+        private long totalLatencyUs;
+
+        /**
+         * @param nowUs monotonic time the frame came out at
+         */
+        public void onOutput(int size, long presentationTimeUs, long nowUs) {
+            if (firstOutputUs < 0L) {
+                firstOutputUs = nowUs;
+            }
+            lastOutputUs = nowUs;
+            frames++;
+            bytes += size;
+            totalLatencyUs += Math.max(0L, nowUs - presentationTimeUs);
+        }
+
+        /**
+         * @param durationUs span the frames were fed over
+         * @return null when no frame came out
+         */
+        public Result result(long durationUs) {
+            if (frames == 0 || durationUs <= 0L) return null;
+            // throughput between outputs, so the latency of the first frame does not count twice
+            long outputUs = frames > 1 ? lastOutputUs - firstOutputUs : 0L;
+            double seconds = (outputUs > 0L ? outputUs * frames / (frames - 1) : durationUs) / 1e6;
+            long bitRate = (long) (bytes * 8 / seconds);
+            return new Result(
+                frames / seconds, totalLatencyUs / frames, (int) Math.min(Integer.MAX_VALUE, bitRate)
+            );
+        }
+    }
+
+    public static class Result {
+        public final double framesPerSecond;
+        /** Average time from queueing a frame to its output. */
+        public final long latencyUs;
+        /** Output on synthetic frames, only a rough guide to what real content takes. */
+        public final int bitRate;
+
+        public Result(double framesPerSecond, long latencyUs, int bitRate) {
+            this.framesPerSecond = framesPerSecond;
+            this.latencyUs = latencyUs;
+            this.bitRate = bitRate;
+        }
+
+        public boolean sustains(int frameRate) {
+            return framesPerSecond >= frameRate * REAL_TIME_SHARE
+                && latencyUs <= TimeUnit.SECONDS.toMicros(MAX_LATENCY_FRAMES) / frameRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                "framesPerSecond=" + framesPerSecond +
+                ", latencyUs=" + latencyUs +
+                ", bitRate=" + bitRate +
+                '}';
+        }
+    }
+}
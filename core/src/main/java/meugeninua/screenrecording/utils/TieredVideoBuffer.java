@@ -0,0 +1,312 @@
+package meugeninua.screenrecording.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import meugeninua.screenrecording.utils.mp4.AnnexB;
+import meugeninua.screenrecording.utils.mp4.Obu;
+
+/**
+ * Replay buffer for windows longer than memory allows. The newest seconds stay in a
+ * {@link CyclicVideoBuffer} in memory, whole groups of pictures leaving it are converted to
+ * length-prefixed form and spill into a second buffer mapped from a fixed-size segment file,
+ * which is overwritten circularly. Heap use does not depend on the window length.
+ * <p>
+ * Snapshots cover both tiers. H.264 and H.265 samples of the disk tier are flagged
+ * {@link SampleFlags#LENGTH_PREFIXED}, AV1 ones are kept as OBUs without temporal delimiters,
+ * either way they are in MP4 form and go to a {@link CyclicVideoBuffer.FileRegionSink} as file
+ * regions, so they can be copied out without passing through memory.
+ * <p>
+ * The segment file lives as long as the buffer or any snapshot of it, whichever is closed last,
+ * and is deleted then. Each buffer needs a file of its own.
+ */
+public class TieredVideoBuffer implements Closeable {
+
+    private static final int SEGMENT_SLAB_SIZE = 8 * 1024 * 1024;
+
+    private final CyclicVideoBuffer hot;
+    private final CyclicVideoBuffer cold;
+    private final FileChannel segmentFile;
+    private final File segmentPath;
+    /** The buffer itself and its open snapshots, the segment file is closed when none is left. */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private boolean closed;
+    private ByteBuffer spill;
+
+    /**
+     * Keeps everything in memory, there is no disk tier.
+     */
+    public TieredVideoBuffer(int secondsLimit, int bitRate, int frameRate) {
+        this(secondsLimit, bitRate, frameRate, 1);
+    }
+
+    /**
+     * Keeps everything in memory, sized for a sync frame every {@code syncFrameIntervalSeconds}.
+     */
+    public TieredVideoBuffer(int secondsLimit, int bitRate, int frameRate, int syncFrameIntervalSeconds) {
+        this.hot = new CyclicVideoBuffer(secondsLimit, bitRate, frameRate, syncFrameIntervalSeconds);
+        this.cold = null;
+        this.segmentFile = null;
+        this.segmentPath = null;
+    }
+
+    /**
+     * Keeps the newest {@code memorySeconds} in memory and the rest of the window in
+     * {@code segmentFile}, which is created or truncated, and deleted once the buffer and its
+     * snapshots are closed.
+     */
+    public TieredVideoBuffer(
+        int secondsLimit, int memorySeconds, int bitRate, int frameRate, File segmentFile
+    ) throws IOException {
+        this(secondsLimit, memorySeconds, bitRate, frameRate, 1, segmentFile);
+    }
+
+    /**
+     * Same as above, both tiers sized for a sync frame every {@code syncFrameIntervalSeconds}:
+     * each holds up to one group of pictures more than its share of the window.
+     */
+    public TieredVideoBuffer(
+        int secondsLimit, int memorySeconds, int bitRate, int frameRate,
+        int syncFrameIntervalSeconds, File segmentFile
+    ) throws IOException {
+        this(
+            secondsLimit, memorySeconds, frameRate, syncFrameIntervalSeconds,
+            new CyclicVideoBuffer(memorySeconds, bitRate, frameRate, syncFrameIntervalSeconds),
+            segmentFile,
+            (long) bitRate / 8 * (secondsLimit - memorySeconds + syncFrameIntervalSeconds - 1) * 3 / 2,
+            SEGMENT_SLAB_SIZE
+        );
+    }
+
+    TieredVideoBuffer(
+        int secondsLimit, int memorySeconds, int frameRate, int syncFrameIntervalSeconds,
+        CyclicVideoBuffer hot, File segmentFile, long segmentCapacity, int slabSize
+    ) throws IOException {
+        if (memorySeconds <= 0 || memorySeconds >= secondsLimit) {
+            throw new IllegalArgumentException("Not valid value for memory seconds: " + memorySeconds);
+        }
+        int coldSeconds = secondsLimit - memorySeconds;
+        this.hot = hot;
+        this.segmentPath = segmentFile;
+        this.segmentFile = FileChannel.open(
+            segmentFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        );
+        this.cold = new CyclicVideoBuffer(
+            coldSeconds,
+            SlabArena.mapped(this.segmentFile, segmentCapacity, slabSize),
+            (coldSeconds + syncFrameIntervalSeconds) * frameRate * 2
+        );
+        hot.setEvictionListener(this::spill);
+    }
+
+    public void add(ByteBuffer buffer, int sampleFlags, long presentationTimeUs) {
+        hot.add(buffer, sampleFlags, presentationTimeUs);
+    }
+
+    /**
+     * See {@link CyclicVideoBuffer#setSlabAllocator}, the disk tier is mapped up front.
+     */
+    public void setSlabAllocator(Executor allocator) {
+        hot.setSlabAllocator(allocator);
+    }
+
+    public long droppedSamples() {
+        return cold == null ? hot.droppedSamples() : hot.droppedSamples() + cold.droppedSamples();
+    }
+
+    /**
+     * @return samples in both tiers as of the last {@link #add}, read without a snapshot, so it
+     * costs capture nothing
+     */
+    public int windowSampleCount() {
+        return hot.windowSampleCount() + (cold == null ? 0 : cold.windowSampleCount());
+    }
+
+    /**
+     * @return bytes both tiers hold as of the last {@link #add}, read without a snapshot
+     */
+    public long windowByteCount() {
+        return hot.windowByteCount() + (cold == null ? 0L : cold.windowByteCount());
+    }
+
+    /**
+     * @return time from the oldest sample of either tier to the newest as of the last
+     * {@link #add}, read without a snapshot
+     */
+    public long windowDurationUs() {
+        boolean spilled = cold != null && cold.windowSampleCount() > 0;
+        if (hot.windowSampleCount() == 0) {
+            return spilled ? cold.windowEndTimeUs() - cold.windowStartTimeUs() : 0L;
+        }
+        long startTimeUs = spilled ? cold.windowStartTimeUs() : hot.windowStartTimeUs();
+        return hot.windowEndTimeUs() - startTimeUs;
+    }
+
+    /**
+     * @return memory taken by the in-memory tier, the disk tier is mapped and paged by the system
+     */
+    public long memoryBytes() {
+        return hot.allocatedBytes();
+    }
+
+    /**
+     * Converts an evicted sample to MP4 form into a reused buffer and stores it in the disk
+     * tier, on the capture thread.
+     */
+    private void spill(ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs) {
+        buffer.limit(offset + size).position(offset);
+        if (!AnnexB.isAnnexB(buffer)) {
+            buffer.position(Obu.skipTemporalDelimiters(buffer, offset, offset + size));
+            cold.add(buffer, flags, presentationTimeUs);
+            return;
+        }
+        int capacity = AnnexB.maxLengthPrefixedSize(size);
+        if (spill == null || spill.capacity() < capacity) {
+            spill = ByteBuffer.allocateDirect(Math.max(capacity, 256 * 1024));
+        }
+        spill.clear();
+        AnnexB.toLengthPrefixed(buffer, offset, offset + size, spill);
+        spill.flip();
+        cold.add(spill, flags | SampleFlags.LENGTH_PREFIXED, presentationTimeUs);
+    }
+
+    /**
+     * Takes a snapshot of both tiers in constant time, see {@link CyclicVideoBuffer#cloneState()}.
+     */
+    public State cloneState() {
+        // memory first: a group spilled in between then shows up in both tiers and is skipped
+        // in memory, rather than in neither
+        CyclicVideoBuffer.State hotState = hot.cloneState();
+        CyclicVideoBuffer.State coldState = cold == null ? null : cold.cloneState();
+        if (coldState != null && coldState.sampleCount() > 0) {
+            hotState.skipThrough(coldState.endTimeUs());
+        }
+        if (segmentFile != null) {
+            references.incrementAndGet();
+        }
+        return new State(segmentFile != null ? this : null, hotState, coldState);
+    }
+
+    /**
+     * Closes and deletes the segment file, or leaves that to the last snapshot still being
+     * written out. Not to be called more than once per buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (segmentFile == null || closed) return;
+        closed = true;
+        release();
+    }
+
+    private void release() throws IOException {
+        if (references.decrementAndGet() > 0) return;
+        try {
+            segmentFile.close();
+        } finally {
+            if (!segmentPath.delete() && segmentPath.exists()) {
+                throw new IOException("Can't delete segment file " + segmentPath);
+            }
+        }
+    }
+
+    public static class State implements Closeable {
+
+        /** Buffer whose segment file the snapshot keeps open, null without a disk tier. */
+        private final TieredVideoBuffer owner;
+        private final CyclicVideoBuffer.State hot;
+        private final CyclicVideoBuffer.State cold;
+        private boolean closed;
+
+        private State(TieredVideoBuffer owner, CyclicVideoBuffer.State hot, CyclicVideoBuffer.State cold) {
+            this.owner = owner;
+            this.hot = hot;
+            this.cold = cold;
+        }
+
+        public int sampleCount() {
+            return hot.sampleCount() + (cold == null ? 0 : cold.sampleCount());
+        }
+
+        /**
+         * @return bytes the samples take in memory and on disk
+         */
+        public long byteCount() {
+            return hot.byteCount() + (cold == null ? 0L : cold.byteCount());
+        }
+
+        /**
+         * @return presentation time of the first sample in the encoder time base
+         */
+        public long startTimeUs() {
+            return cold != null && cold.sampleCount() > 0 ? cold.startTimeUs() : hot.startTimeUs();
+        }
+
+        /**
+         * @return presentation time of the last sample in the encoder time base
+         */
+        public long endTimeUs() {
+            return hot.sampleCount() > 0 || cold == null ? hot.endTimeUs() : cold.endTimeUs();
+        }
+
+        /**
+         * Narrows the snapshot to a span of the window, see
+         * {@link CyclicVideoBuffer.State#clip(long, long)}. A span that starts on disk and ends in
+         * memory keeps samples of both tiers.
+         */
+        public void clip(long startTimeUs, long endTimeUs) {
+            if (cold != null && cold.sampleCount() > 0) {
+                if (hot.sampleCount() == 0 || startTimeUs < hot.startTimeUs()) {
+                    cold.clip(startTimeUs, endTimeUs);
+                    // samples of the memory tier continue the clip, no sync frame is needed there
+                    startTimeUs = Long.MIN_VALUE;
+                } else {
+                    cold.clip(startTimeUs, Long.MIN_VALUE);
+                }
+            }
+            hot.clip(startTimeUs, endTimeUs);
+        }
+
+        /**
+         * Writes the codec config followed by the samples of both tiers, oldest first, rebased so
+         * the clip starts at pts 0.
+         */
+        public void writeTo(CyclicVideoBuffer.SampleSink sink) throws IOException {
+            if (hot.codecConfig != null) {
+                ByteBuffer config = hot.codecConfig.duplicate();
+                sink.writeSample(config, 0, config.remaining(), SampleFlags.CODEC_CONFIG, 0L);
+            }
+            long baseTimeUs = startTimeUs();
+            if (cold != null) {
+                cold.writeSamples(sink, baseTimeUs);
+            }
+            hot.writeSamples(sink, baseTimeUs);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            hot.close();
+            if (cold != null) {
+                cold.close();
+            }
+            if (owner != null) {
+                try {
+                    owner.release();
+                } catch (IOException e) {
+                    // the samples are written out by now, a stale file is all that is left
+                }
+            }
+        }
+    }
+}
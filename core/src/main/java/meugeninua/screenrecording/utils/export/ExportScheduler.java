@@ -0,0 +1,253 @@
+package meugeninua.screenrecording.utils.export;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs export jobs on a fixed number of threads, the ones of higher priority first and jobs of
+ * equal priority in the order they came. A job submitted again under the key of one that is still
+ * pending, queued or running, joins that job instead of running twice. At most
+ * {@code maxPendingJobs} jobs may be pending at once, more are refused rather than queued, so a
+ * burst of flushes can't build a backlog of copies.
+ * <p>
+ * A queued job is cancelled right away, a running one at its next progress update.
+ */
+public class ExportScheduler {
+
+    /** Bytes copied between progress updates. */
+    static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPendingJobs;
+    /** Pending jobs by key, guards the listeners of each job as well. */
+    private final Map<String, Job> jobs = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param parallelism number of jobs that may run at once, threads expire when idle
+     */
+    public ExportScheduler(String name, int parallelism, int maxPendingJobs) {
+        this.maxPendingJobs = maxPendingJobs;
+        this.executor = new ThreadPoolExecutor(
+            parallelism, parallelism, 10L, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param key identifies the job, the source path for a copy
+     * @param priority jobs of higher priority are started first
+     * @param listener called on the export thread, null for none
+     * @return handle of the new job or of the pending one with the same key, null when too many
+     * jobs are pending
+     */
+    public Handle submit(String key, int priority, Task task, Listener listener) {
+        Job job;
+        synchronized (jobs) {
+            job = jobs.get(key);
+            if (job != null) {
+                if (listener != null) job.listeners.add(listener);
+                return job;
+            }
+            if (jobs.size() >= maxPendingJobs) return null;
+            job = new Job(key, priority, sequence.getAndIncrement(), task);
+            if (listener != null) job.listeners.add(listener);
+            jobs.put(key, job);
+        }
+        executor.execute(job);
+        return job;
+    }
+
+    public int pendingJobs() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    /**
+     * Lets pending jobs finish, then stops the threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Copies all of {@code source} into {@code target} channel to channel, reporting progress
+     * and checking for cancellation every {@link #TRANSFER_CHUNK_SIZE} bytes. A chunk the
+     * channels don't take that way is copied through memory instead.
+     *
+     * @return number of bytes copied
+     * @throws IOException when the source gets shorter or the target takes no bytes
+     */
+    public static long transfer(FileChannel source, WritableByteChannel target, Progress progress)
+        throws IOException {
+        long size = source.size();
+        progress.update(0L, size);
+        ByteBuffer chunk = null;
+        for (long position = 0L; position < size; ) {
+            long count = Math.min(TRANSFER_CHUNK_SIZE, size - position);
+            long copied = source.transferTo(position, count, target);
+            if (copied == 0L) {
+                if (chunk == null) {
+                    chunk = ByteBuffer.allocate((int) TRANSFER_CHUNK_SIZE);
+                }
+                copied = copy(source, position, (int) count, target, chunk);
+            }
+            position += copied;
+            progress.update(position, size);
+        }
+        return size;
+    }
+
+    /**
+     * Copies a chunk with a read and writes, so a copy that makes no progress fails rather than
+     * spins.
+     */
+    private static int copy(
+        FileChannel source, long position, int count, WritableByteChannel target, ByteBuffer chunk
+    ) throws IOException {
+        chunk.clear().limit(count);
+        int read = source.read(chunk, position);
+        if (read <= 0) {
+            throw new EOFException("Source ended at " + position + " before the copy did");
+        }
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            if (target.write(chunk) == 0) {
+                throw new IOException("Target took no bytes at " + (position + chunk.position()));
+            }
+        }
+        return read;
+    }
+
+    private void finish(Job job, Exception failure) {
+        List<Listener> listeners;
+        synchronized (jobs) {
+            jobs.remove(job.key);
+            listeners = job.listeners;
+            job.done = true;
+        }
+        for (Listener listener : listeners) {
+            listener.onFinished(failure);
+        }
+    }
+
+    public interface Handle {
+
+        String key();
+
+        /**
+         * Cancels the job unless it has finished already.
+         */
+        void cancel();
+
+        boolean isDone();
+    }
+
+    public interface Task {
+
+        void run(Progress progress) throws IOException;
+    }
+
+    public interface Progress {
+
+        /**
+         * Reports how far the job got.
+         *
+         * @throws CancellationException when the job was cancelled, the task should stop then
+         */
+        void update(long bytesCopied, long totalBytes);
+    }
+
+    public interface Listener {
+
+        void onProgress(long bytesCopied, long totalBytes);
+
+        /**
+         * @param failure null on success, a {@link CancellationException} when cancelled
+         */
+        void onFinished(Exception failure);
+    }
+
+    private class Job implements Runnable, Comparable<Job>, Handle, Progress {
+
+        final String key;
+        final int priority;
+        final long sequence;
+        final Task task;
+        final List<Listener> listeners = new CopyOnWriteArrayList<>();
+        volatile boolean cancelled;
+        /** Guarded by {@link #jobs}. */
+        boolean done;
+
+        Job(String key, int priority, long sequence, Task task) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            Exception failure = null;
+            try {
+                if (cancelled) throw new CancellationException(key);
+                task.run(this);
+            } catch (Exception e) {
+                failure = e;
+            }
+            finish(this, failure);
+        }
+
+        @Override
+        public void update(long bytesCopied, long totalBytes) {
+            if (cancelled) throw new CancellationException(key);
+            for (Listener listener : listeners) {
+                listener.onProgress(bytesCopied, totalBytes);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            if (executor.remove(this)) {
+                finish(this, new CancellationException(key));
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (jobs) {
+                return done;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package meugeninua.screenrecording.utils.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails writes into a channel nobody drains any more, such as a pipe whose reader went away
+ * without closing it. A write blocked for longer than the stall timeout gets the channel closed
+ * under it, which makes it throw, so the writer can release what it holds. A slow reader that
+ * keeps taking data is let through, only a single write is timed.
+ */
+public class StallDetectingChannel implements WritableByteChannel {
+
+    /** Checks made per stall timeout, a stall is noticed at most this share of it late. */
+    private static final int CHECKS_PER_TIMEOUT = 4;
+    private static final long IDLE = Long.MIN_VALUE;
+
+    private final WritableByteChannel channel;
+    private final long stallTimeoutMs;
+    private final ScheduledFuture<?> check;
+    /** Start of the write in progress, {@link #IDLE} between writes. */
+    private volatile long writeStartNs = IDLE;
+    private volatile boolean stalled;
+
+    /**
+     * @param timer runs the checks, shared by any number of channels
+     */
+    public StallDetectingChannel(
+        WritableByteChannel channel, long stallTimeoutMs, ScheduledExecutorService timer
+    ) {
+        this.channel = channel;
+        this.stallTimeoutMs = stallTimeoutMs;
+        long periodMs = Math.max(1L, stallTimeoutMs / CHECKS_PER_TIMEOUT);
+        this.check = timer.scheduleWithFixedDelay(this::check, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        writeStartNs = System.nanoTime();
+        try {
+            return channel.write(src);
+        } catch (ClosedChannelException e) {
+            if (!stalled) throw e;
+            throw new IOException("Write stalled for more than " + stallTimeoutMs + " ms", e);
+        } finally {
+            writeStartNs = IDLE;
+        }
+    }
+
+    private void check() {
+        long startNs = writeStartNs;
+        if (stalled || startNs == IDLE) return;
+        if (System.nanoTime() - startNs < TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs)) return;
+        stalled = true;
+        try {
+            // wakes up the blocked write
+            channel.close();
+        } catch (IOException e) {
+            // closed as far as it goes, the write fails on its own if it ever returns
+        }
+    }
+
+    /**
+     * @return true when a write stalled and the channel got closed for it
+     */
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Stops the checks and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        check.cancel(false);
+        channel.close();
+    }
+}
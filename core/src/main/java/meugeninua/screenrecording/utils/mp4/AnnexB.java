@@ -0,0 +1,137 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conversion between H.264 and H.265 samples in Annex B form, as encoders output them, and the
+ * length-prefixed form MP4 stores. Conversions copy in bulk and allocate nothing.
+ */
+public final class AnnexB {
+
+    private AnnexB() {
+    }
+
+    /**
+     * Copies the NAL units between {@code from} and {@code to} of {@code source} into
+     * {@code target}, each prefixed with its 4-byte length instead of a start code. A sample
+     * without start codes is taken as a single NAL unit. Moves the position and limit of
+     * {@code source}.
+     *
+     * @return number of bytes put into {@code target}
+     */
+    public static int toLengthPrefixed(ByteBuffer source, int from, int to, ByteBuffer target) {
+        source.limit(to);
+        int start = findStartCode(source, from, to);
+        if (start == to) {
+            return copyUnit(source, from, to, target);
+        }
+        int written = 0;
+        while (start < to) {
+            int nal = start + 3;
+            int next = findStartCode(source, nal, to);
+            int end = trimZeros(source, nal, next);
+            if (end > nal) {
+                written += copyUnit(source, nal, end, target);
+            }
+            start = next;
+        }
+        return written;
+    }
+
+    /**
+     * @return upper bound of the bytes {@link #toLengthPrefixed} puts for a sample of this size
+     */
+    public static int maxLengthPrefixedSize(int size) {
+        // a unit takes at least a 3-byte start code and one byte, and grows by one at most
+        return size + size / 4 + 4;
+    }
+
+    /**
+     * Copies the length-prefixed NAL units between {@code from} and {@code to} of {@code source}
+     * into {@code target} with 4-byte start codes instead, which keeps the size. Moves the
+     * position and limit of {@code source}.
+     *
+     * @return number of bytes put into {@code target}
+     */
+    public static int toStartCodes(ByteBuffer source, int from, int to, ByteBuffer target) {
+        source.limit(to);
+        for (int position = from; position + 4 <= to; ) {
+            int length = Math.min(source.getInt(position), to - position - 4);
+            target.putInt(1);
+            source.position(position + 4);
+            source.limit(position + 4 + length);
+            target.put(source);
+            source.limit(to);
+            position += 4 + length;
+        }
+        return to - from;
+    }
+
+    /**
+     * Tells Annex B streams from AV1 ones, whose samples are plain OBUs: an Annex B sample starts
+     * with a start code, an OBU or AV1 codec configuration record never starts with a zero byte.
+     */
+    public static boolean isAnnexB(ByteBuffer sample) {
+        return sample.remaining() >= 3 && sample.get(sample.position()) == 0;
+    }
+
+    /**
+     * @return copies of the NAL units of {@code config}, between its position and limit
+     */
+    static List<byte[]> units(ByteBuffer config) {
+        List<byte[]> units = new ArrayList<>();
+        int to = config.limit();
+        int start = findStartCode(config, config.position(), to);
+        while (start < to) {
+            int nal = start + 3;
+            int next = findStartCode(config, nal, to);
+            int end = trimZeros(config, nal, next);
+            if (end > nal) {
+                byte[] unit = new byte[end - nal];
+                for (int i = 0; i < unit.length; i++) {
+                    unit[i] = config.get(nal + i);
+                }
+                units.add(unit);
+            }
+            start = next;
+        }
+        return units;
+    }
+
+    private static int copyUnit(ByteBuffer source, int from, int to, ByteBuffer target) {
+        int limit = source.limit();
+        target.putInt(to - from);
+        source.limit(to).position(from);
+        target.put(source);
+        source.limit(limit);
+        return 4 + to - from;
+    }
+
+    /**
+     * @return index of the next {@code 00 00 01} start code, or {@code to} when there is none
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i + 2 < to; i++) {
+            int third = buffer.get(i + 2) & 0xFF;
+            if (third > 1) {
+                // no start code can begin at i, i + 1 or i + 2
+                i += 2;
+            } else if (third == 1 && buffer.get(i) == 0 && buffer.get(i + 1) == 0) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Drops the zero bytes before the next start code, they belong to a 4-byte start code.
+     */
+    static int trimZeros(ByteBuffer buffer, int from, int to) {
+        while (to > from && buffer.get(to - 1) == 0) {
+            to--;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,203 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AV1 codec configuration record, taken as it is when the encoder puts one out, or built from
+ * the sequence header OBU otherwise.
+ */
+class Av1Config implements CodecConfig {
+
+    /** Marker bit and version 1, the first byte of every record. */
+    private static final int RECORD_MARKER = 0x81;
+
+    private final byte[] record;
+
+    private Av1Config(byte[] record) {
+        this.record = record;
+    }
+
+    /**
+     * @param config codec config sample, read between its position and limit
+     */
+    static Av1Config parse(ByteBuffer config) throws IOException {
+        int from = config.position();
+        int to = config.limit();
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = config.get(from + i);
+        }
+        if (bytes.length >= 4 && (bytes[0] & 0xFF) == RECORD_MARKER) {
+            return new Av1Config(bytes);
+        }
+        ByteBuffer obus = ByteBuffer.wrap(bytes);
+        for (int start = 0; start < bytes.length; start = Obu.end(obus, start, bytes.length)) {
+            if (Obu.type(bytes[start]) == Obu.TYPE_SEQUENCE_HEADER) {
+                int payload = Obu.payloadStart(obus, start, bytes.length);
+                int end = Obu.end(obus, start, bytes.length);
+                return new Av1Config(buildRecord(bytes, start, payload, end));
+            }
+        }
+        throw new IOException("Codec config has no sequence header");
+    }
+
+    /**
+     * Reads the sequence header from {@code payload} to {@code end}, following section 5.5 of
+     * the AV1 specification up to the color config, and puts it after the record fields.
+     */
+    private static byte[] buildRecord(byte[] bytes, int start, int payload, int end) throws IOException {
+        BitReader reader = new BitReader(bytes, payload, end);
+        int profile = reader.readInt(3);
+        reader.skipBits(1);
+        boolean reducedStillPictureHeader = reader.readFlag();
+        int level;
+        int tier = 0;
+        if (reducedStillPictureHeader) {
+            level = reader.readInt(5);
+        } else {
+            boolean decoderModelInfo = false;
+            int bufferDelayLength = 0;
+            if (reader.readFlag()) {
+                // timing info
+                reader.skipBits(64);
+                if (reader.readFlag()) {
+                    reader.readUvlc();
+                }
+                decoderModelInfo = reader.readFlag();
+                if (decoderModelInfo) {
+                    bufferDelayLength = reader.readInt(5) + 1;
+                    reader.skipBits(32 + 5 + 5);
+                }
+            }
+            boolean initialDisplayDelay = reader.readFlag();
+            int operatingPoints = reader.readInt(5) + 1;
+            level = 0;
+            for (int i = 0; i < operatingPoints; i++) {
+                reader.skipBits(12);
+                int pointLevel = reader.readInt(5);
+                int pointTier = pointLevel > 7 ? reader.readBit() : 0;
+                if (i == 0) {
+                    level = pointLevel;
+                    tier = pointTier;
+                }
+                if (decoderModelInfo && reader.readFlag()) {
+                    reader.skipBits(2 * bufferDelayLength + 1);
+                }
+                if (initialDisplayDelay && reader.readFlag()) {
+                    reader.skipBits(4);
+                }
+            }
+        }
+        int widthBits = reader.readInt(4) + 1;
+        int heightBits = reader.readInt(4) + 1;
+        reader.skipBits(widthBits + heightBits);
+        if (!reducedStillPictureHeader && reader.readFlag()) {
+            // frame id lengths
+            reader.skipBits(7);
+        }
+        // 128x128 superblock, filter intra, intra edge filter
+        reader.skipBits(3);
+        if (!reducedStillPictureHeader) {
+            // inter-intra, masked compound, warped motion, dual filter
+            reader.skipBits(4);
+            boolean orderHint = reader.readFlag();
+            if (orderHint) {
+                reader.skipBits(2);
+            }
+            int forceScreenContentTools = reader.readFlag() ? 2 : reader.readBit();
+            if (forceScreenContentTools > 0 && !reader.readFlag()) {
+                reader.skipBits(1);
+            }
+            if (orderHint) {
+                reader.skipBits(3);
+            }
+        }
+        // superres, CDEF, loop restoration
+        reader.skipBits(3);
+
+        boolean highBitDepth = reader.readFlag();
+        boolean twelveBit = profile == 2 && highBitDepth && reader.readFlag();
+        boolean monochrome = profile != 1 && reader.readFlag();
+        int primaries = 2;
+        int transfer = 2;
+        int matrix = 2;
+        if (reader.readFlag()) {
+            primaries = reader.readInt(8);
+            transfer = reader.readInt(8);
+            matrix = reader.readInt(8);
+        }
+        int subsamplingX;
+        int subsamplingY;
+        int chromaSamplePosition = 0;
+        if (monochrome) {
+            subsamplingX = 1;
+            subsamplingY = 1;
+        } else if (primaries == 1 && transfer == 13 && matrix == 0) {
+            // sRGB, full range 4:4:4
+            subsamplingX = 0;
+            subsamplingY = 0;
+        } else {
+            reader.skipBits(1);
+            if (profile == 0) {
+                subsamplingX = 1;
+                subsamplingY = 1;
+            } else if (profile == 1) {
+                subsamplingX = 0;
+                subsamplingY = 0;
+            } else if (twelveBit) {
+                subsamplingX = reader.readBit();
+                subsamplingY = subsamplingX == 1 ? reader.readBit() : 0;
+            } else {
+                subsamplingX = 1;
+                subsamplingY = 0;
+            }
+            if (subsamplingX == 1 && subsamplingY == 1) {
+                chromaSamplePosition = reader.readInt(2);
+            }
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(4 + end - start + 8);
+        record.write(RECORD_MARKER);
+        record.write(profile << 5 | level);
+        record.write(tier << 7 | (highBitDepth ? 1 << 6 : 0) | (twelveBit ? 1 << 5 : 0)
+            | (monochrome ? 1 << 4 : 0) | subsamplingX << 3 | subsamplingY << 2 | chromaSamplePosition);
+        // no initial presentation delay
+        record.write(0);
+        if (Obu.hasSize(bytes[start])) {
+            record.write(bytes, start, end - start);
+        } else {
+            // OBUs of the record always carry their size
+            record.write(bytes[start] | 0x02);
+            record.write(bytes, start + 1, payload - start - 1);
+            for (int size = end - payload; ; size >>>= 7) {
+                if (size < 0x80) {
+                    record.write(size);
+                    break;
+                }
+                record.write(size & 0x7F | 0x80);
+            }
+            record.write(bytes, payload, end - payload);
+        }
+        return record.toByteArray();
+    }
+
+    @Override
+    public String sampleEntryType() {
+        return "av01";
+    }
+
+    @Override
+    public boolean nalUnits() {
+        return false;
+    }
+
+    /**
+     * Writes the {@code av1C} box.
+     */
+    @Override
+    public void writeTo(BoxWriter writer) {
+        writer.start("av1C").put(record).end();
+    }
+}
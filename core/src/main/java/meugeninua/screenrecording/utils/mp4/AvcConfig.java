@@ -0,0 +1,71 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264 parameter sets taken from the codec config sample.
+ */
+class AvcConfig implements CodecConfig {
+
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    private final List<byte[]> sequenceParameterSets;
+    private final List<byte[]> pictureParameterSets;
+
+    private AvcConfig(List<byte[]> sequenceParameterSets, List<byte[]> pictureParameterSets) {
+        this.sequenceParameterSets = sequenceParameterSets;
+        this.pictureParameterSets = pictureParameterSets;
+    }
+
+    /**
+     * @param config codec config sample in Annex B form, read between its position and limit
+     */
+    static AvcConfig parse(ByteBuffer config) throws IOException {
+        List<byte[]> sequenceParameterSets = new ArrayList<>();
+        List<byte[]> pictureParameterSets = new ArrayList<>();
+        for (byte[] unit : AnnexB.units(config)) {
+            int type = unit[0] & 0x1F;
+            if (type == NAL_TYPE_SPS) {
+                sequenceParameterSets.add(unit);
+            } else if (type == NAL_TYPE_PPS) {
+                pictureParameterSets.add(unit);
+            }
+        }
+        if (sequenceParameterSets.isEmpty() || pictureParameterSets.isEmpty()) {
+            throw new IOException("Codec config has no SPS or PPS");
+        }
+        return new AvcConfig(sequenceParameterSets, pictureParameterSets);
+    }
+
+    @Override
+    public String sampleEntryType() {
+        return "avc1";
+    }
+
+    /**
+     * Writes the {@code avcC} box, with 4-byte NAL unit lengths.
+     */
+    @Override
+    public void writeTo(BoxWriter writer) {
+        byte[] sps = sequenceParameterSets.get(0);
+        writer.start("avcC")
+            .putByte(1)
+            .putByte(sps[1])
+            .putByte(sps[2])
+            .putByte(sps[3])
+            .putByte(0xFC | 3)
+            .putByte(0xE0 | sequenceParameterSets.size());
+        for (byte[] unit : sequenceParameterSets) {
+            writer.putShort(unit.length).put(unit);
+        }
+        writer.putByte(pictureParameterSets.size());
+        for (byte[] unit : pictureParameterSets) {
+            writer.putShort(unit.length).put(unit);
+        }
+        writer.end();
+    }
+}
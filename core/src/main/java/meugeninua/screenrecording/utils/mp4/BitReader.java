@@ -0,0 +1,99 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.IOException;
+
+/**
+ * Reads big-endian bit fields of a parameter set or sequence header, just enough of them to
+ * describe the stream in its sample entry.
+ */
+class BitReader {
+
+    private final byte[] bytes;
+    private final int end;
+    private int bitPosition;
+
+    BitReader(byte[] bytes, int from, int to) {
+        this.bytes = bytes;
+        this.bitPosition = from * 8;
+        this.end = to;
+    }
+
+    /**
+     * @return a reader of the raw payload of an H.26x NAL unit, the emulation prevention bytes
+     * dropped, starting after its header of {@code headerSize} bytes
+     */
+    static BitReader ofNalUnit(byte[] unit, int headerSize) {
+        byte[] payload = new byte[unit.length];
+        int length = 0;
+        int zeros = 0;
+        for (int i = headerSize; i < unit.length; i++) {
+            int value = unit[i] & 0xFF;
+            if (zeros >= 2 && value == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            payload[length++] = (byte) value;
+        }
+        return new BitReader(payload, 0, length);
+    }
+
+    int readBit() throws IOException {
+        if (bitPosition >= end * 8) {
+            throw new IOException("Truncated codec config");
+        }
+        int bit = (bytes[bitPosition >> 3] >> (7 - (bitPosition & 7))) & 1;
+        bitPosition++;
+        return bit;
+    }
+
+    boolean readFlag() throws IOException {
+        return readBit() != 0;
+    }
+
+    /**
+     * @param count up to 32 bits
+     */
+    long readBits(int count) throws IOException {
+        long value = 0L;
+        for (int i = 0; i < count; i++) {
+            value = value << 1 | readBit();
+        }
+        return value;
+    }
+
+    int readInt(int count) throws IOException {
+        return (int) readBits(count);
+    }
+
+    void skipBits(int count) throws IOException {
+        if (bitPosition + count > end * 8) {
+            throw new IOException("Truncated codec config");
+        }
+        bitPosition += count;
+    }
+
+    /**
+     * @return an unsigned Exp-Golomb value, {@code ue(v)} of H.26x
+     */
+    int readUnsignedExpGolomb() throws IOException {
+        int leadingZeros = 0;
+        while (readBit() == 0) {
+            if (++leadingZeros > 31) {
+                throw new IOException("Not valid Exp-Golomb code");
+            }
+        }
+        return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+    }
+
+    /**
+     * @return a variable length value, {@code uvlc()} of AV1
+     */
+    long readUvlc() throws IOException {
+        int leadingZeros = 0;
+        while (readBit() == 0) {
+            if (++leadingZeros >= 32) return (1L << 32) - 1;
+        }
+        return (1L << leadingZeros) - 1 + readBits(leadingZeros);
+    }
+}
@@ -0,0 +1,132 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes nested ISO-BMFF boxes into a reusable buffer. Box sizes are patched in when a box
+ * is closed, so the content does not have to be measured up front.
+ */
+class BoxWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private final int[] starts = new int[MAX_DEPTH];
+    private ByteBuffer buffer;
+    private int depth;
+
+    BoxWriter(int initialCapacity) {
+        this.buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Drops the previous content, the storage is kept.
+     */
+    BoxWriter reset() {
+        buffer.clear();
+        depth = 0;
+        return this;
+    }
+
+    BoxWriter start(String type) {
+        ensure(8);
+        starts[depth++] = buffer.position();
+        buffer.putInt(0);
+        putFourCC(type);
+        return this;
+    }
+
+    BoxWriter startFull(String type, int version, int flags) {
+        start(type);
+        return putInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    BoxWriter end() {
+        int start = starts[--depth];
+        buffer.putInt(start, buffer.position() - start);
+        return this;
+    }
+
+    BoxWriter putFourCC(String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) type.charAt(i));
+        }
+        return this;
+    }
+
+    BoxWriter putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    BoxWriter putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    BoxWriter putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    BoxWriter putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    BoxWriter putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    BoxWriter put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Unity transformation matrix of {@code mvhd} and {@code tkhd}.
+     */
+    BoxWriter putMatrix() {
+        putInt(0x00010000).putInt(0).putInt(0);
+        putInt(0).putInt(0x00010000).putInt(0);
+        return putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Patches a previously written int, e.g. a data offset known only once the box is complete.
+     */
+    void putInt(int position, int value) {
+        buffer.putInt(position, value);
+    }
+
+    /**
+     * @return the content written since the last reset, ready to be written out
+     */
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensure(int count) {
+        if (buffer.remaining() >= count) return;
+        ByteBuffer grown = ByteBuffer.allocateDirect(
+            Math.max(buffer.capacity() * 2, buffer.position() + count)
+        );
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
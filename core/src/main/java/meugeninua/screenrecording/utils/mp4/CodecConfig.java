@@ -0,0 +1,41 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec config sample of a video stream turned into the configuration box of its sample entry.
+ */
+interface CodecConfig {
+
+    /**
+     * @return type of the sample entry box, its codec configuration box goes inside it
+     */
+    String sampleEntryType();
+
+    /**
+     * @return true when samples are NAL units, stored length-prefixed
+     */
+    default boolean nalUnits() {
+        return true;
+    }
+
+    void writeTo(BoxWriter writer);
+
+    /**
+     * Tells the codec by the config sample itself: H.264 starts with an SPS, H.265 with a VPS,
+     * AV1 is not in Annex B form at all.
+     *
+     * @param config codec config sample, read between its position and limit
+     */
+    static CodecConfig parse(ByteBuffer config) throws IOException {
+        if (!AnnexB.isAnnexB(config)) {
+            return Av1Config.parse(config);
+        }
+        int start = AnnexB.findStartCode(config, config.position(), config.limit());
+        if (start + 3 < config.limit() && HevcConfig.isHevc(config.get(start + 3))) {
+            return HevcConfig.parse(config);
+        }
+        return AvcConfig.parse(config);
+    }
+}
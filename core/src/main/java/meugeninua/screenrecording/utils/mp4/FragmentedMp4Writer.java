@@ -0,0 +1,472 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import meugeninua.screenrecording.utils.CyclicVideoBuffer;
+import meugeninua.screenrecording.utils.SampleFlags;
+
+/**
+ * Writes H.264, H.265 or AV1 samples, and optionally a PCM audio track, as fragmented MP4. Every
+ * group of pictures becomes one {@code moof}/{@code mdat} pair with the matching audio, and the
+ * output is written strictly in order, so it works on pipes and sockets as well as files.
+ * <p>
+ * Samples are collected in a reusable staging buffer until the next sync frame, so steady state
+ * writing allocates nothing per sample. Samples handed over as file regions are not read at all,
+ * they are copied with {@link FileChannel#transferTo}. Samples are expected in presentation
+ * order, without B-frames, as screen encoders produce them. The codec is told by the codec
+ * config sample, see {@link CodecConfig#parse}.
+ */
+public class FragmentedMp4Writer implements CyclicVideoBuffer.FileRegionSink {
+
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int DEFAULT_FRAME_DURATION = VIDEO_TIMESCALE / 30;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TFHD_DEFAULT_SAMPLE_DURATION = 0x000008;
+    private static final int TFHD_DEFAULT_SAMPLE_SIZE = 0x000010;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    /** Format flags of {@code pcmC}. */
+    private static final int PCM_LITTLE_ENDIAN = 0x01;
+
+    private final WritableByteChannel channel;
+    private final int width;
+    private final int height;
+    private final BoxWriter boxes = new BoxWriter(4096);
+
+    private int sampleRate;
+    private int channelCount;
+    private long audioFrameCount;
+    private AudioSource audioSource;
+
+    private ByteBuffer staging = ByteBuffer.allocateDirect(1024 * 1024);
+    private int[] sizes = new int[64];
+    private long[] presentationTimesUs = new long[64];
+    private boolean[] keyFrames = new boolean[64];
+    private int pendingSamples;
+    /** File the pending samples are stored in, null when they are in the staging buffer. */
+    private FileChannel regionFile;
+    private long[] regionPositions = new long[16];
+    private long[] regionSizes = new long[16];
+    private int regionCount;
+    private long regionBytes;
+
+    private boolean headerWritten;
+    private boolean nalUnits;
+    private int sequenceNumber;
+    private int lastDuration = DEFAULT_FRAME_DURATION;
+    private long audioFramesWritten;
+    private long bytesWritten;
+
+    public FragmentedMp4Writer(WritableByteChannel channel, int width, int height) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Adds a 16-bit PCM track, must be called before the first sample. Audio frame 0 is
+     * presented together with the first video sample.
+     */
+    public FragmentedMp4Writer withAudio(
+        int sampleRate, int channelCount, long frameCount, AudioSource source
+    ) {
+        if (headerWritten) {
+            throw new IllegalStateException("Audio track has to be added before the first sample");
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioFrameCount = frameCount;
+        this.audioSource = source;
+        return this;
+    }
+
+    @Override
+    public void writeSample(
+        ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs
+    ) throws IOException {
+        if ((flags & SampleFlags.CODEC_CONFIG) != 0) {
+            if (!headerWritten) {
+                buffer.limit(offset + size).position(offset);
+                writeHeader(CodecConfig.parse(buffer));
+            }
+            return;
+        }
+        startSample(null, flags, presentationTimeUs);
+        ensureCapacity(AnnexB.maxLengthPrefixedSize(size));
+        int index = pendingSamples++;
+        if (!nalUnits) {
+            // MP4 leaves out the temporal delimiters
+            int from = Obu.skipTemporalDelimiters(buffer, offset, offset + size);
+            buffer.limit(offset + size).position(from);
+            staging.put(buffer);
+            sizes[index] = offset + size - from;
+        } else if ((flags & SampleFlags.LENGTH_PREFIXED) != 0) {
+            buffer.limit(offset + size).position(offset);
+            staging.put(buffer);
+            sizes[index] = size;
+        } else {
+            sizes[index] = AnnexB.toLengthPrefixed(buffer, offset, offset + size, staging);
+        }
+        presentationTimesUs[index] = presentationTimeUs;
+        keyFrames[index] = (flags & SampleFlags.KEY_FRAME) != 0;
+    }
+
+    /**
+     * Takes a sample in MP4 form stored in {@code file}, adjacent samples are copied out
+     * with a single {@link FileChannel#transferTo}.
+     */
+    @Override
+    public void writeSample(
+        FileChannel file, long filePosition, int size, int flags, long presentationTimeUs
+    ) throws IOException {
+        startSample(file, flags, presentationTimeUs);
+        ensureCapacity(0);
+        if (regionCount > 0 && regionPositions[regionCount - 1] + regionSizes[regionCount - 1] == filePosition) {
+            regionSizes[regionCount - 1] += size;
+        } else {
+            if (regionCount == regionPositions.length) {
+                regionPositions = Arrays.copyOf(regionPositions, regionCount * 2);
+                regionSizes = Arrays.copyOf(regionSizes, regionCount * 2);
+            }
+            regionPositions[regionCount] = filePosition;
+            regionSizes[regionCount++] = size;
+        }
+        regionBytes += size;
+        int index = pendingSamples++;
+        sizes[index] = size;
+        presentationTimesUs[index] = presentationTimeUs;
+        keyFrames[index] = (flags & SampleFlags.KEY_FRAME) != 0;
+    }
+
+    /**
+     * Writes out the pending fragment when a new one starts: at a sync frame, or when samples
+     * switch between memory and a file, which a fragment does not mix.
+     */
+    private void startSample(FileChannel file, int flags, long presentationTimeUs) throws IOException {
+        if (!headerWritten) {
+            throw new IOException("Codec config has to come before the first sample");
+        }
+        boolean keyFrame = (flags & SampleFlags.KEY_FRAME) != 0;
+        if (pendingSamples > 0 && (keyFrame || file != regionFile)) {
+            writeFragment(presentationTimeUs);
+        }
+        regionFile = file;
+    }
+
+    /**
+     * Writes the last fragment together with the rest of the audio. The channel is left open.
+     *
+     * @return number of bytes written in total
+     */
+    public long finish() throws IOException {
+        if (!headerWritten) {
+            throw new IOException("No codec config was written");
+        }
+        if (pendingSamples > 0) {
+            writeFragment(-1L);
+        }
+        return bytesWritten;
+    }
+
+    private void writeHeader(CodecConfig config) throws IOException {
+        String sampleEntryType = config.sampleEntryType();
+        boolean hasAudio = audioSource != null;
+        boxes.reset();
+        boxes.start("ftyp")
+            .putFourCC("iso5")
+            .putInt(512)
+            .putFourCC("iso5")
+            .putFourCC("iso6")
+            .putFourCC(sampleEntryType)
+            .putFourCC("mp41")
+            .end();
+
+        boxes.start("moov");
+        boxes.startFull("mvhd", 0, 0)
+            .putInt(0)
+            .putInt(0)
+            .putInt(MOVIE_TIMESCALE)
+            .putInt(0)
+            .putInt(0x00010000)
+            .putShort(0x0100)
+            .putZeros(10)
+            .putMatrix()
+            .putZeros(24)
+            .putInt(hasAudio ? AUDIO_TRACK_ID + 1 : VIDEO_TRACK_ID + 1)
+            .end();
+
+        startTrack(VIDEO_TRACK_ID, 0, width, height, VIDEO_TIMESCALE, "vide", "VideoHandler");
+        boxes.startFull("vmhd", 0, 1).putZeros(8).end();
+        startSampleTable();
+        boxes.start(sampleEntryType)
+            .putZeros(6)
+            .putShort(1)
+            .putZeros(16)
+            .putShort(width)
+            .putShort(height)
+            .putInt(0x00480000)
+            .putInt(0x00480000)
+            .putInt(0)
+            .putShort(1)
+            .putZeros(32)
+            .putShort(0x0018)
+            .putShort(-1);
+        config.writeTo(boxes);
+        boxes.end();
+        endTrack();
+
+        if (hasAudio) {
+            startTrack(AUDIO_TRACK_ID, 0x0100, 0, 0, sampleRate, "soun", "SoundHandler");
+            boxes.startFull("smhd", 0, 0).putInt(0).end();
+            startSampleTable();
+            // integer PCM of ISO/IEC 23003-5, unlike QuickTime sowt it is valid in an iso5 file
+            boxes.start("ipcm")
+                .putZeros(6)
+                .putShort(1)
+                .putZeros(8)
+                .putShort(channelCount)
+                .putShort(16)
+                .putShort(0)
+                .putShort(0)
+                .putInt(sampleRate << 16);
+            boxes.startFull("pcmC", 0, 0)
+                .putByte(PCM_LITTLE_ENDIAN)
+                .putByte(16)
+                .end();
+            boxes.end();
+            endTrack();
+        }
+
+        boxes.start("mvex");
+        putTrackExtends(VIDEO_TRACK_ID);
+        if (hasAudio) {
+            putTrackExtends(AUDIO_TRACK_ID);
+        }
+        boxes.end();
+        boxes.end();
+
+        write(boxes.flip());
+        nalUnits = config.nalUnits();
+        headerWritten = true;
+    }
+
+    private void startTrack(
+        int trackId, int volume, int width, int height, int timescale, String handler, String name
+    ) {
+        boxes.start("trak");
+        boxes.startFull("tkhd", 0, 3)
+            .putInt(0)
+            .putInt(0)
+            .putInt(trackId)
+            .putInt(0)
+            .putInt(0)
+            .putZeros(8)
+            .putShort(0)
+            .putShort(0)
+            .putShort(volume)
+            .putShort(0)
+            .putMatrix()
+            .putInt(width << 16)
+            .putInt(height << 16)
+            .end();
+        boxes.start("mdia");
+        boxes.startFull("mdhd", 0, 0)
+            .putInt(0)
+            .putInt(0)
+            .putInt(timescale)
+            .putInt(0)
+            // "und"
+            .putShort(0x55C4)
+            .putShort(0)
+            .end();
+        boxes.startFull("hdlr", 0, 0)
+            .putInt(0)
+            .putFourCC(handler)
+            .putZeros(12);
+        for (int i = 0; i < name.length(); i++) {
+            boxes.putByte(name.charAt(i));
+        }
+        boxes.putByte(0).end();
+        boxes.start("minf");
+    }
+
+    private void startSampleTable() {
+        boxes.start("dinf");
+        boxes.startFull("dref", 0, 0).putInt(1);
+        boxes.startFull("url ", 0, 1).end();
+        boxes.end();
+        boxes.end();
+        boxes.start("stbl");
+        boxes.startFull("stsd", 0, 0).putInt(1);
+    }
+
+    /**
+     * Closes the sample description opened by {@link #startSampleTable()} and the track boxes,
+     * samples themselves live in the fragments.
+     */
+    private void endTrack() {
+        // stsd
+        boxes.end();
+        boxes.startFull("stts", 0, 0).putInt(0).end();
+        boxes.startFull("stsc", 0, 0).putInt(0).end();
+        boxes.startFull("stsz", 0, 0).putInt(0).putInt(0).end();
+        boxes.startFull("stco", 0, 0).putInt(0).end();
+        // stbl, minf, mdia, trak
+        boxes.end().end().end().end();
+    }
+
+    private void putTrackExtends(int trackId) {
+        boxes.startFull("trex", 0, 0)
+            .putInt(trackId)
+            .putInt(1)
+            .putInt(0)
+            .putInt(0)
+            .putInt(0)
+            .end();
+    }
+
+    /**
+     * Writes the pending samples as one fragment. The duration of the last sample is taken from
+     * the presentation time of the sample that follows, or repeated from the one before it.
+     */
+    private void writeFragment(long nextPresentationTimeUs) throws IOException {
+        int count = pendingSamples;
+        int videoBytes = (int) (regionFile != null ? regionBytes : staging.position());
+        int frameSize = channelCount * 2;
+        long audioFrom = audioFramesWritten;
+        long audioTo = audioFrameCount;
+        if (nextPresentationTimeUs >= 0) {
+            audioTo = Math.min(audioTo, nextPresentationTimeUs * sampleRate / 1_000_000L);
+        }
+        int audioFrames = audioSource == null ? 0 : (int) Math.max(0L, audioTo - audioFrom);
+
+        boxes.reset().start("moof");
+        boxes.startFull("mfhd", 0, 0).putInt(++sequenceNumber).end();
+
+        boxes.start("traf");
+        boxes.startFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(VIDEO_TRACK_ID).end();
+        boxes.startFull("tfdt", 1, 0).putLong(toTicks(presentationTimesUs[0])).end();
+        boxes.startFull(
+            "trun", 0, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS
+        ).putInt(count);
+        int videoOffsetPosition = boxes.position();
+        boxes.putInt(0);
+        for (int i = 0; i < count; i++) {
+            if (i + 1 < count) {
+                lastDuration = (int) (toTicks(presentationTimesUs[i + 1]) - toTicks(presentationTimesUs[i]));
+            } else if (nextPresentationTimeUs >= 0) {
+                lastDuration = (int) (toTicks(nextPresentationTimeUs) - toTicks(presentationTimesUs[i]));
+            }
+            boxes.putInt(lastDuration)
+                .putInt(sizes[i])
+                .putInt(keyFrames[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        boxes.end();
+        boxes.end();
+
+        int audioOffsetPosition = -1;
+        if (audioFrames > 0) {
+            boxes.start("traf");
+            boxes.startFull(
+                "tfhd", 0,
+                TFHD_DEFAULT_BASE_IS_MOOF | TFHD_DEFAULT_SAMPLE_DURATION | TFHD_DEFAULT_SAMPLE_SIZE
+            )
+                .putInt(AUDIO_TRACK_ID)
+                .putInt(1)
+                .putInt(frameSize)
+                .end();
+            boxes.startFull("tfdt", 1, 0).putLong(audioFrom).end();
+            boxes.startFull("trun", 0, TRUN_DATA_OFFSET).putInt(audioFrames);
+            audioOffsetPosition = boxes.position();
+            boxes.putInt(0).end();
+            boxes.end();
+        }
+        boxes.end();
+
+        int moofSize = boxes.position();
+        boxes.putInt(videoOffsetPosition, moofSize + 8);
+        if (audioOffsetPosition >= 0) {
+            boxes.putInt(audioOffsetPosition, moofSize + 8 + videoBytes);
+        }
+        boxes.putInt(8 + videoBytes + audioFrames * frameSize).putFourCC("mdat");
+
+        write(boxes.flip());
+        if (regionFile != null) {
+            for (int i = 0; i < regionCount; i++) {
+                transfer(regionPositions[i], regionSizes[i]);
+            }
+            regionCount = 0;
+            regionBytes = 0L;
+        } else {
+            staging.flip();
+            write(staging);
+            staging.clear();
+        }
+        if (audioFrames > 0) {
+            audioSource.writeFrames(channel, audioFrom, audioFrames);
+            audioFramesWritten = audioFrom + audioFrames;
+            bytesWritten += (long) audioFrames * frameSize;
+        }
+        pendingSamples = 0;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+    }
+
+    private void transfer(long position, long size) throws IOException {
+        long end = position + size;
+        while (position < end) {
+            long count = regionFile.transferTo(position, end - position, channel);
+            if (count <= 0) {
+                throw new IOException("Segment file ended before its samples");
+            }
+            position += count;
+            bytesWritten += count;
+        }
+    }
+
+    private void ensureCapacity(int sampleSize) {
+        if (pendingSamples == sizes.length) {
+            int length = sizes.length * 2;
+            sizes = Arrays.copyOf(sizes, length);
+            presentationTimesUs = Arrays.copyOf(presentationTimesUs, length);
+            keyFrames = Arrays.copyOf(keyFrames, length);
+        }
+        if (staging.remaining() < sampleSize) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(
+                Math.max(staging.capacity() * 2, staging.position() + sampleSize)
+            );
+            staging.flip();
+            grown.put(staging);
+            staging = grown;
+        }
+    }
+
+    private static long toTicks(long presentationTimeUs) {
+        return presentationTimeUs * VIDEO_TIMESCALE / 1_000_000L;
+    }
+
+    public interface AudioSource {
+
+        /**
+         * Writes {@code frameCount} PCM frames starting at {@code firstFrame} to {@code channel}.
+         */
+        void writeFrames(WritableByteChannel channel, long firstFrame, long frameCount)
+            throws IOException;
+    }
+}
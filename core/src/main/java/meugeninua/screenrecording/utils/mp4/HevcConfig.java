@@ -0,0 +1,150 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.265 parameter sets taken from the codec config sample, with the fields of the SPS the
+ * {@code hvcC} box repeats.
+ */
+class HevcConfig implements CodecConfig {
+
+    private static final int NAL_TYPE_VPS = 32;
+    private static final int NAL_TYPE_SPS = 33;
+    private static final int NAL_TYPE_PPS = 34;
+    /** Profile space, tier, profile, compatibility and constraint flags, and level. */
+    private static final int GENERAL_PROFILE_SIZE = 12;
+
+    private final List<byte[]> units;
+    private final byte[] generalProfile;
+    private final int chromaFormat;
+    private final int bitDepthLumaMinus8;
+    private final int bitDepthChromaMinus8;
+    private final int temporalLayers;
+    private final boolean temporalIdNested;
+
+    private HevcConfig(
+        List<byte[]> units, byte[] generalProfile, int chromaFormat, int bitDepthLumaMinus8,
+        int bitDepthChromaMinus8, int temporalLayers, boolean temporalIdNested
+    ) {
+        this.units = units;
+        this.generalProfile = generalProfile;
+        this.chromaFormat = chromaFormat;
+        this.bitDepthLumaMinus8 = bitDepthLumaMinus8;
+        this.bitDepthChromaMinus8 = bitDepthChromaMinus8;
+        this.temporalLayers = temporalLayers;
+        this.temporalIdNested = temporalIdNested;
+    }
+
+    /**
+     * @param header first byte of a NAL unit
+     * @return true when it is the header of an H.265 parameter set
+     */
+    static boolean isHevc(byte header) {
+        int type = (header >> 1) & 0x3F;
+        return (header & 0x80) == 0 && type >= NAL_TYPE_VPS && type <= NAL_TYPE_PPS;
+    }
+
+    /**
+     * @param config codec config sample in Annex B form, read between its position and limit
+     */
+    static HevcConfig parse(ByteBuffer config) throws IOException {
+        List<byte[]> units = new ArrayList<>();
+        byte[] sps = null;
+        boolean hasVps = false;
+        boolean hasPps = false;
+        for (byte[] unit : AnnexB.units(config)) {
+            int type = (unit[0] >> 1) & 0x3F;
+            if (type < NAL_TYPE_VPS || type > NAL_TYPE_PPS) continue;
+            units.add(unit);
+            hasVps |= type == NAL_TYPE_VPS;
+            hasPps |= type == NAL_TYPE_PPS;
+            if (type == NAL_TYPE_SPS && sps == null) {
+                sps = unit;
+            }
+        }
+        if (!hasVps || sps == null || !hasPps) {
+            throw new IOException("Codec config has no VPS, SPS or PPS");
+        }
+
+        BitReader reader = BitReader.ofNalUnit(sps, 2);
+        reader.skipBits(4);
+        int maxSubLayersMinus1 = reader.readInt(3);
+        boolean temporalIdNested = reader.readFlag();
+        byte[] generalProfile = new byte[GENERAL_PROFILE_SIZE];
+        for (int i = 0; i < generalProfile.length; i++) {
+            generalProfile[i] = (byte) reader.readInt(8);
+        }
+        boolean[] subLayerProfile = new boolean[maxSubLayersMinus1];
+        boolean[] subLayerLevel = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            subLayerProfile[i] = reader.readFlag();
+            subLayerLevel[i] = reader.readFlag();
+        }
+        if (maxSubLayersMinus1 > 0) {
+            reader.skipBits(2 * (8 - maxSubLayersMinus1));
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (subLayerProfile[i]) reader.skipBits(88);
+            if (subLayerLevel[i]) reader.skipBits(8);
+        }
+        reader.readUnsignedExpGolomb();
+        int chromaFormat = reader.readUnsignedExpGolomb();
+        if (chromaFormat == 3) {
+            reader.skipBits(1);
+        }
+        reader.readUnsignedExpGolomb();
+        reader.readUnsignedExpGolomb();
+        if (reader.readFlag()) {
+            for (int i = 0; i < 4; i++) {
+                reader.readUnsignedExpGolomb();
+            }
+        }
+        int bitDepthLumaMinus8 = reader.readUnsignedExpGolomb();
+        int bitDepthChromaMinus8 = reader.readUnsignedExpGolomb();
+        return new HevcConfig(
+            units, generalProfile, chromaFormat, bitDepthLumaMinus8, bitDepthChromaMinus8,
+            maxSubLayersMinus1 + 1, temporalIdNested
+        );
+    }
+
+    @Override
+    public String sampleEntryType() {
+        return "hvc1";
+    }
+
+    /**
+     * Writes the {@code hvcC} box, with 4-byte NAL unit lengths and one array per parameter set
+     * type. The parameter sets are all in the box, as {@code hvc1} requires.
+     */
+    @Override
+    public void writeTo(BoxWriter writer) {
+        writer.start("hvcC")
+            .putByte(1)
+            .put(generalProfile)
+            // no minimum spatial segmentation, unknown parallelism
+            .putShort(0xF000)
+            .putByte(0xFC)
+            .putByte(0xFC | chromaFormat)
+            .putByte(0xF8 | bitDepthLumaMinus8)
+            .putByte(0xF8 | bitDepthChromaMinus8)
+            .putShort(0)
+            .putByte(temporalLayers << 3 | (temporalIdNested ? 1 << 2 : 0) | 3)
+            .putByte(3);
+        for (int type = NAL_TYPE_VPS; type <= NAL_TYPE_PPS; type++) {
+            int count = 0;
+            for (byte[] unit : units) {
+                if (((unit[0] >> 1) & 0x3F) == type) count++;
+            }
+            writer.putByte(0x80 | type).putShort(count);
+            for (byte[] unit : units) {
+                if (((unit[0] >> 1) & 0x3F) == type) {
+                    writer.putShort(unit.length).put(unit);
+                }
+            }
+        }
+        writer.end();
+    }
+}
@@ -0,0 +1,69 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the OBUs of AV1 samples in low overhead form, as encoders output them and MP4 stores
+ * them, apart from the temporal delimiters MP4 leaves out.
+ */
+public final class Obu {
+
+    static final int TYPE_SEQUENCE_HEADER = 1;
+    static final int TYPE_TEMPORAL_DELIMITER = 2;
+
+    private Obu() {
+    }
+
+    /**
+     * @return index of the first OBU between {@code from} and {@code to} that is not a temporal
+     * delimiter
+     */
+    public static int skipTemporalDelimiters(ByteBuffer buffer, int from, int to) {
+        while (from < to && type(buffer.get(from)) == TYPE_TEMPORAL_DELIMITER) {
+            from = end(buffer, from, to);
+        }
+        return from;
+    }
+
+    static int type(byte header) {
+        return (header >> 3) & 0x0F;
+    }
+
+    static boolean hasSize(byte header) {
+        return (header & 0x02) != 0;
+    }
+
+    /**
+     * @return index of the payload of the OBU starting at {@code from}, after its header and size
+     */
+    static int payloadStart(ByteBuffer buffer, int from, int to) {
+        byte header = buffer.get(from);
+        int position = from + 1 + ((header >> 2) & 1);
+        if (hasSize(header)) {
+            while (position < to && (buffer.get(position) & 0x80) != 0) {
+                position++;
+            }
+            position++;
+        }
+        return Math.min(position, to);
+    }
+
+    /**
+     * @return index just past the OBU starting at {@code from}, {@code to} when it has no size
+     * field and so runs to the end
+     */
+    static int end(ByteBuffer buffer, int from, int to) {
+        byte header = buffer.get(from);
+        if (!hasSize(header)) {
+            return to;
+        }
+        int position = from + 1 + ((header >> 2) & 1);
+        long size = 0L;
+        for (int i = 0; i < 8 && position < to; i++) {
+            int value = buffer.get(position++) & 0xFF;
+            size |= (long) (value & 0x7F) << (7 * i);
+            if ((value & 0x80) == 0) break;
+        }
+        return (int) Math.min(to, position + size);
+    }
+}
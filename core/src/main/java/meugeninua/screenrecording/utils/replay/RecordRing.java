@@ -0,0 +1,136 @@
+package meugeninua.screenrecording.utils.replay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands timed records from one producer thread to one consumer thread through a direct buffer
+ * allocated up front, so neither side allocates per record. A record that does not fit in the
+ * space the consumer has freed is refused rather than waited for.
+ * <p>
+ * Records are laid out back to back, each a header and its payload in one piece: one that would
+ * cross the end of the buffer starts over at its beginning instead, after a wrap marker. The
+ * producer publishes a record by moving the head past it, the consumer frees it by moving the
+ * tail, so each index has a single writer.
+ */
+class RecordRing {
+
+    static final int HEADER_SIZE = 16;
+    private static final int WRAP = -1;
+
+    private final int capacity;
+    /** Reserved and written by the producer, its position and limit are the producer's. */
+    private final ByteBuffer producerView;
+    /** Read by the consumer, its position and limit are the consumer's. */
+    private final ByteBuffer consumerView;
+    /** Total bytes published, written by the producer only. */
+    private volatile long head;
+    /** Total bytes freed, written by the consumer only. */
+    private volatile long tail;
+    /** Head past the record being written, producer thread only. */
+    private long next;
+
+    RecordRing(int capacity) {
+        this.capacity = capacity;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        this.producerView = buffer.duplicate();
+        this.consumerView = buffer.duplicate();
+    }
+
+    /**
+     * Copies the remaining bytes of {@code data} into a new record, leaving its position as it
+     * was. Producer thread only.
+     *
+     * @return false when the record does not fit, nothing is written then
+     */
+    boolean offer(int flags, long timeUs, ByteBuffer data) {
+        int position = data.position();
+        int start = reserve(data.remaining(), flags, timeUs);
+        if (start < 0) return false;
+        producerView.limit(start + HEADER_SIZE + data.remaining()).position(start + HEADER_SIZE);
+        producerView.put(data);
+        data.position(position);
+        head = next;
+        return true;
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code data} into a new record. Producer thread only.
+     *
+     * @return false when the record does not fit, nothing is written then
+     */
+    boolean offer(int flags, long timeUs, byte[] data, int offset, int length) {
+        int start = reserve(length, flags, timeUs);
+        if (start < 0) return false;
+        producerView.limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE);
+        producerView.put(data, offset, length);
+        head = next;
+        return true;
+    }
+
+    /**
+     * Writes the header of a record, which the consumer sees once its payload is written too
+     * and {@link #head} moves on to {@link #next}.
+     *
+     * @return offset of the record, -1 when it does not fit
+     */
+    private int reserve(int size, int flags, long timeUs) {
+        int recordSize = HEADER_SIZE + size;
+        if (recordSize > capacity) return -1;
+        long head = this.head;
+        int offset = (int) (head % capacity);
+        int skipped = capacity - offset < recordSize ? capacity - offset : 0;
+        if (head + skipped + recordSize - tail > capacity) return -1;
+        // absolute access is bound by the limit the last payload left
+        producerView.clear();
+        if (skipped >= HEADER_SIZE) {
+            producerView.putInt(offset, WRAP);
+        }
+        int start = skipped > 0 ? 0 : offset;
+        producerView.putInt(start, size)
+            .putInt(start + 4, flags)
+            .putLong(start + 8, timeUs);
+        next = head + skipped + recordSize;
+        return start;
+    }
+
+    /**
+     * Hands the oldest record to {@code consumer} and frees it afterwards. Consumer thread only.
+     *
+     * @return false when there is no record
+     */
+    <E extends Exception> boolean poll(Consumer<E> consumer) throws E {
+        long tail = this.tail;
+        int offset = (int) (tail % capacity);
+        consumerView.clear();
+        if (tail != head && (capacity - offset < HEADER_SIZE || consumerView.getInt(offset) == WRAP)) {
+            tail += capacity - offset;
+            offset = 0;
+        }
+        if (tail == head) {
+            this.tail = tail;
+            return false;
+        }
+        int size = consumerView.getInt(offset);
+        int flags = consumerView.getInt(offset + 4);
+        long timeUs = consumerView.getLong(offset + 8);
+        consumerView.limit(offset + HEADER_SIZE + size).position(offset + HEADER_SIZE);
+        try {
+            consumer.accept(flags, timeUs, consumerView);
+        } finally {
+            this.tail = tail + HEADER_SIZE + size;
+        }
+        return true;
+    }
+
+    /**
+     * @return true when the consumer has taken every published record
+     */
+    boolean isEmpty() {
+        return tail == head;
+    }
+
+    interface Consumer<E extends Exception> {
+
+        void accept(int flags, long timeUs, ByteBuffer payload) throws E;
+    }
+}
@@ -0,0 +1,565 @@
+package meugeninua.screenrecording.utils.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import meugeninua.screenrecording.utils.SampleFlags;
+import meugeninua.screenrecording.utils.mp4.FragmentedMp4Writer;
+
+/**
+ * Crash-safe copy of what is being captured: encoded video and PCM audio are appended to
+ * segment logs on disk next to the in-memory buffers. A clean stop deletes the log, so a log
+ * left by another process, see {@link #isAbandoned(File, int)}, means that process died while
+ * recording, and {@link #recover(File)} can still write out its last seconds.
+ * <p>
+ * Video and audio are appended from their own threads, each into its own {@link SegmentLog}.
+ * Appends only copy the record into a ring of the track allocated up front, which a writer thread
+ * of the log drains, so the codec callback and capture threads neither wait on the disk nor
+ * allocate. When the writer falls behind by a full ring, records are dropped rather than queued,
+ * and video skips to the next sync frame so what is logged still decodes. Appends after {@link #close()} are ignored, so capture threads
+ * that are winding down need no coordination with the one that stops recording.
+ */
+public class ReplayLog implements Closeable {
+
+    private static final String FORMAT_FILE_NAME = "format";
+    private static final String OWNER_FILE_NAME = "owner";
+    private static final String VIDEO_DIRECTORY = "video";
+    private static final String AUDIO_DIRECTORY = "audio";
+    private static final int SEGMENT_SECONDS = 10;
+    private static final int MIN_SEGMENT_BYTES = 256 * 1024;
+    /** Bytes of video that may wait for the writer, records beyond them are dropped. */
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+    /** Share of {@link #MAX_QUEUED_BYTES} the audio ring gets, PCM takes far less than video. */
+    private static final int AUDIO_RING_SHARE = 4;
+    /** Largest audio record, longer captured chunks are split. */
+    private static final int AUDIO_RECORD_BYTES = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MS = 5_000L;
+
+    private final SegmentLog videoLog;
+    private final SegmentLog audioLog;
+    private final int frameSize;
+    private final long audioRecordUs;
+    private final RecordRing videoRing;
+    /** Null without audio. */
+    private final RecordRing audioRing;
+    /** Made once, so draining allocates nothing either. */
+    private final RecordRing.Consumer<IOException> videoWriter;
+    private final RecordRing.Consumer<IOException> audioWriter;
+    private final Thread writer = new Thread(this::runWriter, ReplayLog.class.getSimpleName());
+    private volatile boolean writerWaiting;
+    /** First failure of the writer, the log takes no more records after it. */
+    private volatile IOException failure;
+    private volatile boolean closed;
+    /** Set when a video record was dropped, until the next sync frame. Codec callback thread only. */
+    private boolean videoGap;
+    /** A codec config that was dropped, offered again before the next sync frame. */
+    private ByteBuffer pendingConfig;
+    private long pendingConfigTimeUs;
+
+    /**
+     * Starts a new log in {@code directory}, replacing an old one.
+     *
+     * @param seconds length of the window that has to stay recoverable
+     * @param bitRate bit rate of the video, in bits per second
+     * @param sampleRate sample rate of the 16-bit PCM audio, 0 without audio
+     * @param ownerId process id of the writer, tells a log of a live process from an abandoned one
+     */
+    public ReplayLog(
+        File directory, int seconds, int width, int height, int bitRate, int sampleRate, int channelCount,
+        int ownerId
+    ) throws IOException {
+        this(
+            directory, seconds, width, height, sampleRate, channelCount,
+            segmentBytes(bitRate / 8), segmentBytes(sampleRate * channelCount * 2),
+            (seconds + SEGMENT_SECONDS - 1) / SEGMENT_SECONDS + 2, MAX_QUEUED_BYTES, ownerId
+        );
+    }
+
+    ReplayLog(
+        File directory, int seconds, int width, int height, int sampleRate, int channelCount,
+        long videoSegmentBytes, long audioSegmentBytes, int maxSegments
+    ) throws IOException {
+        this(
+            directory, seconds, width, height, sampleRate, channelCount,
+            videoSegmentBytes, audioSegmentBytes, maxSegments, MAX_QUEUED_BYTES, 0
+        );
+    }
+
+    ReplayLog(
+        File directory, int seconds, int width, int height, int sampleRate, int channelCount,
+        long videoSegmentBytes, long audioSegmentBytes, int maxSegments, long maxQueuedBytes,
+        int ownerId
+    ) throws IOException {
+        delete(directory);
+        if (!directory.mkdirs()) {
+            throw new IOException("Can't create replay log directory " + directory);
+        }
+        Files.write(
+            new File(directory, OWNER_FILE_NAME).toPath(), ByteBuffer.allocate(4).putInt(ownerId).array()
+        );
+        this.frameSize = channelCount * 2;
+        videoLog = new SegmentLog(new File(directory, VIDEO_DIRECTORY), videoSegmentBytes, maxSegments);
+        audioLog = sampleRate <= 0 ? null : new SegmentLog(
+            new File(directory, AUDIO_DIRECTORY), audioSegmentBytes, maxSegments
+        );
+        videoWriter = videoLog::append;
+        audioWriter = audioLog != null ? audioLog::append : null;
+        videoRing = new RecordRing((int) maxQueuedBytes);
+        if (sampleRate > 0) {
+            int audioRecordBytes = AUDIO_RECORD_BYTES / frameSize * frameSize;
+            audioRecordUs = audioRecordBytes / frameSize * 1_000_000L / sampleRate;
+            audioRing = new RecordRing((int) Math.max(
+                maxQueuedBytes / AUDIO_RING_SHARE, RecordRing.HEADER_SIZE + audioRecordBytes
+            ));
+        } else {
+            audioRecordUs = 0L;
+            audioRing = null;
+        }
+
+        ByteBuffer format = ByteBuffer.allocate(20)
+            .putInt(seconds)
+            .putInt(width)
+            .putInt(height)
+            .putInt(sampleRate)
+            .putInt(channelCount);
+        Files.write(new File(directory, FORMAT_FILE_NAME).toPath(), format.array());
+
+        writer.setPriority(Thread.NORM_PRIORITY - 1);
+        writer.start();
+    }
+
+    private static long segmentBytes(int bytesPerSecond) {
+        return Math.max(MIN_SEGMENT_BYTES, (long) bytesPerSecond * SEGMENT_SECONDS);
+    }
+
+    /**
+     * Queues an encoded sample, the position of {@code buffer} is left as it was. Has to be
+     * called from one thread, the codec callback one.
+     *
+     * @throws IOException when an earlier write failed
+     */
+    public void appendVideo(ByteBuffer buffer, int flags, long presentationTimeUs) throws IOException {
+        if (closed) return;
+        checkFailure();
+        if ((flags & SampleFlags.CODEC_CONFIG) != 0) {
+            if (videoRing.offer(flags, presentationTimeUs, buffer)) {
+                pendingConfig = null;
+                signalWriter();
+            } else {
+                // nothing decodes without it, a copy is kept for the next sync frame: a config
+                // comes once per encoder, so this is about the only allocation of the log
+                pendingConfig = ByteBuffer.allocate(buffer.remaining());
+                pendingConfig.put(buffer.duplicate()).flip();
+                pendingConfigTimeUs = presentationTimeUs;
+                videoGap = true;
+            }
+            return;
+        }
+        if (videoGap) {
+            if ((flags & SampleFlags.KEY_FRAME) == 0) return;
+            if (pendingConfig != null) {
+                if (!videoRing.offer(SampleFlags.CODEC_CONFIG, pendingConfigTimeUs, pendingConfig)) return;
+                pendingConfig = null;
+            }
+        }
+        videoGap = !videoRing.offer(flags, presentationTimeUs, buffer);
+        signalWriter();
+    }
+
+    /**
+     * Queues captured PCM, stamped with the presentation time of its first frame. Has to be
+     * called from one thread, the audio one.
+     *
+     * @throws IOException when an earlier write failed
+     */
+    public void appendAudio(byte[] buffer, int offset, int length, long presentationTimeUs) throws IOException {
+        if (audioRing == null || closed) return;
+        checkFailure();
+        int recordBytes = AUDIO_RECORD_BYTES / frameSize * frameSize;
+        while (length > 0) {
+            int count = Math.min(length, recordBytes);
+            // every record starts a frame, so any of them may begin a recovered track
+            if (!audioRing.offer(SampleFlags.KEY_FRAME, presentationTimeUs, buffer, offset, count)) break;
+            offset += count;
+            length -= count;
+            presentationTimeUs += audioRecordUs;
+        }
+        signalWriter();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private void signalWriter() {
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private boolean isDrained() {
+        return videoRing.isEmpty() && (audioRing == null || audioRing.isEmpty());
+    }
+
+    /**
+     * Drains both rings until the log is closed and nothing is left, or a write fails.
+     */
+    private void runWriter() {
+        try {
+            while (true) {
+                boolean wrote = videoRing.poll(videoWriter);
+                if (audioRing != null && audioRing.poll(audioWriter)) {
+                    wrote = true;
+                }
+                if (wrote) continue;
+                if (closed || Thread.interrupted()) return;
+                writerWaiting = true;
+                // an append that comes after this check sees the flag and wakes the writer
+                if (isDrained() && !closed) {
+                    LockSupport.park(this);
+                }
+                writerWaiting = false;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for the records queued so far to be written.
+     */
+    void sync() throws IOException {
+        while (!isDrained() && writer.isAlive()) {
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the writer", e);
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes out what is queued, then checkpoints and closes the log, it stays on disk until
+     * {@link #delete(File)}. Waits for the writer {@link #CLOSE_TIMEOUT_MS} at most, what is
+     * still queued then is dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+            if (writer.isAlive()) {
+                writer.interrupt();
+                writer.join(CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            videoLog.close();
+        } finally {
+            if (audioLog != null) {
+                audioLog.close();
+            }
+        }
+    }
+
+    public static boolean exists(File directory) {
+        return new File(directory, FORMAT_FILE_NAME).isFile();
+    }
+
+    /**
+     * @param ownerId process id of the caller
+     * @return true when the log in {@code directory} was written by another process, which is
+     * gone by now: a process only ever keeps one log going, under its own id
+     */
+    public static boolean isAbandoned(File directory, int ownerId) throws IOException {
+        if (!exists(directory)) return false;
+        File owner = new File(directory, OWNER_FILE_NAME);
+        // a log without an owner predates them, so it can't be one of this process
+        if (!owner.isFile()) return true;
+        ByteBuffer id = ByteBuffer.wrap(Files.readAllBytes(owner.toPath()));
+        return id.remaining() < 4 || id.getInt() != ownerId;
+    }
+
+    public static void delete(File directory) throws IOException {
+        SegmentLog.delete(new File(directory, VIDEO_DIRECTORY));
+        SegmentLog.delete(new File(directory, AUDIO_DIRECTORY));
+        SegmentLog.delete(directory);
+    }
+
+    /**
+     * Reads the indexes of the log in {@code directory} and the records appended after their
+     * last checkpoints.
+     *
+     * @return null when there is no log or it holds no video
+     */
+    public static Recovery recover(File directory) throws IOException {
+        if (!exists(directory)) return null;
+        ByteBuffer format = ByteBuffer.wrap(Files.readAllBytes(new File(directory, FORMAT_FILE_NAME).toPath()));
+        if (format.remaining() < 20) return null;
+        File videoDirectory = new File(directory, VIDEO_DIRECTORY);
+        List<SegmentLog.Segment> video = SegmentLog.recover(videoDirectory);
+        if (endTimeUs(video) == Long.MIN_VALUE) return null;
+        File audioDirectory = new File(directory, AUDIO_DIRECTORY);
+        return new Recovery(
+            format.getInt(), format.getInt(), format.getInt(), format.getInt(), format.getInt(),
+            videoDirectory, video, audioDirectory, SegmentLog.recover(audioDirectory)
+        );
+    }
+
+    private static long endTimeUs(List<SegmentLog.Segment> segments) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long timeUs = segments.get(i).lastTimeUs;
+            if (timeUs != Long.MIN_VALUE) return timeUs;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    public static final class Recovery {
+
+        private final int seconds;
+        private final int width;
+        private final int height;
+        private final int sampleRate;
+        private final int channelCount;
+        private final File videoDirectory;
+        private final List<SegmentLog.Segment> video;
+        private final File audioDirectory;
+        private final List<SegmentLog.Segment> audio;
+
+        Recovery(
+            int seconds, int width, int height, int sampleRate, int channelCount,
+            File videoDirectory, List<SegmentLog.Segment> video,
+            File audioDirectory, List<SegmentLog.Segment> audio
+        ) {
+            this.seconds = seconds;
+            this.width = width;
+            this.height = height;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.videoDirectory = videoDirectory;
+            this.video = video;
+            this.audioDirectory = audioDirectory;
+            this.audio = audio;
+        }
+
+        /**
+         * @return length of the window the log was kept for
+         */
+        public int seconds() {
+            return seconds;
+        }
+
+        /**
+         * @return presentation time of the last recovered video sample
+         */
+        public long endTimeUs() {
+            return ReplayLog.endTimeUs(video);
+        }
+
+        /**
+         * Writes the last {@code seconds} of the log as fragmented MP4. Video starts at the last
+         * sync frame at or before that point, or at the first one the log still has.
+         *
+         * @return number of bytes written
+         */
+        public long writeTo(int seconds, WritableByteChannel channel) throws IOException {
+            long fromUs = endTimeUs() - seconds * 1_000_000L;
+            int startSegment = -1;
+            long startOffset = 0L;
+            long startTimeUs = 0L;
+            search:
+            for (int i = 0; i < video.size(); i++) {
+                SegmentLog.Segment segment = video.get(i);
+                for (int j = 0; j < segment.syncCount; j++) {
+                    if (startSegment >= 0 && segment.syncTimesUs[j] > fromUs) break search;
+                    startSegment = i;
+                    startOffset = segment.syncOffsets[j];
+                    startTimeUs = segment.syncTimesUs[j];
+                }
+            }
+            if (startSegment < 0) {
+                throw new IOException("No sync frame was recovered");
+            }
+
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, width, height);
+            if (sampleRate > 0 && !audio.isEmpty()) {
+                PcmTrack track = new PcmTrack(audioDirectory, audio, startTimeUs, sampleRate, channelCount);
+                writer.withAudio(sampleRate, channelCount, track.frameCount(), track);
+            }
+            for (int i = startSegment; i < video.size(); i++) {
+                SegmentLog.Segment segment = video.get(i);
+                try (SegmentLog.Reader reader = new SegmentLog.Reader(videoDirectory, segment, 0L, segment.length)) {
+                    while (reader.next()) {
+                        // the codec config at the start of the segment is kept, whatever precedes the sync frame is not
+                        if (i == startSegment && reader.offset() < startOffset
+                            && (reader.flags() & SampleFlags.CODEC_CONFIG) == 0) continue;
+                        ByteBuffer payload = reader.payload();
+                        writer.writeSample(
+                            payload, 0, payload.remaining(), reader.flags(),
+                            reader.timeUs() - startTimeUs
+                        );
+                    }
+                }
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Streams the logged PCM from the record that covers the first video sample on. Frames
+     * are requested strictly in order, so the records are read once, one after another.
+     */
+    private static final class PcmTrack implements FragmentedMp4Writer.AudioSource {
+
+        private final File directory;
+        private final List<SegmentLog.Segment> segments;
+        private final int frameSize;
+        private int segmentIndex;
+        private long recordOffset;
+        /** Frames of silence before the first record, when audio started after the video. */
+        private long silentFrames;
+        /** Bytes to skip at the start of the first record. */
+        private long skipBytes;
+        private long frameCount;
+
+        private SegmentLog.Reader reader;
+        private long position;
+
+        PcmTrack(
+            File directory, List<SegmentLog.Segment> segments, long startTimeUs,
+            int sampleRate, int channelCount
+        ) throws IOException {
+            this.directory = directory;
+            this.segments = segments;
+            this.frameSize = channelCount * 2;
+
+            int firstSegment = 0;
+            long firstOffset = 0L;
+            for (int i = 0; i < segments.size(); i++) {
+                SegmentLog.Segment segment = segments.get(i);
+                for (int j = 0; j < segment.syncCount && segment.syncTimesUs[j] <= startTimeUs; j++) {
+                    firstSegment = i;
+                    firstOffset = segment.syncOffsets[j];
+                }
+            }
+            // one pass over the headers finds the exact first record and the length of the track
+            boolean started = false;
+            long bytes = 0L;
+            for (int i = firstSegment; i < segments.size(); i++) {
+                SegmentLog.Segment segment = segments.get(i);
+                long from = i == firstSegment ? firstOffset : 0L;
+                try (SegmentLog.Reader records = new SegmentLog.Reader(directory, segment, from, segment.length)) {
+                    while (records.next()) {
+                        int size = records.payload().remaining();
+                        long endTimeUs = records.timeUs() + size / frameSize * 1_000_000L / sampleRate;
+                        if (!started && endTimeUs <= startTimeUs) continue;
+                        if (!started) {
+                            started = true;
+                            segmentIndex = i;
+                            recordOffset = records.offset();
+                            long deltaFrames = (startTimeUs - records.timeUs()) * sampleRate / 1_000_000L;
+                            if (deltaFrames >= 0) {
+                                skipBytes = deltaFrames * frameSize;
+                            } else {
+                                silentFrames = -deltaFrames;
+                            }
+                        }
+                        bytes += size;
+                    }
+                }
+            }
+            frameCount = started ? silentFrames + (bytes - skipBytes) / frameSize : 0L;
+        }
+
+        long frameCount() {
+            return frameCount;
+        }
+
+        @Override
+        public void writeFrames(WritableByteChannel channel, long firstFrame, long frameCount)
+            throws IOException {
+            if (firstFrame != position) {
+                throw new IOException("Frames have to be requested in order");
+            }
+            position += frameCount;
+            long silent = Math.min(frameCount, Math.max(0L, silentFrames - firstFrame));
+            if (silent > 0) {
+                writeSilence(channel, silent * frameSize);
+            }
+            long remaining = (frameCount - silent) * frameSize;
+            while (remaining > 0) {
+                ByteBuffer payload = nextPayload();
+                if (payload == null) {
+                    throw new IOException("Audio log ended early");
+                }
+                int count = (int) Math.min(remaining, payload.remaining());
+                int limit = payload.limit();
+                payload.limit(payload.position() + count);
+                while (payload.hasRemaining()) {
+                    channel.write(payload);
+                }
+                payload.limit(limit);
+                remaining -= count;
+            }
+            if (this.position == this.frameCount && reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+
+        /**
+         * @return the unread part of the current record, or of the next one when it is consumed
+         */
+        private ByteBuffer nextPayload() throws IOException {
+            if (reader != null && reader.payload().hasRemaining()) {
+                return reader.payload();
+            }
+            while (segmentIndex < segments.size()) {
+                if (reader == null) {
+                    SegmentLog.Segment segment = segments.get(segmentIndex);
+                    reader = new SegmentLog.Reader(directory, segment, recordOffset, segment.length);
+                    recordOffset = 0L;
+                }
+                if (reader.next()) {
+                    ByteBuffer payload = reader.payload();
+                    if (skipBytes > 0) {
+                        payload.position((int) Math.min(skipBytes, payload.limit()));
+                        skipBytes = 0L;
+                    }
+                    if (payload.hasRemaining()) return payload;
+                    continue;
+                }
+                reader.close();
+                reader = null;
+                segmentIndex++;
+            }
+            return null;
+        }
+
+        private static void writeSilence(WritableByteChannel channel, long bytes) throws IOException {
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(bytes, 64 * 1024));
+            while (bytes > 0) {
+                zeros.clear().limit((int) Math.min(bytes, zeros.capacity()));
+                bytes -= zeros.remaining();
+                while (zeros.hasRemaining()) {
+                    channel.write(zeros);
+                }
+            }
+        }
+    }
+}
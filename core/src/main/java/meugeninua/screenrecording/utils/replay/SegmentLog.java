@@ -0,0 +1,376 @@
+package meugeninua.screenrecording.utils.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import meugeninua.screenrecording.utils.SampleFlags;
+
+/**
+ * Append-only log of timed records, split into segment files of a fixed size. The oldest segment
+ * is deleted once the log holds {@code maxSegments}. A single thread appends.
+ * <p>
+ * Every record carries a checksum, and a small index with the length, time span and sync points
+ * of every segment is checkpointed about once a second by writing a new file and renaming it.
+ * Recovery reads the index and scans only what was appended after the last checkpoint, so it
+ * takes the same time for any log length. Records live in the page cache as soon as they are
+ * written, which survives the death of the process, though not of the device.
+ */
+class SegmentLog implements Closeable {
+
+    static final int RECORD_HEADER_SIZE = 24;
+    private static final int RECORD_MAGIC = 0x52504C47;
+    private static final int INDEX_MAGIC = 0x52504958;
+    private static final int INDEX_VERSION = 1;
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final long SYNC_INTERVAL_US = 1_000_000L;
+    private static final long CHECKPOINT_INTERVAL_US = 1_000_000L;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+    private final ByteBuffer[] record = new ByteBuffer[2];
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel active;
+    private ByteBuffer codecConfig;
+    private ByteBuffer index = ByteBuffer.allocateDirect(4096);
+    private long lastCheckpointTimeUs = Long.MIN_VALUE;
+
+    /**
+     * Starts a new log in {@code directory}, deleting whatever was logged there before.
+     */
+    SegmentLog(File directory, long segmentBytes, int maxSegments) throws IOException {
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("Not valid value for max segments: " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        delete(directory);
+        if (!directory.mkdirs()) {
+            throw new IOException("Can't create log directory " + directory);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of {@code data}, leaving its position as it was. A codec config
+     * record is repeated at the start of every later segment, so each segment decodes on its own.
+     */
+    void append(int flags, long timeUs, ByteBuffer data) throws IOException {
+        int size = data.remaining();
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.length > 0 && segment.length + RECORD_HEADER_SIZE + size > segmentBytes) {
+            segment = roll();
+        }
+        if ((flags & SampleFlags.CODEC_CONFIG) != 0) {
+            codecConfig = ByteBuffer.allocateDirect(size);
+            codecConfig.put(data.duplicate()).flip();
+        }
+        write(segment, flags, timeUs, data);
+        if ((flags & SampleFlags.CODEC_CONFIG) == 0
+            && (lastCheckpointTimeUs == Long.MIN_VALUE || timeUs - lastCheckpointTimeUs >= CHECKPOINT_INTERVAL_US)) {
+            checkpoint();
+            lastCheckpointTimeUs = timeUs;
+        }
+    }
+
+    private void write(Segment segment, int flags, long timeUs, ByteBuffer data) throws IOException {
+        int position = data.position();
+        int size = data.remaining();
+        crc.reset();
+        crc.update(data);
+        data.position(position);
+
+        header.clear();
+        header.putInt(RECORD_MAGIC)
+            .putInt(size)
+            .putInt(flags)
+            .putLong(timeUs)
+            .putInt((int) crc.getValue())
+            .flip();
+        record[0] = header;
+        record[1] = data;
+        while (header.hasRemaining() || data.hasRemaining()) {
+            active.write(record);
+        }
+        record[1] = null;
+        data.position(position);
+        segment.onRecord(flags, timeUs, segment.length, size);
+    }
+
+    private Segment roll() throws IOException {
+        long id = 0L;
+        if (!segments.isEmpty()) {
+            id = segments.get(segments.size() - 1).id + 1;
+            active.close();
+        }
+        if (segments.size() == maxSegments) {
+            Segment oldest = segments.remove(0);
+            Files.deleteIfExists(segmentFile(directory, oldest.id).toPath());
+        }
+        Segment segment = new Segment(id);
+        segments.add(segment);
+        active = FileChannel.open(
+            segmentFile(directory, id).toPath(),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+        );
+        if (codecConfig != null) {
+            write(segment, SampleFlags.CODEC_CONFIG, 0L, codecConfig);
+        }
+        checkpoint();
+        return segment;
+    }
+
+    /**
+     * Writes the index to a new file and renames it over the previous one, a reader sees either.
+     */
+    void checkpoint() throws IOException {
+        index.clear();
+        ensureIndexCapacity(12);
+        index.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(segments.size());
+        for (Segment segment : segments) {
+            ensureIndexCapacity(36 + segment.syncCount * 16);
+            index.putLong(segment.id)
+                .putLong(segment.length)
+                .putLong(segment.firstTimeUs)
+                .putLong(segment.lastTimeUs)
+                .putInt(segment.syncCount);
+            for (int i = 0; i < segment.syncCount; i++) {
+                index.putLong(segment.syncTimesUs[i]).putLong(segment.syncOffsets[i]);
+            }
+        }
+        index.flip();
+
+        File temporary = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(
+            temporary.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+        }
+        Files.move(
+            temporary.toPath(), new File(directory, INDEX_FILE_NAME).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+        );
+    }
+
+    private void ensureIndexCapacity(int count) {
+        if (index.remaining() >= count) return;
+        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(index.capacity() * 2, index.position() + count));
+        index.flip();
+        grown.put(index);
+        index = grown;
+    }
+
+    /**
+     * Checkpoints and closes the active segment, the log stays on disk.
+     */
+    @Override
+    public void close() throws IOException {
+        if (active != null) {
+            checkpoint();
+            active.close();
+            active = null;
+        }
+    }
+
+    /**
+     * Reads the index of the log in {@code directory} and recovers the records appended after
+     * its last checkpoint, up to the first torn or corrupt one.
+     *
+     * @return the segments still on disk, oldest first, empty when there is no log
+     */
+    static List<Segment> recover(File directory) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.isFile()) return segments;
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+        if (buffer.remaining() < 12 || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION) {
+            throw new IOException("Not valid log index " + indexFile);
+        }
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(buffer.getLong());
+            segment.length = buffer.getLong();
+            segment.firstTimeUs = buffer.getLong();
+            segment.lastTimeUs = buffer.getLong();
+            int syncCount = buffer.getInt();
+            for (int j = 0; j < syncCount; j++) {
+                segment.addSync(buffer.getLong(), buffer.getLong());
+            }
+            if (segmentFile(directory, segment.id).isFile()) {
+                segments.add(segment);
+            }
+        }
+        // a segment may have been rolled after the checkpoint, its predecessor is complete then
+        long nextId = segments.isEmpty() ? 0L : segments.get(segments.size() - 1).id + 1;
+        while (segmentFile(directory, nextId).isFile()) {
+            segments.add(new Segment(nextId++));
+        }
+        for (int i = Math.max(0, segments.size() - 2); i < segments.size(); i++) {
+            scanTail(directory, segments.get(i));
+        }
+        return segments;
+    }
+
+    /**
+     * Extends the indexed part of {@code segment} over the valid records that follow it.
+     */
+    private static void scanTail(File directory, Segment segment) throws IOException {
+        try (Reader reader = new Reader(directory, segment, segment.length, Long.MAX_VALUE)) {
+            while (reader.next()) {
+                segment.onRecord(reader.flags(), reader.timeUs(), reader.offset(), reader.payload().remaining());
+            }
+        }
+    }
+
+    static File segmentFile(File directory, long id) {
+        return new File(directory, SEGMENT_PREFIX + id);
+    }
+
+    static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory.toPath());
+    }
+
+    static final class Segment {
+
+        final long id;
+        long length;
+        /** Time span of the timed records, {@link Long#MIN_VALUE} while there are none. */
+        long firstTimeUs = Long.MIN_VALUE;
+        long lastTimeUs = Long.MIN_VALUE;
+        long[] syncTimesUs = new long[16];
+        long[] syncOffsets = new long[16];
+        int syncCount;
+
+        Segment(long id) {
+            this.id = id;
+        }
+
+        void onRecord(int flags, long timeUs, long offset, int size) {
+            length = offset + RECORD_HEADER_SIZE + size;
+            if ((flags & SampleFlags.CODEC_CONFIG) != 0) return;
+            if (firstTimeUs == Long.MIN_VALUE) {
+                firstTimeUs = timeUs;
+            }
+            lastTimeUs = timeUs;
+            if ((flags & SampleFlags.KEY_FRAME) != 0
+                && (syncCount == 0 || timeUs - syncTimesUs[syncCount - 1] >= SYNC_INTERVAL_US)) {
+                addSync(timeUs, offset);
+            }
+        }
+
+        void addSync(long timeUs, long offset) {
+            if (syncCount == syncTimesUs.length) {
+                syncTimesUs = Arrays.copyOf(syncTimesUs, syncCount * 2);
+                syncOffsets = Arrays.copyOf(syncOffsets, syncCount * 2);
+            }
+            syncTimesUs[syncCount] = timeUs;
+            syncOffsets[syncCount++] = offset;
+        }
+    }
+
+    /**
+     * Reads the records of a segment one by one, stopping at the first torn or corrupt one.
+     * The payload buffer is reused between records.
+     */
+    static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final long end;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer payload = ByteBuffer.allocateDirect(64 * 1024);
+        private long position;
+        private long offset;
+        private int flags;
+        private long timeUs;
+
+        Reader(File directory, Segment segment, long offset, long end) throws IOException {
+            this.channel = FileChannel.open(segmentFile(directory, segment.id).toPath(), StandardOpenOption.READ);
+            this.position = offset;
+            this.end = Math.min(end, channel.size());
+        }
+
+        boolean next() throws IOException {
+            if (position + RECORD_HEADER_SIZE > end) return false;
+            header.clear();
+            if (!readFully(header, position) || header.getInt(0) != RECORD_MAGIC) return false;
+            int size = header.getInt(4);
+            if (size < 0 || position + RECORD_HEADER_SIZE + size > end) return false;
+            if (payload.capacity() < size) {
+                payload = ByteBuffer.allocateDirect(Math.max(size, payload.capacity() * 2));
+            }
+            payload.clear().limit(size);
+            if (!readFully(payload, position + RECORD_HEADER_SIZE)) return false;
+            payload.flip();
+            crc.reset();
+            crc.update(payload);
+            payload.flip();
+            if ((int) crc.getValue() != header.getInt(20)) return false;
+
+            offset = position;
+            flags = header.getInt(8);
+            timeUs = header.getLong(12);
+            position += RECORD_HEADER_SIZE + size;
+            return true;
+        }
+
+        private boolean readFully(ByteBuffer buffer, long from) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, from + buffer.position());
+                if (count < 0) return false;
+            }
+            return true;
+        }
+
+        long offset() {
+            return offset;
+        }
+
+        int flags() {
+            return flags;
+        }
+
+        long timeUs() {
+            return timeUs;
+        }
+
+        /**
+         * @return the payload of the current record, valid until the next call
+         */
+        ByteBuffer payload() {
+            return payload;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package meugeninua.screenrecording.recorder.audio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Minimal FLAC decoder for checking the encoder: 16-bit streams with one STREAMINFO block and
+ * fixed size blocks, every subframe type and channel assignment, with header and frame CRCs
+ * verified.
+ */
+class FlacDecoder {
+
+    final int sampleRate;
+    final int channelCount;
+    final long totalFrames;
+    /** Interleaved little-endian PCM of the whole stream. */
+    final byte[] pcm;
+    int frameCount;
+    /** Number of subframes decoded per subframe type. */
+    final int[] subframeTypes = new int[64];
+
+    FlacDecoder(byte[] flac) throws IOException {
+        Reader reader = new Reader(flac);
+        if (reader.read(32) != 0x664C6143) throw new IOException("No fLaC marker");
+        boolean last = reader.read(1) == 1;
+        if (!last || reader.read(7) != 0 || reader.read(24) != 34) throw new IOException("No lone STREAMINFO");
+        reader.read(16);
+        reader.read(16);
+        reader.read(24);
+        reader.read(24);
+        sampleRate = (int) reader.read(20);
+        channelCount = (int) reader.read(3) + 1;
+        if (reader.read(5) != 15) throw new IOException("Not 16 bits per sample");
+        totalFrames = reader.read(4) << 32 | reader.read(32);
+        for (int i = 0; i < 4; i++) {
+            reader.read(32);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        while (reader.position < flac.length) {
+            decodeFrame(reader, output);
+            frameCount++;
+        }
+        pcm = output.toByteArray();
+    }
+
+    private void decodeFrame(Reader reader, ByteArrayOutputStream output) throws IOException {
+        int start = reader.position;
+        if (reader.read(16) != 0xFFF8) throw new IOException("Lost frame sync at " + start);
+        int blockSizeCode = (int) reader.read(4);
+        if (reader.read(4) != 0) throw new IOException("Unexpected sample rate code");
+        int assignment = (int) reader.read(4);
+        if (reader.read(3) != 4 || reader.read(1) != 0) throw new IOException("Unexpected sample size");
+        long number = reader.readUtf8();
+        if (number != frameCount) throw new IOException("Frame " + number + " out of order");
+        int size;
+        if (blockSizeCode == 12) {
+            size = 4096;
+        } else if (blockSizeCode == 6) {
+            size = (int) reader.read(8) + 1;
+        } else if (blockSizeCode == 7) {
+            size = (int) reader.read(16) + 1;
+        } else {
+            throw new IOException("Unexpected block size code " + blockSizeCode);
+        }
+        int crc8 = crc8(reader.bytes, start, reader.position);
+        if (reader.read(8) != crc8) throw new IOException("Bad header CRC in frame " + number);
+
+        int[][] channels = new int[channelCount][];
+        for (int channel = 0; channel < channelCount; channel++) {
+            boolean side = assignment == 8 && channel == 1 || assignment == 9 && channel == 0
+                || assignment == 10 && channel == 1;
+            channels[channel] = decodeSubframe(reader, size, side ? 17 : 16);
+        }
+        reader.alignToByte();
+        int crc16 = crc16(reader.bytes, start, reader.position);
+        if (reader.read(16) != crc16) throw new IOException("Bad frame CRC in frame " + number);
+
+        for (int i = 0; i < size; i++) {
+            int left = channels[0][i];
+            int right = channelCount > 1 ? channels[1][i] : 0;
+            if (assignment == 8) {
+                right = left - right;
+            } else if (assignment == 9) {
+                left = right + left;
+            } else if (assignment == 10) {
+                int mid = left << 1 | (right & 1);
+                left = (mid + right) >> 1;
+                right = (mid - channels[1][i]) >> 1;
+            }
+            for (int channel = 0; channel < channelCount; channel++) {
+                int sample = channel == 0 ? left : channel == 1 ? right : channels[channel][i];
+                output.write(sample);
+                output.write(sample >> 8);
+            }
+        }
+    }
+
+    private int[] decodeSubframe(Reader reader, int size, int bits) throws IOException {
+        if (reader.read(1) != 0) throw new IOException("Bad subframe padding");
+        int type = (int) reader.read(6);
+        if (reader.read(1) != 0) throw new IOException("Unexpected wasted bits");
+        subframeTypes[type]++;
+        int[] x = new int[size];
+        if (type == 0) {
+            int value = reader.readSigned(bits);
+            java.util.Arrays.fill(x, value);
+            return x;
+        }
+        if (type == 1) {
+            for (int i = 0; i < size; i++) {
+                x[i] = reader.readSigned(bits);
+            }
+            return x;
+        }
+        if ((type & 0x38) == 0x08) {
+            int order = type & 0x07;
+            for (int i = 0; i < order; i++) {
+                x[i] = reader.readSigned(bits);
+            }
+            decodeResidual(reader, x, size, order);
+            for (int i = order; i < size; i++) {
+                switch (order) {
+                    case 1: x[i] += x[i - 1]; break;
+                    case 2: x[i] += 2 * x[i - 1] - x[i - 2]; break;
+                    case 3: x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3]; break;
+                    case 4: x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4]; break;
+                    default: break;
+                }
+            }
+            return x;
+        }
+        if ((type & 0x20) == 0) throw new IOException("Unexpected subframe type " + type);
+        int order = (type & 0x1F) + 1;
+        for (int i = 0; i < order; i++) {
+            x[i] = reader.readSigned(bits);
+        }
+        int precision = (int) reader.read(4) + 1;
+        int shift = reader.readSigned(5);
+        int[] coefficients = new int[order];
+        for (int i = 0; i < order; i++) {
+            coefficients[i] = reader.readSigned(precision);
+        }
+        decodeResidual(reader, x, size, order);
+        for (int i = order; i < size; i++) {
+            long sum = 0L;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefficients[j] * x[i - j - 1];
+            }
+            x[i] += (int) (sum >> shift);
+        }
+        return x;
+    }
+
+    private static void decodeResidual(Reader reader, int[] x, int size, int order) throws IOException {
+        if (reader.read(2) != 0) throw new IOException("Unexpected residual coding");
+        int partitionOrder = (int) reader.read(4);
+        int partitionSize = size >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int parameter = (int) reader.read(4);
+            if (parameter == 15) throw new IOException("Unexpected escape code");
+            for (int end = (p + 1) * partitionSize; i < end; i++) {
+                long quotient = 0;
+                while (reader.read(1) == 0) {
+                    quotient++;
+                }
+                long folded = quotient << parameter | reader.read(parameter);
+                x[i] = (int) ((folded >>> 1) ^ -(folded & 1));
+            }
+        }
+    }
+
+    private static int crc8(byte[] bytes, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= bytes[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            crc &= 0xFF;
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] bytes, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (bytes[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+            }
+            crc &= 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static class Reader {
+
+        final byte[] bytes;
+        int position;
+        int bit;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int count) throws IOException {
+            long value = 0L;
+            for (int i = 0; i < count; i++) {
+                if (position >= bytes.length) throw new IOException("Stream ends early");
+                value = value << 1 | (bytes[position] >> (7 - bit) & 1);
+                if (++bit == 8) {
+                    bit = 0;
+                    position++;
+                }
+            }
+            return value;
+        }
+
+        int readSigned(int count) throws IOException {
+            long value = read(count);
+            return (int) (value << (64 - count) >> (64 - count));
+        }
+
+        long readUtf8() throws IOException {
+            int first = (int) read(8);
+            if (first < 0x80) return first;
+            int continuation = Integer.numberOfLeadingZeros(~first << 24) - 1;
+            long value = first & (0x3F >> continuation);
+            for (int i = 0; i < continuation; i++) {
+                value = value << 6 | (read(8) & 0x3F);
+            }
+            return value;
+        }
+
+        void alignToByte() {
+            if (bit != 0) {
+                bit = 0;
+                position++;
+            }
+        }
+    }
+}
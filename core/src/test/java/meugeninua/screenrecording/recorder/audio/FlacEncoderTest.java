@@ -0,0 +1,169 @@
+package meugeninua.screenrecording.recorder.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import meugeninua.screenrecording.utils.CyclicAudioBuffer;
+
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void decodesBackBitExactInStereo() throws Exception {
+        // music-like content: tones, a correlated second channel, a little noise
+        int frames = 5 * FlacEncoder.BLOCK_SIZE + 1234;
+        byte[] pcm = new byte[frames * 4];
+        Random random = new Random(7);
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            int left = (int) (9000 * Math.sin(2 * Math.PI * 440 * t) + 3000 * Math.sin(2 * Math.PI * 1320 * t))
+                + random.nextInt(64) - 32;
+            int right = (int) (0.8 * left) + random.nextInt(16) - 8;
+            putFrame(pcm, i, 2, left, right);
+        }
+
+        byte[] flac = encode(pcm, 2, null);
+        FlacDecoder decoder = new FlacDecoder(flac);
+
+        assertEquals(SAMPLE_RATE, decoder.sampleRate);
+        assertEquals(2, decoder.channelCount);
+        assertEquals(frames, decoder.totalFrames);
+        assertEquals(6, decoder.frameCount);
+        assertArrayEquals(pcm, decoder.pcm);
+        assertTrue("no LPC subframes", lpcSubframes(decoder) > 0);
+        assertTrue("compressed to " + flac.length + " of " + pcm.length, flac.length < pcm.length * 0.7);
+    }
+
+    @Test
+    public void decodesBackEdgeCases() throws Exception {
+        int frames = 2 * FlacEncoder.BLOCK_SIZE + 100;
+        byte[] pcm = new byte[frames * 2];
+        Random random = new Random(11);
+        for (int i = 0; i < frames; i++) {
+            int sample;
+            if (i < FlacEncoder.BLOCK_SIZE) {
+                // a DC offset: a constant subframe
+                sample = -1234;
+            } else if (i < 2 * FlacEncoder.BLOCK_SIZE) {
+                // white noise at full scale: nothing predicts it, verbatim is the cheapest
+                sample = random.nextInt(65536) - 32768;
+            } else {
+                // full scale square wave, extreme residuals
+                sample = (i / 7) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            }
+            putFrame(pcm, i, 1, sample, 0);
+        }
+
+        FlacDecoder decoder = new FlacDecoder(encode(pcm, 1, null));
+        assertEquals(1, decoder.channelCount);
+        assertArrayEquals(pcm, decoder.pcm);
+        assertEquals(1, decoder.subframeTypes[0]);
+        assertEquals(1, decoder.subframeTypes[1]);
+    }
+
+    @Test
+    public void encodesTinyStreams() throws Exception {
+        for (int frames : new int[] { 0, 1, 3, 17, 255, 257 }) {
+            byte[] pcm = new byte[frames * 4];
+            for (int i = 0; i < frames; i++) {
+                putFrame(pcm, i, 2, i * 100, -i * 50);
+            }
+            FlacDecoder decoder = new FlacDecoder(encode(pcm, 2, null));
+            assertEquals(frames, decoder.totalFrames);
+            assertArrayEquals("frames " + frames, pcm, decoder.pcm);
+        }
+    }
+
+    @Test
+    public void writesTheSameStreamOnAnExecutor() throws Exception {
+        int frames = 40 * FlacEncoder.BLOCK_SIZE + 99;
+        byte[] pcm = new byte[frames * 4];
+        for (int i = 0; i < frames; i++) {
+            int sample = (int) (12000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE));
+            putFrame(pcm, i, 2, sample, sample / 2);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            byte[] parallel = encode(pcm, 2, executor);
+            assertArrayEquals(encode(pcm, 2, null), parallel);
+            assertArrayEquals(pcm, new FlacDecoder(parallel).pcm);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void encodesAnAudioSnapshotStraightFromTheRing() throws Exception {
+        // wraps around the ring a few times, mono and compressed alike
+        for (ImaAdpcm adpcm : new ImaAdpcm[] { null, ImaAdpcm.forChannels(1) }) {
+            CyclicAudioBuffer buffer = new CyclicAudioBuffer(2, 8000, 2, adpcm);
+            byte[] chunk = new byte[1000];
+            for (int i = 0; i < 100; i++) {
+                for (int j = 0; j < chunk.length / 2; j++) {
+                    putFrame(chunk, j, 1, (int) (5000 * Math.sin((i * 500 + j) * 0.05)), 0);
+                }
+                buffer.addBuffer(chunk, chunk.length);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try (CyclicAudioBuffer.State state = buffer.cloneState()) {
+                ByteArrayOutputStream flac = new ByteArrayOutputStream();
+                state.writeToFlac(Channels.newChannel(flac), 1, executor);
+                ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+                state.writeTo(pcm);
+
+                FlacDecoder decoder = new FlacDecoder(flac.toByteArray());
+                assertEquals(8000, decoder.sampleRate);
+                assertEquals(state.frameCount(), decoder.totalFrames);
+                assertArrayEquals(pcm.toByteArray(), decoder.pcm);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static int lpcSubframes(FlacDecoder decoder) {
+        int count = 0;
+        for (int type = 32; type < 64; type++) {
+            count += decoder.subframeTypes[type];
+        }
+        return count;
+    }
+
+    private static byte[] encode(byte[] pcm, int channelCount, ExecutorService executor) throws IOException {
+        int frameSize = 2 * channelCount;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long written = new FlacEncoder(SAMPLE_RATE, channelCount, executor).encode(
+            (firstFrame, frameCount, target) ->
+                System.arraycopy(pcm, (int) firstFrame * frameSize, target, 0, frameCount * frameSize),
+            pcm.length / frameSize,
+            Channels.newChannel(output)
+        );
+        assertEquals(output.size(), written);
+        return output.toByteArray();
+    }
+
+    private static void putFrame(byte[] pcm, int frame, int channelCount, int left, int right) {
+        int offset = frame * channelCount * 2;
+        short first = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, left));
+        pcm[offset] = (byte) first;
+        pcm[offset + 1] = (byte) (first >> 8);
+        if (channelCount > 1) {
+            short second = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, right));
+            pcm[offset + 2] = (byte) second;
+            pcm[offset + 3] = (byte) (second >> 8);
+        }
+    }
+}
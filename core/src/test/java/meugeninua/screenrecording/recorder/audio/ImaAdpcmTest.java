@@ -0,0 +1,164 @@
+package meugeninua.screenrecording.recorder.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class ImaAdpcmTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Test
+    public void compressesFourToOne() {
+        ImaAdpcm mono = ImaAdpcm.forChannels(1);
+        assertEquals(1017, mono.framesPerBlock());
+        ImaAdpcm stereo = ImaAdpcm.forChannels(2);
+        assertEquals(1017, stereo.framesPerBlock());
+        double ratio = stereo.framesPerBlock() * 4.0 / stereo.blockAlign();
+        assertTrue("ratio " + ratio, ratio > 3.9);
+    }
+
+    @Test
+    public void keepsSineWithinErrorBound() {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(1);
+        int blocks = 40;
+        byte[] pcm = sine(blocks * adpcm.framesPerBlock(), 1, 440.0, 12000);
+        byte[] decoded = roundTrip(adpcm, pcm, blocks);
+
+        // the step size needs a few samples to grow into the signal, then it tracks it closely
+        double snr = signalToNoise(pcm, decoded, 1, 64);
+        assertTrue("SNR " + snr + " dB", snr > 30.0);
+        assertTrue(maxError(pcm, decoded, 1, 64) < 800);
+    }
+
+    @Test
+    public void restartsEveryBlockFromTheExactSample() {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(1);
+        int blocks = 8;
+        byte[] pcm = sine(blocks * adpcm.framesPerBlock(), 1, 1000.0, 20000);
+        byte[] decoded = roundTrip(adpcm, pcm, blocks);
+
+        for (int block = 0; block < blocks; block++) {
+            int offset = block * adpcm.framesPerBlock() * 2;
+            assertEquals(pcm[offset], decoded[offset]);
+            assertEquals(pcm[offset + 1], decoded[offset + 1]);
+        }
+    }
+
+    @Test
+    public void codesChannelsIndependently() {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(2);
+        int blocks = 4;
+        byte[] pcm = sine(blocks * adpcm.framesPerBlock(), 2, 440.0, 10000);
+        // silence on the right channel
+        for (int i = 2; i < pcm.length; i += 4) {
+            pcm[i] = 0;
+            pcm[i + 1] = 0;
+        }
+        byte[] decoded = roundTrip(adpcm, pcm, blocks);
+
+        for (int i = 2; i < decoded.length; i += 4) {
+            assertEquals(0, decoded[i]);
+            assertEquals(0, decoded[i + 1]);
+        }
+        assertTrue(signalToNoise(pcm, decoded, 2, 64) > 30.0);
+    }
+
+    @Test
+    public void survivesFullScaleSquareWave() {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(1);
+        int blocks = 4;
+        byte[] pcm = new byte[blocks * adpcm.framesPerBlock() * 2];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            short sample = (i / 50) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        byte[] decoded = roundTrip(adpcm, pcm, blocks);
+
+        // clamped, never wrapped around: the sign follows the input after the attack
+        for (int i = 0; i < pcm.length / 2; i++) {
+            if (i % 50 < 20) continue;
+            assertEquals("sample " + i, pcm[2 * i + 1] < 0, decoded[2 * i + 1] < 0);
+        }
+    }
+
+    @Test
+    public void codesMuchFasterThanRealTime() {
+        ImaAdpcm encoder = ImaAdpcm.forChannels(2);
+        ImaAdpcm decoder = ImaAdpcm.forChannels(2);
+        int blocks = 10 * SAMPLE_RATE / encoder.framesPerBlock();
+        byte[] pcm = sine(encoder.framesPerBlock(), 2, 440.0, 12000);
+        byte[] block = new byte[encoder.blockAlign()];
+        byte[] decoded = new byte[pcm.length];
+        // warm up, then time ten seconds of stereo both ways
+        for (int i = 0; i < blocks; i++) {
+            encoder.encode(pcm, 0, block, 0);
+            decoder.decode(block, 0, decoded, 0);
+        }
+        long startTimeNs = System.nanoTime();
+        for (int i = 0; i < blocks; i++) {
+            encoder.encode(pcm, 0, block, 0);
+            decoder.decode(block, 0, decoded, 0);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNs);
+
+        assertTrue("10 s of audio took " + elapsedMs + " ms", elapsedMs < 500);
+        assertArrayEquals(Arrays.copyOf(decoded, 4), Arrays.copyOf(pcm, 4));
+    }
+
+    private static byte[] roundTrip(ImaAdpcm adpcm, byte[] pcm, int blocks) {
+        int frameBytes = adpcm.framesPerBlock() * adpcm.channelCount() * 2;
+        byte[] encoded = new byte[blocks * adpcm.blockAlign()];
+        byte[] decoded = new byte[pcm.length];
+        for (int i = 0; i < blocks; i++) {
+            adpcm.encode(pcm, i * frameBytes, encoded, i * adpcm.blockAlign());
+        }
+        for (int i = 0; i < blocks; i++) {
+            adpcm.decode(encoded, i * adpcm.blockAlign(), decoded, i * frameBytes);
+        }
+        return decoded;
+    }
+
+    static byte[] sine(int frames, int channels, double frequency, int amplitude) {
+        byte[] pcm = new byte[frames * channels * 2];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            for (int channel = 0; channel < channels; channel++) {
+                int offset = (i * channels + channel) * 2;
+                pcm[offset] = (byte) sample;
+                pcm[offset + 1] = (byte) (sample >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    private static double signalToNoise(byte[] expected, byte[] actual, int channels, int skipFrames) {
+        double signal = 0.0;
+        double noise = 0.0;
+        for (int i = skipFrames * channels; i < expected.length / 2; i++) {
+            int value = sampleAt(expected, i);
+            int error = value - sampleAt(actual, i);
+            signal += (double) value * value;
+            noise += (double) error * error;
+        }
+        return 10.0 * Math.log10(signal / Math.max(noise, 1.0));
+    }
+
+    private static int maxError(byte[] expected, byte[] actual, int channels, int skipFrames) {
+        int max = 0;
+        for (int i = skipFrames * channels; i < expected.length / 2; i++) {
+            max = Math.max(max, Math.abs(sampleAt(expected, i) - sampleAt(actual, i)));
+        }
+        return max;
+    }
+
+    private static int sampleAt(byte[] pcm, int index) {
+        return (short) ((pcm[2 * index] & 0xFF) | pcm[2 * index + 1] << 8);
+    }
+}
@@ -0,0 +1,124 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitrateControllerTest {
+
+    private static final int MAX_BIT_RATE = 6000000;
+    private static final int MIN_BIT_RATE = 500000;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_DURATION_US = 1_000_000L / FRAME_RATE;
+    private static final int WINDOW_SECONDS = 60;
+    private static final long BUDGET_BYTES = 60L * 1024 * 1024;
+
+    @Test
+    public void fitsBitRateToBudget() {
+        assertEquals(MAX_BIT_RATE, BitrateController.fittingBitRate(1L << 30, WINDOW_SECONDS, MAX_BIT_RATE));
+        // 60 MB for a minute with half as much again for overshoot
+        assertEquals(5592405, BitrateController.fittingBitRate(BUDGET_BYTES, WINDOW_SECONDS, MAX_BIT_RATE));
+    }
+
+    @Test
+    public void holdsOvershootingEncoderWithinBudget() {
+        int initial = BitrateController.fittingBitRate(BUDGET_BYTES, WINDOW_SECONDS, MAX_BIT_RATE);
+        BitrateController controller = new BitrateController(BUDGET_BYTES, WINDOW_SECONDS, initial, MIN_BIT_RATE);
+        long[] bytesPerSecond = new SimulatedEncoder(controller).run(180, second -> 1.8);
+
+        // 1.8 times a target of 85% of the budget rate
+        assertTrue(controller.bitRate() < initial * 0.75);
+        assertTrue(maxWindowBytes(bytesPerSecond) <= BUDGET_BYTES);
+    }
+
+    @Test
+    public void leavesTargetAloneOnStaticScreen() {
+        BitrateController controller = new BitrateController(BUDGET_BYTES, WINDOW_SECONDS, MAX_BIT_RATE, MIN_BIT_RATE);
+        SimulatedEncoder encoder = new SimulatedEncoder(controller);
+        encoder.run(120, second -> 0.05);
+
+        assertEquals(0, encoder.changes);
+        assertEquals(MAX_BIT_RATE, controller.bitRate());
+    }
+
+    @Test
+    public void raisesTargetBackAfterBusyScreenCalmsDown() {
+        int initial = BitrateController.fittingBitRate(BUDGET_BYTES, WINDOW_SECONDS, MAX_BIT_RATE);
+        BitrateController controller = new BitrateController(BUDGET_BYTES, WINDOW_SECONDS, initial, MIN_BIT_RATE);
+        SimulatedEncoder encoder = new SimulatedEncoder(controller);
+        long[] bytesPerSecond = encoder.run(180, second -> second < 60 ? 2.0 : 0.8);
+
+        assertTrue(controller.bitRate() > initial * 0.8);
+        assertTrue(encoder.highestBitRate <= initial);
+        assertTrue(maxWindowBytes(bytesPerSecond) <= BUDGET_BYTES);
+    }
+
+    @Test
+    public void neverGoesBelowMinimum() {
+        BitrateController controller = new BitrateController(1024 * 1024, WINDOW_SECONDS, MAX_BIT_RATE, MIN_BIT_RATE);
+        new SimulatedEncoder(controller).run(60, second -> 1.0);
+
+        assertEquals(MIN_BIT_RATE, controller.bitRate());
+    }
+
+    /**
+     * @return most bytes any {@link #WINDOW_SECONDS} of the run held
+     */
+    private static long maxWindowBytes(long[] bytesPerSecond) {
+        long max = 0L;
+        long window = 0L;
+        for (int i = 0; i < bytesPerSecond.length; i++) {
+            window += bytesPerSecond[i];
+            if (i >= WINDOW_SECONDS) window -= bytesPerSecond[i - WINDOW_SECONDS];
+            max = Math.max(max, window);
+        }
+        return max;
+    }
+
+    private interface Complexity {
+
+        /**
+         * @return output of the encoder as a multiple of its target in that second
+         */
+        double at(int second);
+    }
+
+    /**
+     * Puts out frames of the target size scaled by the complexity of the screen, a sync frame
+     * four times as large every second, and takes a new target from the next frame on.
+     */
+    private static class SimulatedEncoder {
+
+        final BitrateController controller;
+        int bitRate;
+        int highestBitRate;
+        int changes;
+
+        SimulatedEncoder(BitrateController controller) {
+            this.controller = controller;
+            this.bitRate = controller.bitRate();
+            this.highestBitRate = bitRate;
+        }
+
+        long[] run(int seconds, Complexity complexity) {
+            long[] bytesPerSecond = new long[seconds];
+            for (int frame = 0; frame < seconds * FRAME_RATE; frame++) {
+                int second = frame / FRAME_RATE;
+                double average = bitRate / 8.0 / FRAME_RATE * complexity.at(second);
+                boolean keyFrame = frame % FRAME_RATE == 0;
+                int size = (int) (keyFrame
+                    ? average * 4
+                    : average * (FRAME_RATE - 4) / (FRAME_RATE - 1));
+                bytesPerSecond[second] += size;
+                int next = controller.onFrame(size, frame * FRAME_DURATION_US);
+                if (next != 0) {
+                    bitRate = next;
+                    highestBitRate = Math.max(highestBitRate, next);
+                    changes++;
+                }
+            }
+            return bytesPerSecond;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class CodecCacheTest {
+
+    private static final String MIME_TYPE = "video/avc";
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("codecs", ".cache");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void keepsEntriesAcrossInstances() throws Exception {
+        CodecCache cache = new CodecCache(file, "build/1");
+        assertNull(cache.get(MIME_TYPE, 1080, 2400));
+        cache.put(MIME_TYPE, 1080, 2400, new CodecCache.Entry(
+            MIME_TYPE, "c2.android.avc.encoder", "c2.android.avc.encoder", 540, 1200, 2, 8, 0x2000,
+            new ThroughputProbe.Result(58.5, 41_000L, 7_200_000)
+        ));
+        cache.put(MIME_TYPE, 2400, 1080, new CodecCache.Entry(
+            MIME_TYPE, "c2.android.avc.encoder", "c2.android.avc.encoder", 1200, 540, 2, 8, 0x2000, null
+        ));
+
+        CodecCache.Entry entry = new CodecCache(file, "build/1").get(MIME_TYPE, 1080, 2400);
+        assertEquals(MIME_TYPE, entry.mimeType);
+        assertEquals("c2.android.avc.encoder", entry.name);
+        assertEquals(540, entry.width);
+        assertEquals(1200, entry.height);
+        assertEquals(2, entry.sliceHeight);
+        assertEquals(8, entry.profile);
+        assertEquals(0x2000, entry.level);
+        assertEquals(58.5, entry.probe.framesPerSecond, 0.0);
+        assertEquals(41_000L, entry.probe.latencyUs);
+        assertEquals(7_200_000, entry.probe.bitRate);
+        assertNull(new CodecCache(file, "build/1").get(MIME_TYPE, 2400, 1080).probe);
+        assertEquals(1200, new CodecCache(file, "build/1").get(MIME_TYPE, 2400, 1080).width);
+        assertNull(new CodecCache(file, "build/1").get("video/hevc", 1080, 2400));
+    }
+
+    @Test
+    public void dropsEntriesOfAnotherBuild() throws Exception {
+        new CodecCache(file, "build/1").put(MIME_TYPE, 720, 1280, new CodecCache.Entry(
+            MIME_TYPE, "old.encoder", "old.encoder", 720, 1280, 1, 1, 1, null
+        ));
+        CodecCache updated = new CodecCache(file, "build/2");
+        assertNull(updated.get(MIME_TYPE, 720, 1280));
+
+        updated.put(MIME_TYPE, 1080, 1920, new CodecCache.Entry(
+            MIME_TYPE, "new.encoder", "new.encoder", 1080, 1920, 1, 1, 1, null
+        ));
+        assertNull(new CodecCache(file, "build/2").get(MIME_TYPE, 720, 1280));
+        assertEquals("new.encoder", new CodecCache(file, "build/2").get(MIME_TYPE, 1080, 1920).name);
+    }
+
+    @Test
+    public void treatsDamagedFileAsEmptyAndForgetsEntries() throws Exception {
+        Files.write(file.toPath(), new byte[] { 0x43, 0x4F, 0x44, 0x43, 0, 0, 0, 3, 0 });
+        CodecCache cache = new CodecCache(file, "build/1");
+        assertNull(cache.get(MIME_TYPE, 720, 1280));
+
+        cache.put(MIME_TYPE, 720, 1280, new CodecCache.Entry(MIME_TYPE, "a", "a", 720, 1280, 1, 0, 0, null));
+        cache.remove(MIME_TYPE, 720, 1280);
+        assertNull(new CodecCache(file, "build/1").get(MIME_TYPE, 720, 1280));
+    }
+}
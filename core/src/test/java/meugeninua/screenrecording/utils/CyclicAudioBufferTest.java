@@ -0,0 +1,322 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import meugeninua.screenrecording.recorder.audio.ImaAdpcm;
+
+public class CyclicAudioBufferTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_SIZE = 2;
+
+    @Test
+    public void keepsWindowBySampleCount() {
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE);
+        byte[] bytes = new byte[441 * FRAME_SIZE];
+        for (int i = 0; i < 300; i++) {
+            buffer.addBuffer(bytes, bytes.length);
+        }
+
+        assertEquals(SAMPLE_RATE, buffer.cloneState().frameCount());
+    }
+
+    @Test
+    public void derivesStartTimeFromCaptureTimestamp() {
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE);
+        byte[] bytes = new byte[441 * FRAME_SIZE];
+        for (int i = 0; i < 200; i++) {
+            buffer.addBuffer(bytes, bytes.length);
+        }
+        // frame 88200 was presented two seconds after frame 0
+        buffer.setTimestamp(2 * SAMPLE_RATE, 5_000_000L);
+
+        // frames 44100..88199 are kept and start one second after the anchor's stream start
+        assertEquals(4_000_000L, buffer.cloneState().startTimeUs());
+    }
+
+    @Test
+    public void keepsTimesOfFramesOnBothSidesOfDroppedChunk() {
+        // 1 s window with 5 s of headroom, 441 frames = 10 ms per chunk
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE);
+        byte[] bytes = new byte[441 * FRAME_SIZE];
+        CyclicAudioBuffer.PcmSource source = (target, offset, length) -> {
+            int count = Math.min(length, bytes.length);
+            System.arraycopy(bytes, 0, target, offset, count);
+            return count;
+        };
+        long captured = 0L;
+        for (int i = 0; i < 100; i++) {
+            captured += buffer.read(source, bytes.length) / FRAME_SIZE;
+        }
+        // the capture stream started at 1 s
+        buffer.setTimestamp(captured, 1_000_000L + captured * 1_000_000L / SAMPLE_RATE);
+
+        // a snapshot pins the ring until capture laps it, chunks are dropped then
+        CyclicAudioBuffer.State pinning = buffer.cloneState();
+        long beforeGap = 0L;
+        while (buffer.droppedFrames() == 0) {
+            beforeGap = captured;
+            captured += buffer.read(source, bytes.length) / FRAME_SIZE;
+        }
+        long dropped = buffer.droppedFrames();
+        pinning.close();
+        for (int i = 0; i < 10; i++) {
+            captured += buffer.read(source, bytes.length) / FRAME_SIZE;
+        }
+        buffer.setTimestamp(captured, 1_000_000L + captured * 1_000_000L / SAMPLE_RATE);
+
+        CyclicAudioBuffer.State state = buffer.cloneState();
+        // the last frame stored before the gap, and the first one after it
+        long lastBefore = state.frameCount() - 1 - 10 * 441;
+        assertEquals(
+            1_000_000L + (beforeGap - 1) * 1_000_000L / SAMPLE_RATE,
+            state.presentationTimeUs(lastBefore)
+        );
+        assertEquals(
+            1_000_000L + (beforeGap + dropped) * 1_000_000L / SAMPLE_RATE,
+            state.presentationTimeUs(lastBefore + 1)
+        );
+        assertEquals(
+            1_000_000L + (captured - SAMPLE_RATE) * 1_000_000L / SAMPLE_RATE,
+            state.startTimeUs() + dropped * 1_000_000L / SAMPLE_RATE
+        );
+
+        // a clip from the middle of the gap starts at the first frame after it
+        long gapTimeUs = 1_000_000L + (beforeGap + dropped / 2) * 1_000_000L / SAMPLE_RATE;
+        state.clip(gapTimeUs, Long.MAX_VALUE / SAMPLE_RATE);
+        assertEquals(10 * 441, state.frameCount());
+        state.close();
+    }
+
+    @Test
+    public void reportsUnknownStartTimeWithoutTimestamp() {
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE);
+        buffer.addBuffer(new byte[64], 64);
+
+        assertEquals(-1L, buffer.cloneState().startTimeUs());
+    }
+
+    @Test
+    public void keepsExactlyTheNewestFramesAcrossWrapAround() throws Exception {
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, 10, FRAME_SIZE);
+        for (int i = 0; i < 7; i++) {
+            buffer.addBuffer(new byte[] { (byte) (3 * i), 0, (byte) (3 * i + 1), 0, (byte) (3 * i + 2), 0 }, 6);
+        }
+
+        CyclicAudioBuffer.State state = buffer.cloneState();
+        assertEquals(10, state.frameCount());
+        byte[] pcm = pcmOf(state);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(11 + i, pcm[i * FRAME_SIZE]);
+        }
+    }
+
+    @Test
+    public void captureReadsIntoTheRingWithoutAllocating() {
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE);
+        CyclicAudioBuffer.PcmSource source = (bytes, offset, length) -> length;
+        for (int i = 0; i < 20_000; i++) {
+            buffer.read(source, 2048);
+        }
+
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 30_000; i++) {
+            buffer.read(source, 2048);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+        assertEquals(SAMPLE_RATE, buffer.cloneState().frameCount());
+    }
+
+    @Test
+    public void snapshotsStayConsistentWhileCaptureRuns() throws Exception {
+        int frameSize = 4;
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, 8000, frameSize);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            byte[] chunk = new byte[256 * frameSize];
+            ByteBuffer view = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            for (int index = 0; running.get(); ) {
+                for (int i = 0; i < 256; i++, index++) {
+                    view.putInt(i * frameSize, index);
+                }
+                buffer.addBuffer(chunk, chunk.length);
+            }
+        });
+        producer.start();
+
+        int verified = 0;
+        long deadline = System.currentTimeMillis() + 2000L;
+        while (System.currentTimeMillis() < deadline) {
+            try (CyclicAudioBuffer.State state = buffer.cloneState()) {
+                ByteBuffer pcm = ByteBuffer.wrap(pcmOf(state)).order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(state.frameCount() * frameSize, pcm.capacity());
+                int previous = -1;
+                for (int offset = 0; offset < pcm.capacity(); offset += frameSize) {
+                    int index = pcm.getInt(offset);
+                    // dropped chunks leave gaps, overwritten frames would go backwards
+                    assertTrue("Torn snapshot", index > previous);
+                    previous = index;
+                }
+                if (previous >= 0) {
+                    verified++;
+                }
+            }
+        }
+        running.set(false);
+        producer.join();
+
+        assertTrue(verified > 10);
+    }
+
+    @Test
+    public void writesWavThatParsesBackWithEveryFrame() throws Exception {
+        // stereo 16 bit, enough chunks for the window to wrap around the ring
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, 8000, 4);
+        byte[] bytes = new byte[1000 * 4];
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) (i * 31 + j);
+            }
+            buffer.addBuffer(bytes, bytes.length);
+        }
+        CyclicAudioBuffer.State state = buffer.cloneState();
+        File file = File.createTempFile("snapshot", ".wav");
+        file.deleteOnExit();
+
+        long written = state.writeToWav(file.getPath(), 2);
+
+        assertEquals(file.length(), written);
+        assertEquals(44 + 8000 * 4, written);
+        try (AudioInputStream stream = AudioSystem.getAudioInputStream(file)) {
+            AudioFormat format = stream.getFormat();
+            assertEquals(AudioFormat.Encoding.PCM_SIGNED, format.getEncoding());
+            assertEquals(8000f, format.getSampleRate(), 0f);
+            assertEquals(2, format.getChannels());
+            assertEquals(16, format.getSampleSizeInBits());
+            assertEquals(false, format.isBigEndian());
+            assertEquals(8000, stream.getFrameLength());
+
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            for (int count; (count = stream.read(chunk)) > 0; ) {
+                pcm.write(chunk, 0, count);
+            }
+            assertArrayEquals(pcmOf(state), pcm.toByteArray());
+        }
+    }
+
+    @Test
+    public void compressesTheWindowAndDecodesItBack() throws Exception {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(1);
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, SAMPLE_RATE, FRAME_SIZE, adpcm);
+        byte[] sine = sine(3 * SAMPLE_RATE);
+        // odd sized reads, blocks fill up across them
+        int[] position = new int[1];
+        CyclicAudioBuffer.PcmSource source = (bytes, offset, length) -> {
+            int count = Math.min(Math.min(length, 1234), sine.length - position[0]);
+            System.arraycopy(sine, position[0], bytes, offset, count);
+            position[0] += count;
+            return count;
+        };
+        while (position[0] < sine.length) {
+            buffer.read(source, 4096);
+        }
+
+        CyclicAudioBuffer.State state = buffer.cloneState();
+        long frames = state.frameCount();
+        assertEquals(0, frames % adpcm.framesPerBlock());
+        assertTrue(frames >= SAMPLE_RATE && frames < SAMPLE_RATE + adpcm.framesPerBlock());
+
+        // the window ends with the last full block and follows the input closely
+        byte[] pcm = pcmOf(state);
+        assertEquals(frames * FRAME_SIZE, pcm.length);
+        int end = sine.length - sine.length % (adpcm.framesPerBlock() * FRAME_SIZE);
+        ByteBuffer expected = ByteBuffer.wrap(sine, end - pcm.length, pcm.length).slice()
+            .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer actual = ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < pcm.length; i += 2) {
+            assertEquals("frame " + i / 2, expected.getShort(i), actual.getShort(i), 1000);
+        }
+
+        // a range that starts and ends inside blocks decodes to the same frames
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        state.writeTo(Channels.newChannel(range), 700, 2000);
+        assertArrayEquals(Arrays.copyOfRange(pcm, 700 * FRAME_SIZE, 2700 * FRAME_SIZE), range.toByteArray());
+    }
+
+    @Test
+    public void writesAdpcmWavStraightFromTheRing() throws Exception {
+        ImaAdpcm adpcm = ImaAdpcm.forChannels(2);
+        CyclicAudioBuffer buffer = new CyclicAudioBuffer(1, 8000, 4, adpcm);
+        byte[] bytes = new byte[1000 * 4];
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) (i * 31 + j);
+            }
+            buffer.addBuffer(bytes, bytes.length);
+        }
+        CyclicAudioBuffer.State state = buffer.cloneState();
+        File file = File.createTempFile("snapshot", ".wav");
+        file.deleteOnExit();
+
+        long written = state.writeToWav(file.getPath(), 2);
+
+        int blocks = (int) (state.frameCount() / adpcm.framesPerBlock());
+        assertEquals(60 + blocks * adpcm.blockAlign(), written);
+        ByteBuffer wav = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(written, wav.capacity());
+        assertEquals(written - 8, wav.getInt(4));
+        assertEquals(ImaAdpcm.FORMAT_TAG, wav.getShort(20));
+        assertEquals(2, wav.getShort(22));
+        assertEquals(8000, wav.getInt(24));
+        assertEquals(adpcm.blockAlign(), wav.getShort(32));
+        assertEquals(4, wav.getShort(34));
+        assertEquals(adpcm.framesPerBlock(), wav.getShort(38));
+        assertEquals(state.frameCount(), wav.getInt(48));
+        assertEquals(blocks * adpcm.blockAlign(), wav.getInt(56));
+
+        // the blocks decode to what the snapshot decodes to
+        byte[] pcm = new byte[blocks * adpcm.framesPerBlock() * 4];
+        for (int i = 0; i < blocks; i++) {
+            adpcm.decode(wav.array(), 60 + i * adpcm.blockAlign(), pcm, i * adpcm.framesPerBlock() * 4);
+        }
+        assertArrayEquals(pcmOf(state), pcm);
+    }
+
+    private static byte[] sine(int frames) {
+        ByteBuffer pcm = ByteBuffer.allocate(frames * FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            pcm.putShort((short) (10000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE)));
+        }
+        return pcm.array();
+    }
+
+    private static byte[] pcmOf(CyclicAudioBuffer.State state) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        state.writeTo(stream);
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,291 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class CyclicVideoBufferTest {
+
+    private static final int FRAME_SIZE = 20 * 1024;
+
+    @Test
+    public void steadyStateIngestAllocatesNothing() {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(2, 4L * 1024 * 1024, 256 * 1024, 128);
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        buffer.add(frame(frame, 0), SampleFlags.CODEC_CONFIG, 0L);
+        for (int i = 0; i < 20_000; i++) {
+            frame.clear();
+            buffer.add(frame, flagsOf(i), i * 33_333L);
+        }
+
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 30_000; i++) {
+            frame.clear();
+            buffer.add(frame, flagsOf(i), i * 33_333L);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        // a single object per frame would already take more than 30_000 * 16 bytes
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    @Test
+    public void writesCodecConfigFirstAndSamplesInOrder() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(60, 4L * 1024 * 1024, 256 * 1024, 128);
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        buffer.add(frame(frame, 99), SampleFlags.CODEC_CONFIG, 0L);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(frame(frame, i), flagsOf(i), i * 33_333L);
+        }
+
+        List<byte[]> samples = new ArrayList<>();
+        List<Integer> sampleFlags = new ArrayList<>();
+        buffer.cloneState().writeTo((data, offset, size, flags, presentationTimeUs) -> {
+            byte[] bytes = new byte[size];
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            view.get(bytes);
+            samples.add(bytes);
+            sampleFlags.add(flags);
+        });
+
+        assertEquals(11, samples.size());
+        assertEquals(SampleFlags.CODEC_CONFIG, (int) sampleFlags.get(0));
+        assertArrayEquals(bytesOf(99), samples.get(0));
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(bytesOf(i), samples.get(i + 1));
+        }
+    }
+
+    @Test
+    public void evictsWholeGroupsOfPicturesWhenArenaIsFull() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(60, 128L * 1024, 64 * 1024, 128);
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        for (int i = 0; i < 100; i++) {
+            buffer.add(frame(frame, i), i % 3 == 0 ? SampleFlags.KEY_FRAME : 0, i * 33_333L);
+        }
+
+        List<Long> times = new ArrayList<>();
+        List<Integer> sampleFlags = new ArrayList<>();
+        buffer.cloneState().writeTo((data, offset, size, flags, presentationTimeUs) -> {
+            times.add(presentationTimeUs);
+            sampleFlags.add(flags);
+        });
+
+        // three frames fit into a 64 KiB slab and the arena holds two slabs
+        assertTrue(times.size() <= 6);
+        assertEquals(SampleFlags.KEY_FRAME, (int) sampleFlags.get(0));
+        assertEquals(0L, (long) times.get(0));
+        for (int i = 1; i < times.size(); i++) {
+            assertEquals(33_333L, times.get(i) - times.get(i - 1));
+        }
+    }
+
+    @Test
+    public void waitsForSyncFrameWhenGroupDoesNotFit() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(60, 128L * 1024, 64 * 1024, 128);
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_SIZE);
+        for (int i = 0; i < 34; i++) {
+            buffer.add(frame(frame, i), flagsOf(i), i * 33_333L);
+        }
+
+        List<Long> times = new ArrayList<>();
+        buffer.cloneState().writeTo(
+            (data, offset, size, flags, presentationTimeUs) -> times.add(presentationTimeUs)
+        );
+
+        // frames after the evicted group are useless until the sync frame 30 arrives
+        assertEquals(4, times.size());
+        assertTrue(buffer.droppedSamples() > 0);
+    }
+
+    @Test
+    public void keepsWindowByPresentationTimeAndRebasesToZero() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(2, 4L * 1024 * 1024, 256 * 1024, 512);
+        ByteBuffer frame = ByteBuffer.allocateDirect(1024);
+        long baseTimeUs = 123_456_789L;
+        for (int i = 0; i < 300; i++) {
+            frame.clear();
+            buffer.add(frame, flagsOf(i), baseTimeUs + i * 33_333L);
+        }
+
+        CyclicVideoBuffer.State state = buffer.cloneState();
+        List<Long> times = new ArrayList<>();
+        state.writeTo((data, offset, size, flags, presentationTimeUs) -> times.add(presentationTimeUs));
+
+        // frames 240..299 span a bit less than two seconds, so the group from 210 is kept too
+        assertEquals(baseTimeUs + 210 * 33_333L, state.startTimeUs());
+        assertEquals(90, state.sampleCount());
+        assertEquals(90 * 1024L, state.byteCount());
+        assertEquals(0L, (long) times.get(0));
+        assertEquals(89 * 33_333L, (long) times.get(times.size() - 1));
+    }
+
+    @Test
+    public void clipsToSpanStartingOnSyncFrame() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(60, 4L * 1024 * 1024, 256 * 1024, 512);
+        ByteBuffer frame = ByteBuffer.allocateDirect(1024);
+        long baseTimeUs = 5_000_000L;
+        for (int i = 0; i < 300; i++) {
+            frame.clear();
+            buffer.add(frame, flagsOf(i), baseTimeUs + i * 33_333L);
+        }
+
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            // frames 100..159, the clip starts on the sync frame 90 before them
+            state.clip(baseTimeUs + 100 * 33_333L, baseTimeUs + 159 * 33_333L + 1);
+            assertEquals(baseTimeUs + 90 * 33_333L, state.startTimeUs());
+            assertEquals(baseTimeUs + 159 * 33_333L, state.endTimeUs());
+            assertEquals(70, state.sampleCount());
+
+            List<Integer> sampleFlags = new ArrayList<>();
+            state.writeTo((data, offset, size, flags, presentationTimeUs) -> sampleFlags.add(flags));
+            assertEquals(SampleFlags.KEY_FRAME, (int) sampleFlags.get(0));
+        }
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            // a span past either end of the window keeps what there is of it
+            state.clip(0L, baseTimeUs + 10 * 33_333L);
+            assertEquals(baseTimeUs, state.startTimeUs());
+            assertEquals(11, state.sampleCount());
+            // a start past the end still keeps the group of the last frame
+            state.clip(Long.MAX_VALUE, Long.MAX_VALUE);
+            assertEquals(11, state.sampleCount());
+        }
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            state.clip(0L, baseTimeUs - 1);
+            assertEquals(0, state.sampleCount());
+        }
+    }
+
+    @Test
+    public void keepsLongGroupsWholeAndStartsOnRequestedSyncFrame() throws Exception {
+        // sized like a two second window with a sync frame every ten seconds
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(2, 4L * 1024 * 1024, 256 * 1024, (2 + 10) * 30 * 2);
+        ByteBuffer frame = ByteBuffer.allocateDirect(1024);
+        for (int i = 0; i < 420; i++) {
+            frame.clear();
+            // frame 350 is a sync frame requested at a flush
+            int flags = i % 300 == 0 || i == 350 ? SampleFlags.KEY_FRAME : 0;
+            buffer.add(frame, flags, i * 33_333L);
+            if (i == 349) {
+                try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+                    // the whole group from 300 is kept, the one before it goes only once 300 is two seconds old
+                    assertEquals(0L, state.startTimeUs());
+                    assertEquals(350, state.sampleCount());
+                }
+            }
+        }
+
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            assertEquals(350 * 33_333L, state.startTimeUs());
+            assertEquals(70, state.sampleCount());
+        }
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            state.clip(400 * 33_333L, Long.MAX_VALUE);
+            assertEquals(350 * 33_333L, state.startTimeUs());
+        }
+        assertEquals(0L, buffer.droppedSamples());
+    }
+
+    @Test
+    public void takesMemoryOnlyForBytesOfIdleWindow() throws Exception {
+        // ten minutes at 256 KB a second
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(600, 150L * 1024 * 1024, 1024 * 1024, 601 * 30 * 2);
+        ByteBuffer frame = ByteBuffer.allocateDirect(1024);
+        // a frame repeated once a second and a sync frame every ten
+        for (int i = 0; i < 600; i++) {
+            frame.clear();
+            buffer.add(frame, i % 10 == 0 ? SampleFlags.KEY_FRAME : 0, i * 1_000_000L);
+        }
+
+        try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+            assertEquals(599_000_000L, state.endTimeUs() - state.startTimeUs());
+            assertEquals(600, state.sampleCount());
+        }
+        // 600 KB stored, one slab of the 150 taken
+        assertEquals(1024 * 1024L, buffer.allocatedBytes());
+    }
+
+        @Test
+    public void dropsSamplesLargerThanSlab() {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(60, 32L * 1024, 16 * 1024, 16);
+        buffer.add(ByteBuffer.allocateDirect(FRAME_SIZE), SampleFlags.KEY_FRAME, 0L);
+
+        assertEquals(1L, buffer.droppedSamples());
+        assertEquals(0, buffer.cloneState().sampleCount());
+    }
+
+    @Test
+    public void snapshotsStayConsistentWhileCaptureRuns() throws Exception {
+        CyclicVideoBuffer buffer = new CyclicVideoBuffer(1, 512L * 1024, 64 * 1024, 256);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            ByteBuffer frame = ByteBuffer.allocateDirect(8 * 1024);
+            for (int i = 0; running.get(); i++) {
+                frame.clear();
+                frame.limit(1024 + (i % 7) * 1024);
+                frame.putLong(0, i).putLong(frame.limit() - 8, i);
+                buffer.add(frame, i % 15 == 0 ? SampleFlags.KEY_FRAME : 0, i * 33_333L);
+            }
+        });
+        producer.start();
+
+        int verified = 0;
+        long deadline = System.currentTimeMillis() + 2000L;
+        while (System.currentTimeMillis() < deadline) {
+            try (CyclicVideoBuffer.State state = buffer.cloneState()) {
+                long[] previous = { -1L };
+                state.writeTo((data, offset, size, flags, presentationTimeUs) -> {
+                    long head = data.getLong(offset);
+                    long tail = data.getLong(offset + size - 8);
+                    assertEquals("Torn sample", head, tail);
+                    assertEquals(1024 + (head % 7) * 1024, size);
+                    if (previous[0] < 0 || head != previous[0] + 1) {
+                        // a snapshot and every gap in it start on a sync frame
+                        assertEquals(SampleFlags.KEY_FRAME, flags);
+                    }
+                    assertTrue(head > previous[0]);
+                    previous[0] = head;
+                });
+                if (previous[0] >= 0) {
+                    verified++;
+                }
+            }
+        }
+        running.set(false);
+        producer.join();
+
+        assertTrue(verified > 10);
+    }
+
+    private static int flagsOf(int index) {
+        return index % 30 == 0 ? SampleFlags.KEY_FRAME : 0;
+    }
+
+    private static ByteBuffer frame(ByteBuffer frame, int index) {
+        frame.clear();
+        while (frame.hasRemaining()) {
+            frame.put((byte) index);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] bytesOf(int index) {
+        byte[] bytes = new byte[FRAME_SIZE];
+        Arrays.fill(bytes, (byte) index);
+        return bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EncoderCostModelTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 2400;
+
+    @Test
+    public void prefersHardwareThenBetterCompression() {
+        double hardwareAv1 = cost(EncoderCostModel.AV1, true);
+        double hardwareHevc = cost(EncoderCostModel.HEVC, true);
+        double hardwareAvc = cost(EncoderCostModel.AVC, true);
+        double softwareAvc = cost(EncoderCostModel.AVC, false);
+        double softwareHevc = cost(EncoderCostModel.HEVC, false);
+        double softwareAv1 = cost(EncoderCostModel.AV1, false);
+
+        assertTrue(hardwareAv1 < hardwareHevc);
+        assertTrue(hardwareHevc < hardwareAvc);
+        assertTrue(hardwareAvc < softwareAvc);
+        // software encoders of newer codecs save bytes at too much CPU time
+        assertTrue(softwareAvc < softwareHevc);
+        assertTrue(softwareHevc < softwareAv1);
+    }
+
+    @Test
+    public void chargesForScalingCaptureDown() {
+        double fullSize = cost(EncoderCostModel.AVC, false);
+        double halfSize = EncoderCostModel.cost(
+            EncoderCostModel.AVC, false, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2
+        );
+        double hardwareHalfSize = EncoderCostModel.cost(
+            EncoderCostModel.HEVC, true, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2
+        );
+
+        assertTrue(fullSize < halfSize);
+        assertTrue(fullSize < hardwareHalfSize);
+    }
+
+    @Test
+    public void scalesBitRateByCompression() {
+        assertEquals(6000000, EncoderCostModel.bitRate(EncoderCostModel.AVC, 6000000));
+        assertEquals(3600000, EncoderCostModel.bitRate(EncoderCostModel.HEVC, 6000000));
+        assertEquals(3000000, EncoderCostModel.bitRate(EncoderCostModel.AV1, 6000000));
+    }
+
+    private static double cost(String mimeType, boolean hardware) {
+        return EncoderCostModel.cost(mimeType, hardware, WIDTH, HEIGHT, WIDTH, HEIGHT);
+    }
+}
@@ -0,0 +1,72 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SceneChangeDetectorTest {
+
+    private static final int BIT_RATE = 6000000;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_DURATION_US = 1_000_000L / FRAME_RATE;
+    /** Smallest frame that may count as a scene change. */
+    private static final int AVERAGE_FRAME_SIZE = BIT_RATE / 8 / FRAME_RATE;
+
+    @Test
+    public void requestsSyncFrameOnLargePredictedFrame() {
+        SceneChangeDetector detector = new SceneChangeDetector(BIT_RATE, FRAME_RATE);
+        assertFalse(detector.onFrame(100000, true, 0L));
+        for (int i = 1; i < 60; i++) {
+            assertFalse(detector.onFrame(2000, false, i * FRAME_DURATION_US));
+        }
+        assertTrue(detector.onFrame(120000, false, 60 * FRAME_DURATION_US));
+        // the frames that follow a change are large as well, asked once is enough
+        assertFalse(detector.onFrame(120000, false, 61 * FRAME_DURATION_US));
+        assertFalse(detector.onFrame(2000, false, 62 * FRAME_DURATION_US));
+    }
+
+    @Test
+    public void ignoresSmallFramesAndFramesCloseToSyncFrame() {
+        SceneChangeDetector detector = new SceneChangeDetector(BIT_RATE, FRAME_RATE);
+        assertFalse(detector.onFrame(100000, true, 0L));
+        assertFalse(detector.onFrame(100, false, FRAME_DURATION_US));
+        // cursor blinking on a static screen: many times the average, still a small frame
+        assertFalse(detector.onFrame(AVERAGE_FRAME_SIZE - 1, false, 40 * FRAME_DURATION_US));
+        // a large frame right after a sync frame starts a new group anyway
+        assertFalse(detector.onFrame(100000, true, 45 * FRAME_DURATION_US));
+        assertFalse(detector.onFrame(120000, false, 46 * FRAME_DURATION_US));
+    }
+
+    @Test
+    public void asksAgainWhenEncoderIgnoresRequest() {
+        SceneChangeDetector detector = new SceneChangeDetector(BIT_RATE, FRAME_RATE);
+        int requests = 0;
+        assertFalse(detector.onFrame(100000, true, 0L));
+        for (int i = 1; i < 5 * FRAME_RATE; i++) {
+            boolean changed = i % 40 == 0;
+            if (detector.onFrame(changed ? 150000 : 1000, false, i * FRAME_DURATION_US)) {
+                requests++;
+            }
+        }
+        assertEquals(3, requests);
+    }
+
+    @Test
+    public void keepsGroupsWithinIntervalWhenFramesAreSparse() {
+        SceneChangeDetector detector = new SceneChangeDetector(BIT_RATE, FRAME_RATE, 10_000_000L);
+        assertFalse(detector.onFrame(100000, true, 0L));
+        // an idle screen, the previous frame repeated once a second
+        int requestedAt = -1;
+        for (int second = 1; second <= 12 && requestedAt < 0; second++) {
+            if (detector.onFrame(300, false, second * 1_000_000L)) {
+                requestedAt = second;
+            }
+        }
+        assertEquals(10, requestedAt);
+        assertFalse(detector.onFrame(300, false, 10_500_000L));
+        assertFalse(detector.onFrame(100000, true, 11_000_000L));
+        assertTrue(detector.onFrame(300, false, 21_000_000L));
+    }
+}
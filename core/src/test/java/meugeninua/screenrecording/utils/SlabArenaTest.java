@@ -0,0 +1,61 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SlabArenaTest {
+
+    private static final int SLAB_SIZE = 1024;
+    private static final int SLAB_COUNT = 4;
+
+    @Test
+    public void firstFillTakesSlabsAllocatedAhead() {
+        SlabArena arena = new SlabArena((long) SLAB_COUNT * SLAB_SIZE, SLAB_SIZE);
+        List<Runnable> allocations = new ArrayList<>();
+        arena.setAllocator(allocations::add);
+        ByteBuffer sample = ByteBuffer.allocate(SLAB_SIZE / 2);
+
+        for (int i = 0; i < SLAB_COUNT; i++) {
+            assertEquals(1, allocations.size());
+            allocations.remove(0).run();
+            ByteBuffer prepared = arena.nextSlab.get();
+            assertNotNull(prepared);
+
+            long position = (long) i * SLAB_SIZE;
+            arena.write(position, sample.duplicate());
+            arena.write(position + SLAB_SIZE / 2, sample.duplicate());
+            assertSame(prepared, arena.slab(position));
+            assertNull(arena.nextSlab.get());
+            assertEquals((i + 1L) * SLAB_SIZE, arena.allocatedBytes());
+        }
+        // all taken, nothing more is allocated ahead
+        assertEquals(0, allocations.size());
+    }
+
+    @Test
+    public void firstFillAllocatesItselfWhenAllocatorFallsBehind() {
+        SlabArena arena = new SlabArena((long) SLAB_COUNT * SLAB_SIZE, SLAB_SIZE);
+        List<Runnable> allocations = new ArrayList<>();
+        arena.setAllocator(allocations::add);
+
+        for (int i = 0; i < SLAB_COUNT; i++) {
+            arena.write((long) i * SLAB_SIZE, ByteBuffer.allocate(SLAB_SIZE));
+            assertNotNull(arena.slab((long) i * SLAB_SIZE));
+        }
+        assertEquals(SLAB_COUNT * SLAB_SIZE, arena.allocatedBytes());
+        // late allocations find every slab taken and allocate nothing
+        for (Runnable allocation : allocations) {
+            allocation.run();
+        }
+        assertNull(arena.nextSlab.get());
+        assertEquals(SLAB_COUNT * SLAB_SIZE, arena.allocatedBytes());
+    }
+}
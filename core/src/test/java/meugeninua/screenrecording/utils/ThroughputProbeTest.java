@@ -0,0 +1,80 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ThroughputProbeTest {
+
+    private static final int FRAME_RATE = 30;
+
+    @Test
+    public void stopsAtFirstCandidateThatKeepsUp() {
+        Map<String, ThroughputProbe.Result> results = new HashMap<>();
+        results.put("hardware", null);
+        results.put("software", new ThroughputProbe.Result(21.0, 60_000L, 5_000_000));
+        results.put("software half size", new ThroughputProbe.Result(62.0, 20_000L, 4_000_000));
+        results.put("never run", new ThroughputProbe.Result(120.0, 5_000L, 4_000_000));
+        List<String> runs = new ArrayList<>();
+
+        String selected = ThroughputProbe.select(
+            Arrays.asList("hardware", "software", "software half size", "never run"),
+            candidate -> {
+                runs.add(candidate);
+                return results.get(candidate);
+            },
+            FRAME_RATE, 4
+        );
+
+        assertEquals("software half size", selected);
+        assertEquals(Arrays.asList("hardware", "software", "software half size"), runs);
+    }
+
+    @Test
+    public void fallsBackToFastestWithinRunLimit() {
+        Map<String, ThroughputProbe.Result> results = new HashMap<>();
+        results.put("a", new ThroughputProbe.Result(12.0, 90_000L, 5_000_000));
+        results.put("b", new ThroughputProbe.Result(25.0, 45_000L, 5_000_000));
+        results.put("c", new ThroughputProbe.Result(60.0, 15_000L, 5_000_000));
+
+        assertEquals("b", ThroughputProbe.select(
+            Arrays.asList("a", "b", "c"), results::get, FRAME_RATE, 2
+        ));
+        assertEquals("a", ThroughputProbe.select(
+            Arrays.asList("a", "b"), candidate -> null, FRAME_RATE, 2
+        ));
+    }
+
+    @Test
+    public void rejectsEncoderThatHoldsFramesTooLong() {
+        assertTrue(new ThroughputProbe.Result(60.0, 100_000L, 0).sustains(FRAME_RATE));
+        assertFalse(new ThroughputProbe.Result(60.0, 400_000L, 0).sustains(FRAME_RATE));
+        assertFalse(new ThroughputProbe.Result(28.0, 10_000L, 0).sustains(FRAME_RATE));
+    }
+
+    @Test
+    public void measuresThroughputLatencyAndBitRate() {
+        ThroughputProbe.Meter meter = new ThroughputProbe.Meter();
+        assertNull(meter.result(1_000_000L));
+
+        // frames queued every 10 ms come out 50 ms later, 10 kB each
+        for (int i = 0; i < 50; i++) {
+            long queuedUs = i * 10_000L;
+            meter.onOutput(10_000, queuedUs, queuedUs + 50_000L);
+        }
+        ThroughputProbe.Result result = meter.result(500_000L);
+
+        assertEquals(100.0, result.framesPerSecond, 0.01);
+        assertEquals(50_000L, result.latencyUs);
+        assertEquals(8_000_000, result.bitRate);
+    }
+}
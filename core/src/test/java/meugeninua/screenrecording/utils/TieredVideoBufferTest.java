@@ -0,0 +1,277 @@
+package meugeninua.screenrecording.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import meugeninua.screenrecording.utils.mp4.FragmentedMp4Writer;
+
+public class TieredVideoBufferTest {
+
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_DURATION_US = 1_000_000L / FRAME_RATE;
+
+    private File segmentFile;
+    private TieredVideoBuffer buffer;
+
+    @Before
+    public void setUp() throws IOException {
+        segmentFile = File.createTempFile("replay", ".segments");
+        // one second in memory, two more on disk, a sync frame every half second
+        buffer = new TieredVideoBuffer(
+            3, 1, FRAME_RATE, 1,
+            new CyclicVideoBuffer(1, 64L * 1024, 4096, 128),
+            segmentFile, 256 * 1024, 16 * 1024
+        );
+        byte[] config = { 0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, 0, 0, 0, 1, 0x68, (byte) 0xEB };
+        buffer.add(ByteBuffer.wrap(config), SampleFlags.CODEC_CONFIG, 0L);
+        for (int i = 0; i < 6 * FRAME_RATE; i++) {
+            buffer.add(ByteBuffer.wrap(annexB(i % 15 == 0 ? 0x65 : 0x41, i)), flagsOf(i), i * FRAME_DURATION_US);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        buffer.close();
+        assertFalse(segmentFile.exists());
+    }
+
+    @Test
+    public void keepsWholeWindowAcrossTiersInOrder() throws Exception {
+        List<Integer> indexes = new ArrayList<>();
+        List<Long> presentationTimes = new ArrayList<>();
+        int[] diskSamples = new int[1];
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            state.writeTo((data, offset, size, flags, presentationTimeUs) -> {
+                if ((flags & SampleFlags.CODEC_CONFIG) != 0) return;
+                if ((flags & SampleFlags.LENGTH_PREFIXED) != 0) {
+                    // a single NAL unit, its length replaces the 4-byte start code
+                    assertEquals(size - 4, data.getInt(offset));
+                    diskSamples[0]++;
+                } else {
+                    assertEquals(1, data.getInt(offset));
+                }
+                indexes.add(data.getShort(offset + 5) & 0xFFFF);
+                presentationTimes.add(presentationTimeUs);
+            });
+        }
+
+        assertTrue("kept " + indexes.size() + " samples", indexes.size() >= 3 * FRAME_RATE);
+        assertTrue(diskSamples[0] >= 2 * FRAME_RATE);
+        assertEquals(0, indexes.get(0) % 15);
+        for (int i = 0; i < indexes.size(); i++) {
+            assertEquals(indexes.get(0) + i, (int) indexes.get(i));
+            assertEquals(i * FRAME_DURATION_US, (long) presentationTimes.get(i) - presentationTimes.get(0));
+        }
+        assertEquals(0L, (long) presentationTimes.get(0));
+        assertEquals(6 * FRAME_RATE - 1, (int) indexes.get(indexes.size() - 1));
+    }
+
+    @Test
+    public void spillsAv1SamplesWithoutTemporalDelimiters() throws Exception {
+        File av1File = File.createTempFile("replay", ".segments");
+        List<Integer> indexes = new ArrayList<>();
+        int[] diskSamples = new int[1];
+        try (TieredVideoBuffer av1 = new TieredVideoBuffer(
+            3, 1, FRAME_RATE, 1,
+            new CyclicVideoBuffer(1, 64L * 1024, 4096, 128),
+            av1File, 256 * 1024, 16 * 1024
+        )) {
+            for (int i = 0; i < 6 * FRAME_RATE; i++) {
+                // a temporal delimiter and a frame OBU holding the index
+                byte[] sample = { 0x12, 0, 0x32, 2, (byte) (i >> 8), (byte) i };
+                av1.add(ByteBuffer.wrap(sample), flagsOf(i), i * FRAME_DURATION_US);
+            }
+            try (TieredVideoBuffer.State state = av1.cloneState()) {
+                state.writeTo((data, offset, size, flags, presentationTimeUs) -> {
+                    assertEquals(0, flags & SampleFlags.LENGTH_PREFIXED);
+                    if (size == 4) {
+                        assertEquals(0x32, data.get(offset));
+                        diskSamples[0]++;
+                    } else {
+                        assertEquals(0x12, data.get(offset));
+                    }
+                    indexes.add(data.getShort(offset + size - 2) & 0xFFFF);
+                });
+            }
+        }
+        assertFalse(av1File.exists());
+
+        assertTrue(diskSamples[0] >= 2 * FRAME_RATE);
+        for (int i = 1; i < indexes.size(); i++) {
+            assertEquals(indexes.get(0) + i, (int) indexes.get(i));
+        }
+    }
+
+    @Test
+    public void keepsSegmentFileForSnapshotsOutlivingBuffer() throws Exception {
+        int[] regions = new int[1];
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            buffer.close();
+            assertTrue(segmentFile.exists());
+
+            state.writeTo(new CyclicVideoBuffer.FileRegionSink() {
+                @Override
+                public void writeSample(
+                    FileChannel file, long filePosition, int size, int flags, long presentationTimeUs
+                ) throws IOException {
+                    ByteBuffer sample = ByteBuffer.allocate(size);
+                    file.read(sample, filePosition);
+                    assertEquals(size - 4, sample.getInt(0));
+                    regions[0]++;
+                }
+
+                @Override
+                public void writeSample(
+                    ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs
+                ) {
+                }
+            });
+        }
+
+        assertTrue(regions[0] >= 2 * FRAME_RATE);
+        assertFalse(segmentFile.exists());
+    }
+
+    @Test
+    public void handsDiskSamplesOverAsFileRegions() throws Exception {
+        int[] regions = new int[1];
+        int[] buffers = new int[1];
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            state.writeTo(new CyclicVideoBuffer.FileRegionSink() {
+                @Override
+                public void writeSample(
+                    FileChannel file, long filePosition, int size, int flags, long presentationTimeUs
+                ) throws IOException {
+                    ByteBuffer sample = ByteBuffer.allocate(size);
+                    file.read(sample, filePosition);
+                    assertEquals(size - 4, sample.getInt(0));
+                    regions[0]++;
+                }
+
+                @Override
+                public void writeSample(
+                    ByteBuffer buffer, int offset, int size, int flags, long presentationTimeUs
+                ) {
+                    buffers[0]++;
+                }
+            });
+            assertEquals(state.sampleCount() + 1, regions[0] + buffers[0]);
+        }
+        assertTrue(regions[0] >= 2 * FRAME_RATE);
+    }
+
+    @Test
+    public void publishesWindowOfBothTiersWithoutSnapshot() {
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            assertEquals(state.sampleCount(), buffer.windowSampleCount());
+            assertEquals(state.byteCount(), buffer.windowByteCount());
+            assertEquals(state.endTimeUs() - state.startTimeUs(), buffer.windowDurationUs());
+        }
+        assertTrue(buffer.windowDurationUs() >= 3 * FRAME_RATE * FRAME_DURATION_US);
+    }
+
+    @Test
+    public void clipsSpansOfEitherTierAndAcrossThem() throws Exception {
+        List<Integer> indexes = new ArrayList<>();
+        CyclicVideoBuffer.SampleSink sink = (data, offset, size, flags, presentationTimeUs) -> {
+            if ((flags & SampleFlags.CODEC_CONFIG) == 0) indexes.add(data.getShort(offset + 5) & 0xFFFF);
+        };
+        // disk holds frames up to about 150, memory the last second from there
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            state.clip(100 * FRAME_DURATION_US, 110 * FRAME_DURATION_US);
+            state.writeTo(sink);
+        }
+        assertEquals(range(90, 110), indexes);
+
+        indexes.clear();
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            state.clip(140 * FRAME_DURATION_US, 170 * FRAME_DURATION_US);
+            state.writeTo(sink);
+        }
+        assertEquals(range(135, 170), indexes);
+
+        indexes.clear();
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            state.clip(175 * FRAME_DURATION_US, Long.MAX_VALUE);
+            state.writeTo(sink);
+        }
+        assertEquals(range(165, 6 * FRAME_RATE - 1), indexes);
+    }
+
+    @Test
+    public void writesBothTiersIntoOneFragmentedMp4() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int sampleCount;
+        try (TieredVideoBuffer.State state = buffer.cloneState()) {
+            sampleCount = state.sampleCount();
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(output), 64, 64);
+            state.writeTo(writer);
+            writer.finish();
+        }
+
+        // every frame is there once, length-prefixed, in order
+        byte[] file = output.toByteArray();
+        int first = 6 * FRAME_RATE - sampleCount;
+        int position = 0;
+        for (int i = first; i < 6 * FRAME_RATE; i++) {
+            byte[] sample = avcc(i % 15 == 0 ? 0x65 : 0x41, i);
+            position = indexOf(file, sample, position);
+            assertTrue("frame " + i + " is missing", position >= 0);
+        }
+    }
+
+    private static List<Integer> range(int first, int last) {
+        List<Integer> range = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    private static int flagsOf(int index) {
+        return index % 15 == 0 ? SampleFlags.KEY_FRAME : 0;
+    }
+
+    private static byte[] annexB(int nalHeader, int index) {
+        byte[] sample = new byte[200];
+        sample[3] = 1;
+        sample[4] = (byte) nalHeader;
+        sample[5] = (byte) (index >> 8);
+        sample[6] = (byte) index;
+        for (int i = 7; i < sample.length; i++) {
+            sample[i] = (byte) (0x80 | i);
+        }
+        return sample;
+    }
+
+    private static byte[] avcc(int nalHeader, int index) {
+        byte[] sample = annexB(nalHeader, index);
+        ByteBuffer.wrap(sample).putInt(0, sample.length - 4);
+        return sample;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i + pattern.length;
+        }
+        return -1;
+    }
+}
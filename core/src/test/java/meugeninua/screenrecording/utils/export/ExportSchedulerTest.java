@@ -0,0 +1,258 @@
+package meugeninua.screenrecording.utils.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ExportSchedulerTest {
+
+    private ExportScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) scheduler.shutdown();
+    }
+
+    @Test
+    public void startsQueuedJobsByPriorityThenInOrder() throws Exception {
+        scheduler = new ExportScheduler("export", 1, 8);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Recorder first = new Recorder();
+        scheduler.submit("blocker", 0, progress -> await(blocked), first);
+
+        Recorder last = new Recorder();
+        scheduler.submit("video-1", 0, progress -> order.add("video-1"), null);
+        scheduler.submit("video-2", 0, progress -> order.add("video-2"), last);
+        scheduler.submit("audio", 1, progress -> order.add("audio"), null);
+        blocked.countDown();
+
+        last.await();
+        assertEquals(Arrays.asList("audio", "video-1", "video-2"), order);
+        assertNull(first.failure.get());
+    }
+
+    @Test
+    public void joinsPendingJobWithTheSameKey() throws Exception {
+        scheduler = new ExportScheduler("export", 1, 8);
+        CountDownLatch blocked = new CountDownLatch(1);
+        int[] runs = new int[1];
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        ExportScheduler.Handle handle = scheduler.submit("clip.mp4", 0, progress -> {
+            runs[0]++;
+            await(blocked);
+        }, first);
+        assertSame(handle, scheduler.submit("clip.mp4", 5, progress -> runs[0]++, second));
+        assertEquals(1, scheduler.pendingJobs());
+        blocked.countDown();
+
+        first.await();
+        second.await();
+        assertEquals(1, runs[0]);
+        assertTrue(handle.isDone());
+        assertEquals(0, scheduler.pendingJobs());
+    }
+
+    @Test
+    public void refusesJobsBeyondTheBacklog() throws Exception {
+        scheduler = new ExportScheduler("export", 1, 2);
+        CountDownLatch blocked = new CountDownLatch(1);
+        Recorder recorder = new Recorder();
+        scheduler.submit("a", 0, progress -> await(blocked), null);
+        scheduler.submit("b", 0, progress -> { }, recorder);
+        assertNull(scheduler.submit("c", 10, progress -> { }, null));
+        blocked.countDown();
+
+        recorder.await();
+        assertNotNull(scheduler.submit("c", 0, progress -> { }, null));
+    }
+
+    @Test
+    public void cancelsQueuedAndRunningJobs() throws Exception {
+        scheduler = new ExportScheduler("export", 1, 8);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Recorder running = new Recorder();
+        ExportScheduler.Handle runningHandle = scheduler.submit("running", 0, progress -> {
+            started.countDown();
+            await(cancelled);
+            progress.update(1L, 2L);
+            progress.update(2L, 2L);
+        }, running);
+        int[] runs = new int[1];
+        Recorder queued = new Recorder();
+        ExportScheduler.Handle queuedHandle = scheduler.submit("queued", 0, progress -> runs[0]++, queued);
+
+        await(started);
+        queuedHandle.cancel();
+        // a queued job finishes as soon as it is cancelled
+        assertTrue(queuedHandle.isDone());
+        assertTrue(queued.failure.get() instanceof CancellationException);
+        runningHandle.cancel();
+        cancelled.countDown();
+
+        running.await();
+        assertTrue(running.failure.get() instanceof CancellationException);
+        assertEquals(0, running.progressUpdates);
+        assertEquals(0, runs[0]);
+    }
+
+    @Test
+    public void transfersInChunksWithProgress() throws Exception {
+        scheduler = new ExportScheduler("export", 2, 8);
+        byte[] content = new byte[(int) (2.5 * ExportScheduler.TRANSFER_CHUNK_SIZE)];
+        new Random(7).nextBytes(content);
+        File file = File.createTempFile("export", ".mp4");
+        try {
+            Files.write(file.toPath(), content);
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            Recorder recorder = new Recorder();
+            scheduler.submit(file.getPath(), 0, progress -> {
+                try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    ExportScheduler.transfer(source, Channels.newChannel(target), progress);
+                }
+            }, recorder);
+
+            recorder.await();
+            assertNull(recorder.failure.get());
+            assertArrayEquals(content, target.toByteArray());
+            // 0, 1, 2 and 2.5 MB
+            assertEquals(4, recorder.progressUpdates);
+            assertEquals(content.length, recorder.lastBytesCopied);
+            assertEquals(content.length, recorder.lastTotalBytes);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void copiesThroughMemoryWhatTransferDoesNotTake() throws Exception {
+        byte[] content = new byte[(int) (1.5 * ExportScheduler.TRANSFER_CHUNK_SIZE)];
+        new Random(11).nextBytes(content);
+        File file = File.createTempFile("export", ".mp4");
+        try {
+            Files.write(file.toPath(), content);
+            ByteArrayOutputStream target = new ByteArrayOutputStream();
+            WritableByteChannel channel = Channels.newChannel(target);
+            List<Long> updates = new ArrayList<>();
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                // takes nothing from the direct buffers a transfer to an arbitrary channel goes through
+                ExportScheduler.transfer(source, new ForwardingChannel(channel) {
+                    @Override
+                    public int write(ByteBuffer src) throws IOException {
+                        return src.isDirect() ? 0 : super.write(src);
+                    }
+                }, (bytesCopied, totalBytes) -> updates.add(bytesCopied));
+            }
+            assertArrayEquals(content, target.toByteArray());
+            assertEquals(Arrays.asList(0L, ExportScheduler.TRANSFER_CHUNK_SIZE, (long) content.length), updates);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void failsTransferIntoChannelTakingNothing() throws Exception {
+        File file = File.createTempFile("export", ".mp4");
+        try {
+            Files.write(file.toPath(), new byte[1024]);
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ExportScheduler.transfer(source, new ForwardingChannel(null) {
+                    @Override
+                    public int write(ByteBuffer src) {
+                        return 0;
+                    }
+                }, (bytesCopied, totalBytes) -> { });
+                fail("Transferred into a channel taking nothing");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Target took no bytes"));
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class Recorder implements ExportScheduler.Listener {
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        volatile int progressUpdates;
+        volatile long lastBytesCopied;
+        volatile long lastTotalBytes;
+
+        @Override
+        public void onProgress(long bytesCopied, long totalBytes) {
+            progressUpdates++;
+            lastBytesCopied = bytesCopied;
+            lastTotalBytes = totalBytes;
+        }
+
+        @Override
+        public void onFinished(Exception failure) {
+            this.failure.set(failure);
+            finished.countDown();
+        }
+
+        void await() {
+            ExportSchedulerTest.await(finished);
+        }
+    }
+
+    private static class ForwardingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel channel;
+
+        ForwardingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package meugeninua.screenrecording.utils.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StallDetectingChannelTest {
+
+    private static final long STALL_TIMEOUT_MS = 200L;
+    private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test(timeout = 10_000L)
+    public void failsWriteIntoPipeNobodyReads() throws IOException {
+        Pipe pipe = Pipe.open();
+        // the source stays open and unread, like the end of a reader that went away
+        try (StallDetectingChannel channel = new StallDetectingChannel(pipe.sink(), STALL_TIMEOUT_MS, timer)) {
+            ByteBuffer data = ByteBuffer.allocate(DATA_SIZE);
+            long startNs = System.nanoTime();
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                fail("Wrote " + DATA_SIZE + " bytes into a pipe nobody reads");
+            } catch (IOException e) {
+                assertTrue(channel.isStalled());
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+            assertTrue(elapsedMs >= STALL_TIMEOUT_MS);
+            assertFalse(pipe.sink().isOpen());
+        } finally {
+            pipe.source().close();
+        }
+    }
+
+    @Test(timeout = 10_000L)
+    public void letsSlowReaderThrough() throws Exception {
+        Pipe pipe = Pipe.open();
+        AtomicLong bytesRead = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            try (Pipe.SourceChannel source = pipe.source()) {
+                int count;
+                while ((count = source.read(chunk)) >= 0) {
+                    bytesRead.addAndGet(count);
+                    chunk.clear();
+                    Thread.sleep(STALL_TIMEOUT_MS / 20);
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        reader.start();
+
+        int size = DATA_SIZE / 8;
+        try (StallDetectingChannel channel = new StallDetectingChannel(pipe.sink(), STALL_TIMEOUT_MS, timer)) {
+            ByteBuffer data = ByteBuffer.allocate(size);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            assertFalse(channel.isStalled());
+        }
+        reader.join();
+        assertEquals(size, bytesRead.get());
+    }
+}
@@ -0,0 +1,457 @@
+package meugeninua.screenrecording.utils.mp4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import meugeninua.screenrecording.utils.SampleFlags;
+
+public class FragmentedMp4WriterTest {
+
+    private static final byte[] SPS = { 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, (byte) 0xD9 };
+    private static final byte[] PPS = { 0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB };
+    private static final int SAMPLE_RATE = 8000;
+
+    @Test
+    public void writesFragmentPerGroupOfPicturesWithAudio() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] pcm = new byte[SAMPLE_RATE * 2 * 9 / 10];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (byte) (i * 7);
+        }
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(
+            Channels.newChannel(output), 320, 240
+        ).withAudio(SAMPLE_RATE, 1, pcm.length / 2, (channel, firstFrame, frameCount) ->
+            channel.write(ByteBuffer.wrap(pcm, (int) firstFrame * 2, (int) frameCount * 2))
+        );
+
+        writeConfig(writer);
+        // three groups of three frames at 100 ms per frame, the second key frame has two NAL units
+        for (int i = 0; i < 9; i++) {
+            boolean keyFrame = i % 3 == 0;
+            byte[] sample = i == 3
+                ? annexB(new byte[] { 0x06, 0x05, 0x01 }, new byte[] { 0x65, (byte) i, 1, 2 })
+                : annexB(new byte[] { (byte) (keyFrame ? 0x65 : 0x41), (byte) i, 1, 2, 3 });
+            writer.writeSample(
+                ByteBuffer.wrap(sample), 0, sample.length,
+                keyFrame ? SampleFlags.KEY_FRAME : 0, i * 100_000L
+            );
+        }
+        long written = writer.finish();
+
+        byte[] file = output.toByteArray();
+        assertEquals(file.length, written);
+        List<Box> boxes = Box.parse(file, 0, file.length);
+        assertEquals(
+            Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+            typesOf(boxes)
+        );
+
+        Box avcC = boxes.get(1).find("trak").find("mdia").find("minf").find("stbl")
+            .find("stsd").childAt(16, "avc1").childAt(86, "avcC");
+        byte[] expected = concat(
+            new byte[] { 1, 0x64, 0x00, 0x1F, (byte) 0xFF, (byte) 0xE1, 0, (byte) SPS.length }, SPS,
+            new byte[] { 1, 0, (byte) PPS.length }, PPS
+        );
+        assertArrayEquals(expected, avcC.payload());
+
+        Box audioTrak = boxes.get(1).children().get(2);
+        assertEquals("trak", audioTrak.type);
+        Box ipcm = audioTrak.find("mdia").find("minf").find("stbl").find("stsd").childAt(16, "ipcm");
+        assertEquals(1, ipcm.shortAt(24));
+        assertEquals(16, ipcm.shortAt(26));
+        assertEquals(SAMPLE_RATE << 16, ipcm.intAt(32));
+        // version and flags, little endian, 16 bits
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 1, 16 }, ipcm.childAt(36, "pcmC").payload());
+        assertEquals(36 + 14, ipcm.size);
+
+        long audioFrames = 0;
+        for (int fragment = 0; fragment < 3; fragment++) {
+            Box moof = boxes.get(2 + fragment * 2);
+            assertEquals(fragment + 1, moof.find("mfhd").intAt(12));
+
+            Box videoTraf = moof.children().get(1);
+            assertEquals(1, videoTraf.find("tfhd").intAt(12));
+            // 300 ms per group in the 90 kHz time base
+            assertEquals(fragment * 27_000L, videoTraf.find("tfdt").longAt(12));
+            Box trun = videoTraf.find("trun");
+            assertEquals(3, trun.intAt(12));
+            int offset = moof.start + trun.intAt(16);
+            for (int i = 0; i < 3; i++) {
+                int entry = 20 + i * 12;
+                int index = fragment * 3 + i;
+                assertEquals(9000, trun.intAt(entry));
+                assertEquals(i == 0 ? 0x02000000 : 0x01010000, trun.intAt(entry + 8));
+                byte[] sample = Arrays.copyOfRange(file, offset, offset + trun.intAt(entry + 4));
+                byte[] nal = new byte[] { (byte) (i == 0 ? 0x65 : 0x41), (byte) index, 1, 2, 3 };
+                if (index == 3) {
+                    assertArrayEquals(concat(
+                        new byte[] { 0, 0, 0, 3, 0x06, 0x05, 0x01 },
+                        new byte[] { 0, 0, 0, 4, 0x65, 3, 1, 2 }
+                    ), sample);
+                } else {
+                    assertArrayEquals(concat(new byte[] { 0, 0, 0, 5 }, nal), sample);
+                }
+                offset += sample.length;
+            }
+
+            Box audioTraf = moof.children().get(2);
+            assertEquals(2, audioTraf.find("tfhd").intAt(12));
+            assertEquals(audioFrames, audioTraf.find("tfdt").longAt(12));
+            Box audioTrun = audioTraf.find("trun");
+            int frames = audioTrun.intAt(12);
+            int audioOffset = moof.start + audioTrun.intAt(16);
+            assertEquals(offset, audioOffset);
+            assertArrayEquals(
+                Arrays.copyOfRange(pcm, (int) audioFrames * 2, (int) (audioFrames + frames) * 2),
+                Arrays.copyOfRange(file, audioOffset, audioOffset + frames * 2)
+            );
+            audioFrames += frames;
+        }
+        assertEquals(pcm.length / 2, audioFrames);
+    }
+
+    @Test
+    public void writesHevcSamplesWithHvcC() throws Exception {
+        byte[] vps = { 0x40, 0x01, 0x0C, 0x01, (byte) 0xFF, (byte) 0xFF };
+        // Main profile, level 3.1, 1280x720 with a conformance window, 8 bits
+        Bits bits = new Bits().add(0, 4).add(0, 3).add(1, 1)
+            .add(0x01, 8).add(0x60000000L, 32).add(0x9000, 16).add(0, 32).add(93, 8)
+            .ue(0).ue(1).ue(1280).ue(736).add(1, 1).ue(0).ue(0).ue(0).ue(8).ue(0).ue(0);
+        byte[] sps = concat(new byte[] { 0x42, 0x01 }, bits.toNalPayload());
+        byte[] pps = { 0x44, 0x01, (byte) 0xC1, 0x72 };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(output), 1280, 720);
+        byte[] config = annexB(vps, sps, pps);
+        writer.writeSample(ByteBuffer.wrap(config), 0, config.length, SampleFlags.CODEC_CONFIG, 0L);
+        byte[] sample = annexB(new byte[] { 0x26, 0x01, 7, 8 });
+        writer.writeSample(ByteBuffer.wrap(sample), 0, sample.length, SampleFlags.KEY_FRAME, 0L);
+        writer.finish();
+
+        byte[] file = output.toByteArray();
+        List<Box> boxes = Box.parse(file, 0, file.length);
+        assertEquals("hvc1", new String(file, boxes.get(0).start + 24, 4));
+        Box hvcC = boxes.get(1).find("trak").find("mdia").find("minf").find("stbl")
+            .find("stsd").childAt(16, "hvc1").childAt(86, "hvcC");
+        byte[] expected = concat(
+            new byte[] { 1, 0x01, 0x60, 0, 0, 0, (byte) 0x90, 0, 0, 0, 0, 0, 93 },
+            new byte[] { (byte) 0xF0, 0, (byte) 0xFC, (byte) 0xFD, (byte) 0xF8, (byte) 0xF8, 0, 0 },
+            new byte[] { 0x0F, 3 },
+            new byte[] { (byte) 0xA0, 0, 1, 0, (byte) vps.length }, vps,
+            new byte[] { (byte) 0xA1, 0, 1, 0, (byte) sps.length }, sps,
+            new byte[] { (byte) 0xA2, 0, 1, 0, (byte) pps.length }, pps
+        );
+        assertArrayEquals(expected, hvcC.payload());
+        assertArrayEquals(
+            new byte[] { 0, 0, 0, 4, 0x26, 0x01, 7, 8 },
+            Arrays.copyOfRange(file, boxes.get(3).start + 8, file.length)
+        );
+    }
+
+    @Test
+    public void writesAv1SamplesWithAv1CWithoutTemporalDelimiters() throws Exception {
+        // profile 0, level 4.0, 1280x720, 4:2:0 8 bits
+        Bits bits = new Bits().add(0, 3).add(0, 1).add(0, 1).add(0, 1).add(0, 1).add(0, 5)
+            .add(0, 12).add(8, 5).add(0, 1)
+            .add(10, 4).add(9, 4).add(1279, 11).add(719, 10).add(0, 1)
+            .add(0b011, 3).add(0, 4).add(1, 1).add(0b01, 2).add(1, 1).add(1, 1).add(6, 3)
+            .add(0b011, 3)
+            .add(0, 1).add(0, 1).add(0, 1).add(0, 1).add(0, 2).add(0, 1).add(0, 1).add(1, 1);
+        byte[] payload = bits.toBytes();
+        byte[] sequenceHeader = concat(new byte[] { 0x0A, (byte) payload.length }, payload);
+        byte[] temporalDelimiter = { 0x12, 0 };
+        byte[] frame = { 0x32, 3, 1, 2, 3 };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(output), 1280, 720);
+        byte[] config = concat(temporalDelimiter, sequenceHeader);
+        writer.writeSample(ByteBuffer.wrap(config), 0, config.length, SampleFlags.CODEC_CONFIG, 0L);
+        byte[] sample = concat(temporalDelimiter, frame);
+        writer.writeSample(ByteBuffer.wrap(sample), 0, sample.length, SampleFlags.KEY_FRAME, 0L);
+        writer.finish();
+
+        byte[] file = output.toByteArray();
+        List<Box> boxes = Box.parse(file, 0, file.length);
+        Box av1C = boxes.get(1).find("trak").find("mdia").find("minf").find("stbl")
+            .find("stsd").childAt(16, "av01").childAt(86, "av1C");
+        assertArrayEquals(
+            concat(new byte[] { (byte) 0x81, 0x08, 0x0C, 0 }, sequenceHeader), av1C.payload()
+        );
+        assertArrayEquals(frame, Arrays.copyOfRange(file, boxes.get(3).start + 8, file.length));
+    }
+
+    @Test
+    public void writesToChannelsThatAcceptPartialWrites() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WritableByteChannel trickle = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int count = Math.min(source.remaining(), 3);
+                for (int i = 0; i < count; i++) {
+                    output.write(source.get());
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(trickle, 64, 64);
+        writeConfig(writer);
+        byte[] sample = annexB(new byte[] { 0x65, 1, 2, 3 });
+        writer.writeSample(
+            ByteBuffer.wrap(sample), 0, sample.length, SampleFlags.KEY_FRAME, 0L
+        );
+
+        long written = writer.finish();
+
+        byte[] file = output.toByteArray();
+        assertEquals(file.length, written);
+        assertEquals(
+            Arrays.asList("ftyp", "moov", "moof", "mdat"),
+            typesOf(Box.parse(file, 0, file.length))
+        );
+    }
+
+    @Test
+    public void rejectsSamplesBeforeCodecConfig() {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(
+            Channels.newChannel(new ByteArrayOutputStream()), 64, 64
+        );
+        byte[] sample = annexB(new byte[] { 0x65, 1 });
+        try {
+            writer.writeSample(
+                ByteBuffer.wrap(sample), 0, sample.length, SampleFlags.KEY_FRAME, 0L
+            );
+            fail();
+        } catch (IOException expected) {
+            // codec config has to come first
+        }
+    }
+
+    @Test
+    public void steadyStateWritingAllocatesNothingPerSample() throws Exception {
+        WritableByteChannel sink = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int count = source.remaining();
+                source.position(source.limit());
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(sink, 1280, 720);
+        writeConfig(writer);
+        ByteBuffer sample = ByteBuffer.allocateDirect(20_000);
+        sample.put(annexB(new byte[] { 0x41 })).position(0);
+        for (int i = 0; i < 3_000; i++) {
+            writeFrame(writer, sample, i);
+        }
+
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 3_000; i < 30_000; i++) {
+            writeFrame(writer, sample, i);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static void writeFrame(FragmentedMp4Writer writer, ByteBuffer sample, int index)
+        throws IOException {
+        int flags = index % 30 == 0 ? SampleFlags.KEY_FRAME : 0;
+        sample.put(4, (byte) (flags != 0 ? 0x65 : 0x41));
+        writer.writeSample(sample, 0, sample.capacity(), flags, index * 33_333L);
+    }
+
+    private static void writeConfig(FragmentedMp4Writer writer) throws IOException {
+        byte[] config = annexB(SPS, PPS);
+        writer.writeSample(
+            ByteBuffer.wrap(config), 0, config.length, SampleFlags.CODEC_CONFIG, 0L
+        );
+    }
+
+    /**
+     * Joins NAL units with 4-byte start codes, and 3-byte ones after the first.
+     */
+    private static byte[] annexB(byte[]... units) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < units.length; i++) {
+            if (i == 0) {
+                stream.write(0);
+            }
+            stream.write(0);
+            stream.write(0);
+            stream.write(1);
+            stream.write(units[i], 0, units[i].length);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Writes the bit fields of a parameter set or sequence header.
+     */
+    private static class Bits {
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int current;
+        int count;
+
+        Bits add(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = current << 1 | (int) (value >> i) & 1;
+                if (++count == 8) {
+                    stream.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+            return this;
+        }
+
+        Bits ue(int value) {
+            int bits = 32 - Integer.numberOfLeadingZeros(value + 1);
+            return add(0, bits - 1).add(value + 1, bits);
+        }
+
+        /**
+         * @return the fields with trailing bits
+         */
+        byte[] toBytes() {
+            add(1, 1);
+            while (count != 0) {
+                add(0, 1);
+            }
+            return stream.toByteArray();
+        }
+
+        /**
+         * @return the fields with trailing bits and emulation prevention bytes
+         */
+        byte[] toNalPayload() {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte value : toBytes()) {
+                if (zeros == 2 && (value & 0xFF) <= 3) {
+                    payload.write(3);
+                    zeros = 0;
+                }
+                payload.write(value);
+                zeros = value == 0 ? zeros + 1 : 0;
+            }
+            return payload.toByteArray();
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            stream.write(part, 0, part.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static List<String> typesOf(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    /**
+     * Minimal ISO-BMFF box reader, enough to walk the boxes the writer produces.
+     */
+    private static class Box {
+
+        final byte[] file;
+        final int start;
+        final int size;
+        final String type;
+
+        Box(byte[] file, int start) {
+            this.file = file;
+            this.start = start;
+            this.size = ByteBuffer.wrap(file, start, 4).getInt();
+            this.type = new String(file, start + 4, 4);
+        }
+
+        static List<Box> parse(byte[] file, int from, int to) {
+            List<Box> boxes = new ArrayList<>();
+            for (int position = from; position < to; ) {
+                Box box = new Box(file, position);
+                assertTrue("box " + box.type + " overruns its parent", position + box.size <= to);
+                boxes.add(box);
+                position += box.size;
+            }
+            return boxes;
+        }
+
+        List<Box> children() {
+            // full boxes with children
+            int header = type.equals("dref") || type.equals("stsd") ? 16 : 8;
+            return parse(file, start + header, start + size);
+        }
+
+        Box find(String childType) {
+            for (Box child : children()) {
+                if (child.type.equals(childType)) return child;
+            }
+            throw new AssertionError("no " + childType + " in " + type);
+        }
+
+        /**
+         * @return the box at {@code offset} into this box, for sample entries with fixed fields
+         */
+        Box childAt(int offset, String childType) {
+            Box child = new Box(file, start + offset);
+            assertEquals(childType, child.type);
+            return child;
+        }
+
+        byte[] payload() {
+            return Arrays.copyOfRange(file, start + 8, start + size);
+        }
+
+        int shortAt(int offset) {
+            return ByteBuffer.wrap(file, start + offset, 2).getShort();
+        }
+
+        int intAt(int offset) {
+            return ByteBuffer.wrap(file, start + offset, 4).getInt();
+        }
+
+        long longAt(int offset) {
+            return ByteBuffer.wrap(file, start + offset, 8).getLong();
+        }
+    }
+}
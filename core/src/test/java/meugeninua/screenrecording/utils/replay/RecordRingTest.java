@@ -0,0 +1,67 @@
+package meugeninua.screenrecording.utils.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class RecordRingTest {
+
+    @Test
+    public void refusesRecordsUntilConsumerFreesRoom() {
+        RecordRing ring = new RecordRing(100);
+        byte[] data = new byte[30];
+
+        assertTrue(ring.offer(0, 1L, data, 0, data.length));
+        assertTrue(ring.offer(0, 2L, data, 0, data.length));
+        // 2 * 46 bytes taken, the third does not fit before the end nor in freed room
+        assertFalse(ring.offer(0, 3L, data, 0, data.length));
+
+        long[] times = new long[1];
+        assertTrue(ring.poll((flags, timeUs, payload) -> times[0] = timeUs));
+        assertEquals(1L, times[0]);
+        // wraps to the start, into the room the first record left
+        assertTrue(ring.offer(0, 3L, data, 0, data.length));
+        assertTrue(ring.poll((flags, timeUs, payload) -> times[0] = timeUs));
+        assertEquals(2L, times[0]);
+        assertTrue(ring.poll((flags, timeUs, payload) -> times[0] = timeUs));
+        assertEquals(3L, times[0]);
+        assertFalse(ring.poll((flags, timeUs, payload) -> times[0] = timeUs));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void handsOverRecordsInOrderAcrossThreads() throws Exception {
+        RecordRing ring = new RecordRing(4096);
+        int records = 100_000;
+        Thread producer = new Thread(() -> {
+            ByteBuffer data = ByteBuffer.allocate(64);
+            for (int i = 0; i < records; ) {
+                // sizes that never divide the ring, so records wrap at every offset
+                data.clear().limit(1 + i % 61);
+                data.put(0, (byte) i);
+                if (ring.offer(i, i * 10L, data)) {
+                    assertEquals(0, data.position());
+                    i++;
+                }
+            }
+        });
+        producer.start();
+
+        int[] next = new int[1];
+        while (next[0] < records) {
+            ring.poll((flags, timeUs, payload) -> {
+                int i = next[0]++;
+                assertEquals(i, flags);
+                assertEquals(i * 10L, timeUs);
+                assertEquals(1 + i % 61, payload.remaining());
+                assertEquals((byte) i, payload.get(payload.position()));
+            });
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
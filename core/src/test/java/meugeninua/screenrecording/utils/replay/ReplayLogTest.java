@@ -0,0 +1,258 @@
+package meugeninua.screenrecording.utils.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import meugeninua.screenrecording.utils.SampleFlags;
+
+public class ReplayLogTest {
+
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_DURATION_US = 1_000_000L / FRAME_RATE;
+    private static final int SAMPLE_RATE = 8000;
+    private static final int AUDIO_CHUNK_FRAMES = 160;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("replay").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ReplayLog.delete(directory);
+        assertFalse(directory.exists());
+    }
+
+    @Test
+    public void recoversLastSecondsAfterAbandonedWriter() throws Exception {
+        // 40 seconds into segments of about 5 seconds, the oldest of them are gone by now
+        ReplayLog log = new ReplayLog(directory, 5, 64, 64, SAMPLE_RATE, 1, 32 * 1024, 64 * 1024, 4);
+        int frames = 40 * FRAME_RATE;
+        record(log, frames);
+        log.sync();
+        // the writer is never closed, as if the process died
+        assertTrue(new File(directory, "video").list((dir, name) -> name.startsWith("segment-")).length <= 4);
+
+        ReplayLog.Recovery recovery = ReplayLog.recover(directory);
+        assertEquals((frames - 1) * FRAME_DURATION_US, recovery.endTimeUs());
+        assertEquals(5, recovery.seconds());
+        byte[] file = writeTo(recovery, recovery.seconds());
+
+        // a sync frame at most a second before the window, every frame after it in order
+        int first = frames - 1 - 5 * FRAME_RATE;
+        first -= first % FRAME_RATE;
+        assertEquals(-1, indexOf(file, avcc(first - 1), 0));
+        int position = 0;
+        for (int i = first; i < frames; i++) {
+            position = indexOf(file, avcc(i), position);
+            assertTrue("frame " + i + " is missing", position >= 0);
+        }
+        // the audio of the same seconds comes along
+        long audioBytes = (frames - first) * FRAME_DURATION_US * SAMPLE_RATE / 1_000_000L * 2;
+        assertTrue(file.length > (frames - first) * 200L + audioBytes - AUDIO_CHUNK_FRAMES * 2);
+        log.close();
+    }
+
+    @Test
+    public void stopsAtTornOrCorruptTail() throws Exception {
+        ReplayLog log = new ReplayLog(directory, 3, 64, 64, 0, 0, 1024 * 1024, 0, 4);
+        record(log, 3 * FRAME_RATE);
+        log.close();
+
+        File videoDirectory = new File(directory, "video");
+        File segment = SegmentLog.segmentFile(videoDirectory, 0);
+        long length = segment.length();
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            // a record cut short by the crash, then one whose payload no longer matches
+            ByteBuffer torn = ByteBuffer.allocate(SegmentLog.RECORD_HEADER_SIZE + 8);
+            ByteBuffer.wrap(recordOf(3 * FRAME_RATE), 0, torn.capacity()).get(torn.array());
+            channel.write(torn, length);
+        }
+        assertEquals((3 * FRAME_RATE - 1) * FRAME_DURATION_US, ReplayLog.recover(directory).endTimeUs());
+
+        byte[] corrupt = recordOf(3 * FRAME_RATE);
+        corrupt[corrupt.length - 1] ^= 1;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(corrupt), length);
+        }
+        assertEquals((3 * FRAME_RATE - 1) * FRAME_DURATION_US, ReplayLog.recover(directory).endTimeUs());
+    }
+
+    @Test
+    public void tellsLogOfLiveWriterFromAbandonedOne() throws Exception {
+        assertFalse(ReplayLog.isAbandoned(directory, 42));
+        ReplayLog log = new ReplayLog(
+            directory, 3, 64, 64, 0, 0, 1024 * 1024, 0, 4, 1024 * 1024, 42
+        );
+        record(log, FRAME_RATE);
+
+        assertFalse(ReplayLog.isAbandoned(directory, 42));
+        // as seen by the process started after this one died
+        assertTrue(ReplayLog.isAbandoned(directory, 43));
+        log.close();
+    }
+
+    @Test
+    public void findsNoRecoveryWithoutLog() throws Exception {
+        assertNull(ReplayLog.recover(new File(directory, "missing")));
+    }
+
+    @Test
+    public void recoversTenMinutesInUnderASecond() throws Exception {
+        // appended far faster than real time, so nothing is dropped only with room for all of it
+        ReplayLog log = new ReplayLog(
+            directory, 30, 64, 64, SAMPLE_RATE, 1, 1024 * 1024, 1024 * 1024, 64, 64 * 1024 * 1024, 0
+        );
+        int frames = 10 * 60 * FRAME_RATE;
+        record(log, frames);
+        log.sync();
+
+        long startTimeNs = System.nanoTime();
+        ReplayLog.Recovery recovery = ReplayLog.recover(directory);
+        long recoverMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNs);
+        assertEquals((frames - 1) * FRAME_DURATION_US, recovery.endTimeUs());
+        assertTrue("recovery took " + recoverMs + " ms", recoverMs < 1000);
+
+        byte[] file = writeTo(recovery, 30);
+        assertTrue(indexOf(file, avcc(frames - 1), 0) >= 0);
+        log.close();
+    }
+
+    @Test
+    public void dropsVideoUpToNextSyncFrameWhenWriterFallsBehind() throws Exception {
+        // room for about two frames, appends outrun the writer
+        ReplayLog log = new ReplayLog(directory, 60, 64, 64, 0, 0, 1024 * 1024, 0, 4, 2 * 200, 0);
+        int frames = 20 * FRAME_RATE;
+        record(log, frames);
+        log.close();
+
+        byte[] file = writeTo(ReplayLog.recover(directory), 60);
+        boolean[] logged = new boolean[frames];
+        for (int i = 0; i < frames; i++) {
+            logged[i] = indexOf(file, avcc(i), 0) >= 0;
+            // a frame is only kept when the one it depends on is
+            if (logged[i] && flagsOf(i) != SampleFlags.KEY_FRAME) {
+                assertTrue("frame " + i + " follows a gap", logged[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void appendsWithoutAllocatingOnceWarm() throws Exception {
+        ReplayLog log = new ReplayLog(directory, 5, 64, 64, SAMPLE_RATE, 1, 64 * 1024, 64 * 1024, 4);
+        ByteBuffer frame = ByteBuffer.wrap(annexB(1));
+        byte[] pcm = new byte[AUDIO_CHUNK_FRAMES * 2];
+        record(log, FRAME_RATE);
+
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = FRAME_RATE; i < 20 * FRAME_RATE; i++) {
+            long presentationTimeUs = i * FRAME_DURATION_US;
+            log.appendVideo(frame, flagsOf(i), presentationTimeUs);
+            log.appendAudio(pcm, 0, pcm.length, presentationTimeUs);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+        log.close();
+    }
+
+    /**
+     * Appends {@code frames} video frames with a sync frame every second, and the audio of the
+     * same time in 20 ms chunks, as the codec and capture threads would.
+     */
+    private static void record(ReplayLog log, int frames) throws IOException {
+        log.appendVideo(ByteBuffer.wrap(codecConfig()), SampleFlags.CODEC_CONFIG, 0L);
+        byte[] pcm = new byte[AUDIO_CHUNK_FRAMES * 2];
+        long audioFrames = 0L;
+        for (int i = 0; i < frames; i++) {
+            long presentationTimeUs = i * FRAME_DURATION_US;
+            log.appendVideo(ByteBuffer.wrap(annexB(i)), flagsOf(i), presentationTimeUs);
+            while (audioFrames * 1_000_000L / SAMPLE_RATE <= presentationTimeUs) {
+                log.appendAudio(pcm, 0, pcm.length, audioFrames * 1_000_000L / SAMPLE_RATE);
+                audioFrames += AUDIO_CHUNK_FRAMES;
+            }
+        }
+    }
+
+    private static byte[] writeTo(ReplayLog.Recovery recovery, int seconds) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long bytes = recovery.writeTo(seconds, Channels.newChannel(output));
+        assertEquals(output.size(), bytes);
+        return output.toByteArray();
+    }
+
+    private static byte[] recordOf(int index) {
+        byte[] sample = annexB(index);
+        CRC32 crc = new CRC32();
+        crc.update(sample);
+        ByteBuffer record = ByteBuffer.allocate(SegmentLog.RECORD_HEADER_SIZE + sample.length);
+        record.putInt(0x52504C47)
+            .putInt(sample.length)
+            .putInt(flagsOf(index))
+            .putLong(index * FRAME_DURATION_US)
+            .putInt((int) crc.getValue())
+            .put(sample);
+        return record.array();
+    }
+
+    private static int flagsOf(int index) {
+        return index % FRAME_RATE == 0 ? SampleFlags.KEY_FRAME : 0;
+    }
+
+    private static byte[] codecConfig() {
+        return new byte[] { 0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1F, (byte) 0xAC, 0, 0, 0, 1, 0x68, (byte) 0xEB };
+    }
+
+    private static byte[] annexB(int index) {
+        byte[] sample = new byte[200];
+        sample[3] = 1;
+        sample[4] = (byte) (index % FRAME_RATE == 0 ? 0x65 : 0x41);
+        sample[5] = (byte) (index >> 16);
+        sample[6] = (byte) (index >> 8);
+        sample[7] = (byte) index;
+        for (int i = 8; i < sample.length; i++) {
+            sample[i] = (byte) (0x80 | i);
+        }
+        return sample;
+    }
+
+    private static byte[] avcc(int index) {
+        byte[] sample = annexB(index);
+        ByteBuffer.wrap(sample).putInt(0, sample.length - 4);
+        return sample;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i + pattern.length;
+        }
+        return -1;
+    }
+}